@@ -0,0 +1,150 @@
+/*
+ * Copyright 2010 Peter Kuterna
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.peterkuterna.android.apps.devoxxsched.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+
+/**
+ * Sequence of {@link JSONObject} entries handed to a {@link JSONHandler}.
+ * Entries either come from already parsed {@link JSONArray} instances or are
+ * read one at a time from a set of streams using a {@link JSONStreamParser}.
+ */
+public abstract class JSONEntries {
+
+	/**
+	 * Returns true if there is another entry available.
+	 */
+	public abstract boolean hasNext() throws JSONException;
+
+	/**
+	 * Returns the next entry.
+	 */
+	public abstract JSONObject next() throws JSONException;
+
+	/**
+	 * Releases any underlying stream.
+	 */
+	public void close() {
+	}
+
+	/**
+	 * Source of a JSON document that is only opened once its entries are
+	 * needed.
+	 */
+	public interface Source {
+		InputStream open() throws IOException;
+	}
+
+	/**
+	 * Creates entries that walk over the elements of the given
+	 * {@link JSONArray} instances.
+	 */
+	public static JSONEntries fromArrays(ArrayList<JSONArray> arrays) {
+		return new ArrayEntries(arrays);
+	}
+
+	/**
+	 * Creates entries that stream the elements of the top level arrays of the
+	 * given sources, one source after the other.
+	 */
+	public static JSONEntries fromSources(ArrayList<Source> sources) {
+		return new StreamEntries(sources);
+	}
+
+	private static class ArrayEntries extends JSONEntries {
+		private final ArrayList<JSONArray> mArrays;
+		private int mArrayIndex = 0;
+		private int mIndex = 0;
+
+		private ArrayEntries(ArrayList<JSONArray> arrays) {
+			mArrays = arrays;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (mArrayIndex < mArrays.size()) {
+				if (mIndex < mArrays.get(mArrayIndex).length()) return true;
+				mArrayIndex++;
+				mIndex = 0;
+			}
+			return false;
+		}
+
+		@Override
+		public JSONObject next() throws JSONException {
+			if (!hasNext()) {
+				throw new JSONException("No more entries");
+			}
+			return mArrays.get(mArrayIndex).getJSONObject(mIndex++);
+		}
+	}
+
+	private static class StreamEntries extends JSONEntries {
+		private final ArrayList<Source> mSources;
+		private int mSourceIndex = 0;
+		private JSONStreamParser mParser;
+
+		private StreamEntries(ArrayList<Source> sources) {
+			mSources = sources;
+		}
+
+		@Override
+		public boolean hasNext() throws JSONException {
+			while (mParser == null || !mParser.hasNext()) {
+				close();
+				if (mSourceIndex >= mSources.size()) return false;
+				mParser = open(mSources.get(mSourceIndex++));
+				mParser.beginArray();
+			}
+			return true;
+		}
+
+		@Override
+		public JSONObject next() throws JSONException {
+			if (!hasNext()) {
+				throw new JSONException("No more entries");
+			}
+			return mParser.nextObject();
+		}
+
+		@Override
+		public void close() {
+			if (mParser != null) {
+				mParser.close();
+				mParser = null;
+			}
+		}
+
+		private static JSONStreamParser open(Source source) throws JSONException {
+			try {
+				return new JSONStreamParser(source.open());
+			} catch (IOException e) {
+				final JSONException je = new JSONException("Problem opening JSON stream");
+				je.initCause(e);
+				throw je;
+			}
+		}
+	}
+
+}
@@ -18,10 +18,13 @@ package net.peterkuterna.android.apps.devoxxsched.io;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Set;
 
 import net.peterkuterna.android.apps.devoxxsched.io.JSONHandler.JSONHandlerException;
+import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleBatchWriter;
+import net.peterkuterna.android.apps.devoxxsched.util.Lists;
+import net.peterkuterna.android.apps.devoxxsched.util.Maps;
 import net.peterkuterna.android.apps.devoxxsched.util.Sets;
 
 import org.json.JSONArray;
@@ -30,8 +33,10 @@ import org.json.JSONException;
 import android.content.ContentProvider;
 import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
+import android.content.ContentValues;
 import android.content.OperationApplicationException;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.net.Uri;
 import android.os.RemoteException;
 import android.util.Log;
@@ -39,7 +44,7 @@ import android.util.Log;
 
 /**
  * Abstract class that handles reading and parsing an {@link JSONArray} into
- * a set of {@link ContentProviderOperation}. It catches exceptions and 
+ * a set of {@link SyncOperation}. It catches exceptions and 
  * rethrows them as {@link JSONHandlerException}. Any local
  * {@link ContentProvider} exceptions are considered unrecoverable.
  * <p>
@@ -48,6 +53,11 @@ import android.util.Log;
 public abstract class JSONHandler extends BaseHandler {
 	
 	private static final String TAG = "JSONHandler"; 
+
+	private ScheduleBatchWriter mBatchWriter;
+	private int mChunkSize = ScheduleBatchWriter.DEFAULT_CHUNK_SIZE;
+	/** Keys of the inserts applied since the start of the parse. */
+	private final HashSet<String> mInsertKeys = Sets.newHashSet();
 	
     public JSONHandler(String mAuthority) {
 		super(mAuthority);
@@ -55,63 +65,188 @@ public abstract class JSONHandler extends BaseHandler {
 
 	/**
      * Parse the given {@link JSONArray}, turning into a series of
-     * {@link ContentProviderOperation} that are immediately applied using the
+     * {@link SyncOperation} that are immediately applied using the
      * given {@link ContentResolver}.
      */
     public void parseAndApply(ArrayList<JSONArray> entries, ContentResolver resolver) throws JSONHandlerException {
+    	parseAndApply(JSONEntries.fromArrays(entries), resolver);
+    }
+
+	/**
+     * Parse the given {@link JSONEntries}, turning into a series of
+     * {@link SyncOperation} that are immediately applied using the
+     * given {@link ContentResolver}.
+     */
+    public void parseAndApply(JSONEntries entries, ContentResolver resolver) throws JSONHandlerException {
+    	mInsertKeys.clear();
     	try {
-	        final ArrayList<ContentProviderOperation> batch = parse(entries, resolver);
-	        resolver.applyBatch(getAuthority(), batch);
+	        final ArrayList<SyncOperation> batch = removeDuplicateInserts(parse(entries, resolver));
+	        if (mBatchWriter != null) {
+	        	mBatchWriter.apply(batch);
+	        } else {
+	        	resolver.applyBatch(getAuthority(), toContentProviderOperations(batch, mChunkSize));
+	        }
         } catch (JSONException e) {
+        	if (e.getCause() instanceof JSONHandlerException) {
+        		throw (JSONHandlerException) e.getCause();
+        	}
             throw new JSONHandlerException("Problem parsing JSON response", e);
         } catch (RemoteException e) {
             throw new RuntimeException("Problem applying batch operation", e);
         } catch (OperationApplicationException e) {
             throw new RuntimeException("Problem applying batch operation", e);
+        } finally {
+        	mInsertKeys.clear();
+        	entries.close();
         }
     }
 
     /**
-     * Parse the given {@link JSONHandler}, returning a set of
-     * {@link ContentProviderOperation} that will bring the
+     * Parse the given {@link JSONArray}, returning a set of
+     * {@link SyncOperation} that will bring the
+     * {@link ContentProvider} into sync with the parsed data.
+     */
+    public ArrayList<SyncOperation> parse(ArrayList<JSONArray> entries, ContentResolver resolver) throws JSONException {
+    	return parse(JSONEntries.fromArrays(entries), resolver);
+    }
+
+    /**
+     * Parse the given {@link JSONEntries}, returning a set of
+     * {@link SyncOperation} that will bring the
      * {@link ContentProvider} into sync with the parsed data.
      */
-    public abstract ArrayList<ContentProviderOperation> parse(ArrayList<JSONArray> entries, ContentResolver resolver) throws JSONException;
+    public abstract ArrayList<SyncOperation> parse(JSONEntries entries, ContentResolver resolver) throws JSONException;
+
+    /**
+     * Write the parsed operations directly through the given
+     * {@link ScheduleBatchWriter} instead of
+     * {@link ContentResolver#applyBatch(String, ArrayList)}.
+     */
+    public void setBatchWriter(ScheduleBatchWriter batchWriter) {
+    	mBatchWriter = batchWriter;
+    }
+
+    /**
+     * Set the number of operations after which the batch is applied or
+     * yielded to waiting readers.
+     */
+    public void setChunkSize(int chunkSize) {
+    	mChunkSize = Math.max(1, chunkSize);
+    }
+
+    /**
+     * Apply the operations collected so far once they fill a chunk, so that
+     * a large feed is never kept in memory as a whole. This only happens when
+     * writing through a {@link ScheduleBatchWriter}, a batch applied through
+     * the {@link ContentResolver} is yielded in chunks instead.
+     */
+    protected void flushIfFull(ArrayList<SyncOperation> batch) {
+    	if (mBatchWriter != null && batch.size() >= mChunkSize) {
+    		mBatchWriter.apply(removeDuplicateInserts(batch));
+    		batch.clear();
+    	}
+    }
+
+    /**
+     * Drop the inserts that repeat an insert applied earlier in the same
+     * parse, like the tag rows and suggestions shared by many sessions. A
+     * delete could remove an inserted row again, so the inserts seen so far
+     * are forgotten at every delete.
+     */
+    private ArrayList<SyncOperation> removeDuplicateInserts(ArrayList<SyncOperation> batch) {
+    	final ArrayList<SyncOperation> operations = Lists.newArrayList();
+    	for (SyncOperation operation : batch) {
+    		final String insertKey = operation.getInsertKey();
+    		if (insertKey != null) {
+    			if (!mInsertKeys.add(insertKey)) continue;
+    		} else if (!operation.isUpdateOperation()) {
+    			mInsertKeys.clear();
+    		}
+    		operations.add(operation);
+    	}
+    	if (operations.size() < batch.size()) {
+    		Log.d(TAG, "Removed " + (batch.size() - operations.size()) + " duplicate inserts.");
+    	}
+    	return operations;
+    }
 
-	protected static boolean isRowExisting(Uri uri, String [] projection, ContentResolver resolver) {
-		final Cursor cursor = resolver.query(uri, projection, null, null, null);
+    private static ArrayList<ContentProviderOperation> toContentProviderOperations(ArrayList<SyncOperation> batch, int chunkSize) {
+    	final ArrayList<ContentProviderOperation> operations = Lists.newArrayList();
+    	final int size = batch.size();
+    	for (int i = 0; i < size; i++) {
+    		final SyncOperation operation = batch.get(i);
+    		final boolean chunkStart = i > 0 && i % chunkSize == 0;
+    		operations.add(operation.toContentProviderOperation(operation.isYieldAllowed() || chunkStart));
+    	}
+    	return operations;
+    }
+
+	/**
+	 * Query a {@link Uri} the way this handler writes to it, so that rows
+	 * staged by a {@link ScheduleBatchWriter} are seen as well.
+	 */
+	protected Cursor query(Uri uri, String [] projection, ContentResolver resolver) {
+		if (mBatchWriter != null) {
+			return mBatchWriter.query(uri, projection);
+		}
+		return resolver.query(uri, projection, null, null, null);
+	}
+
+	/**
+	 * Reads all rows of a {@link Uri} in one query, keyed by the value of the
+	 * given id column. Handlers use this snapshot to decide on insert, update
+	 * or skip without a provider round trip per entry.
+	 */
+	protected HashMap<String, ContentValues> loadSnapshot(Uri uri, String [] projection, int idColumnIndex, ContentResolver resolver) {
+		final HashMap<String, ContentValues> snapshot = Maps.newHashMap();
+		
+		final Cursor cursor = query(uri, projection, resolver);
 		try {
-			if (!cursor.moveToFirst()) return false;
+			while (cursor.moveToNext()) {
+				final ContentValues values = new ContentValues();
+				DatabaseUtils.cursorRowToContentValues(cursor, values);
+				snapshot.put(cursor.getString(idColumnIndex), values);
+			}
 		} finally {
 			cursor.close();
 		}
-		return true;
+		
+		return snapshot;
 	}
 
 	/**
-	 * Returns those id's from a {@link Uri} that were not found in a given set. 
+	 * Reads all links of a {@link Uri} in one query, grouping the values of
+	 * the value column by the value of the key column.
 	 */
-    protected static HashSet<String> getLostIds(Set<String> ids, Uri uri, String [] projection, int idColumnIndex, ContentResolver resolver) {
-        final HashSet<String> lostIds = Sets.newHashSet();
-        
-        final Cursor cursor = resolver.query(uri, projection, null, null, null);
-        try {
-        	while (cursor.moveToNext()) {
-        		final String id = cursor.getString(idColumnIndex);
-        		if (!ids.contains(id)) {
-        			lostIds.add(id);
-        		}
-        	}
-        } finally {
-            cursor.close();
-        }
-        
-        if (!lostIds.isEmpty()) {
-        	Log.d(TAG, "Found " + lostIds.size() + " for " + uri.toString() + " that need to be removed.");
-        }
-        
-        return lostIds;
-    }
+	protected HashMap<String, HashSet<String>> loadLinks(Uri uri, String [] projection, int keyColumnIndex, int valueColumnIndex, ContentResolver resolver) {
+		final HashMap<String, HashSet<String>> links = Maps.newHashMap();
+		
+		final Cursor cursor = query(uri, projection, resolver);
+		try {
+			while (cursor.moveToNext()) {
+				final String key = cursor.getString(keyColumnIndex);
+				HashSet<String> values = links.get(key);
+				if (values == null) {
+					values = Sets.newHashSet();
+					links.put(key, values);
+				}
+				values.add(cursor.getString(valueColumnIndex));
+			}
+		} finally {
+			cursor.close();
+		}
+		
+		return links;
+	}
+
+	/**
+	 * Returns whether a snapshot row was synced with the given fingerprint.
+	 */
+	protected static boolean hasFingerprint(ContentValues values, String column, long fingerprint) {
+		if (values == null) return false;
+		final Long stored = values.getAsLong(column);
+		return stored != null && stored == fingerprint;
+	}
 
 	/**
      * General {@link IOException} that indicates a problem occured while
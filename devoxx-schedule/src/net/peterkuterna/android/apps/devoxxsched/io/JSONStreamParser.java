@@ -0,0 +1,297 @@
+/*
+ * Copyright 2010 Peter Kuterna
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.peterkuterna.android.apps.devoxxsched.io;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+
+/**
+ * Token based pull parser that walks over a top level JSON array and hands
+ * out its elements one by one. Only the element that is currently being read
+ * is kept in memory, the document itself is never buffered as a whole.
+ */
+public class JSONStreamParser {
+
+	private static final int BUFFER_SIZE = 8192;
+	private static final int NONE = -2;
+
+	private final Reader mReader;
+	private int mPeeked = NONE;
+	private boolean mFirst = true;
+	private boolean mHasNext = false;
+	private boolean mEnded = false;
+
+	public JSONStreamParser(InputStream input) throws UnsupportedEncodingException {
+		this(new InputStreamReader(input, "UTF-8"));
+	}
+
+	public JSONStreamParser(Reader reader) {
+		mReader = new BufferedReader(reader, BUFFER_SIZE);
+	}
+
+	/**
+	 * Consumes the opening bracket of the top level array.
+	 */
+	public void beginArray() throws JSONException {
+		if (nextClean() != '[') {
+			throw syntaxError("Expected a JSON array");
+		}
+		mFirst = true;
+		mHasNext = false;
+		mEnded = false;
+	}
+
+	/**
+	 * Returns true if the top level array has another element.
+	 */
+	public boolean hasNext() throws JSONException {
+		if (mEnded) return false;
+		if (mHasNext) return true;
+
+		int c = nextClean();
+		if (!mFirst && c != ']') {
+			if (c != ',') {
+				throw syntaxError("Expected ',' or ']'");
+			}
+			c = nextClean();
+		}
+		if (c == ']') {
+			mEnded = true;
+			return false;
+		}
+		mFirst = false;
+		mHasNext = true;
+		mPeeked = c;
+		return true;
+	}
+
+	/**
+	 * Reads the next element of the top level array as a {@link JSONObject}.
+	 */
+	public JSONObject nextObject() throws JSONException {
+		if (!hasNext()) {
+			throw syntaxError("No more elements");
+		}
+		mHasNext = false;
+		final Object value = readValue(nextClean());
+		if (!(value instanceof JSONObject)) {
+			throw syntaxError("Expected a JSON object");
+		}
+		return (JSONObject) value;
+	}
+
+	public void close() {
+		try {
+			mReader.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+
+	private Object readValue(int c) throws JSONException {
+		switch (c) {
+			case '{':
+				return readObject();
+			case '[':
+				return readArray();
+			case '"':
+				return readString();
+			case -1:
+				throw syntaxError("Unexpected end of input");
+			default:
+				return readLiteral(c);
+		}
+	}
+
+	private JSONObject readObject() throws JSONException {
+		final JSONObject object = new JSONObject();
+
+		int c = nextClean();
+		if (c == '}') return object;
+		while (true) {
+			if (c != '"') {
+				throw syntaxError("Expected a name");
+			}
+			final String name = readString();
+			if (nextClean() != ':') {
+				throw syntaxError("Expected ':' after " + name);
+			}
+			object.put(name, readValue(nextClean()));
+
+			c = nextClean();
+			if (c == '}') return object;
+			if (c != ',') {
+				throw syntaxError("Expected ',' or '}'");
+			}
+			c = nextClean();
+		}
+	}
+
+	private JSONArray readArray() throws JSONException {
+		final JSONArray array = new JSONArray();
+
+		int c = nextClean();
+		if (c == ']') return array;
+		while (true) {
+			array.put(readValue(c));
+
+			c = nextClean();
+			if (c == ']') return array;
+			if (c != ',') {
+				throw syntaxError("Expected ',' or ']'");
+			}
+			c = nextClean();
+		}
+	}
+
+	private String readString() throws JSONException {
+		final StringBuilder sb = new StringBuilder();
+
+		while (true) {
+			int c = next();
+			switch (c) {
+				case -1:
+				case '\n':
+				case '\r':
+					throw syntaxError("Unterminated string");
+				case '"':
+					return sb.toString();
+				case '\\':
+					c = next();
+					switch (c) {
+						case 'b':
+							sb.append('\b');
+							break;
+						case 't':
+							sb.append('\t');
+							break;
+						case 'n':
+							sb.append('\n');
+							break;
+						case 'f':
+							sb.append('\f');
+							break;
+						case 'r':
+							sb.append('\r');
+							break;
+						case 'u':
+							final char [] hex = new char[4];
+							for (int i = 0; i < 4; i++) {
+								final int h = next();
+								if (h == -1) throw syntaxError("Unterminated escape sequence");
+								hex[i] = (char) h;
+							}
+							try {
+								sb.append((char) Integer.parseInt(new String(hex), 16));
+							} catch (NumberFormatException e) {
+								throw syntaxError("Illegal escape sequence");
+							}
+							break;
+						case '"':
+						case '\'':
+						case '\\':
+						case '/':
+							sb.append((char) c);
+							break;
+						default:
+							throw syntaxError("Illegal escape sequence");
+					}
+					break;
+				default:
+					sb.append((char) c);
+			}
+		}
+	}
+
+	private Object readLiteral(int c) throws JSONException {
+		final StringBuilder sb = new StringBuilder();
+
+		while (c != -1 && ",:]}/\\\"[{;=#".indexOf(c) < 0 && !Character.isWhitespace(c)) {
+			sb.append((char) c);
+			c = next();
+		}
+		mPeeked = c;
+
+		final String literal = sb.toString();
+		if (literal.length() == 0) {
+			throw syntaxError("Missing value");
+		}
+		if (literal.equals("true")) {
+			return Boolean.TRUE;
+		}
+		if (literal.equals("false")) {
+			return Boolean.FALSE;
+		}
+		if (literal.equals("null")) {
+			return JSONObject.NULL;
+		}
+
+		final char first = literal.charAt(0);
+		if ((first >= '0' && first <= '9') || first == '-') {
+			try {
+				if (literal.indexOf('.') < 0 && literal.indexOf('e') < 0 && literal.indexOf('E') < 0) {
+					final long l = Long.parseLong(literal);
+					if (l == (int) l) {
+						return Integer.valueOf((int) l);
+					}
+					return Long.valueOf(l);
+				}
+				return Double.valueOf(literal);
+			} catch (NumberFormatException e) {
+				// fall through and keep it as a string
+			}
+		}
+		return literal;
+	}
+
+	private int nextClean() throws JSONException {
+		int c;
+		do {
+			c = next();
+		} while (c != -1 && c <= ' ');
+		return c;
+	}
+
+	private int next() throws JSONException {
+		if (mPeeked != NONE) {
+			final int c = mPeeked;
+			mPeeked = NONE;
+			return c;
+		}
+		try {
+			return mReader.read();
+		} catch (IOException e) {
+			final JSONException je = new JSONException("Problem reading JSON stream");
+			je.initCause(e);
+			throw je;
+		}
+	}
+
+	private static JSONException syntaxError(String message) {
+		return new JSONException(message);
+	}
+
+}
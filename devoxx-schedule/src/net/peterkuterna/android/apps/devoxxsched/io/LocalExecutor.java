@@ -26,11 +26,10 @@ import java.util.ArrayList;
 
 import net.peterkuterna.android.apps.devoxxsched.io.JSONHandler.JSONHandlerException;
 import net.peterkuterna.android.apps.devoxxsched.io.XmlHandler.XmlHandlerException;
+import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleBatchWriter;
 import net.peterkuterna.android.apps.devoxxsched.util.Lists;
 import net.peterkuterna.android.apps.devoxxsched.util.ParserUtils;
 
-import org.json.JSONArray;
-import org.json.JSONException;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
@@ -43,12 +42,21 @@ import android.content.res.XmlResourceParser;
 public class LocalExecutor {
     private Resources mRes;
     private ContentResolver mResolver;
+    private ScheduleBatchWriter mBatchWriter;
 
     public LocalExecutor(Resources res, ContentResolver resolver) {
         mRes = res;
         mResolver = resolver;
     }
 
+    /**
+     * Write the operations of the JSON handlers directly through the given
+     * {@link ScheduleBatchWriter}.
+     */
+    public void setBatchWriter(ScheduleBatchWriter batchWriter) {
+    	mBatchWriter = batchWriter;
+    }
+
     public void execute(int resId, XmlHandler handler) throws XmlHandlerException {
         final XmlResourceParser parser = mRes.getXml(resId);
         try {
@@ -74,24 +82,17 @@ public class LocalExecutor {
 		}
     }
 
-    public void execute(Context context, String assetName, JSONHandler handler)
+    public void execute(final Context context, final String assetName, JSONHandler handler)
             throws JSONHandlerException {
-        try {
-            final InputStream input = context.getAssets().open(assetName);
-            byte [] buffer = new byte[input.available()];
-            while (input.read(buffer) != -1);
-            String jsontext = new String(buffer);
-            ArrayList<JSONArray> entries = Lists.newArrayList();
-            entries.add(new JSONArray(jsontext));
-        	handler.setLocalSync(true);
-            handler.parseAndApply(entries, mResolver);
-        } catch (JSONHandlerException e) {
-            throw e;
-        } catch (JSONException e) {
-            throw new JSONHandlerException("Problem parsing local asset: " + assetName, e);
-        } catch (IOException e) {
-            throw new JSONHandlerException("Problem parsing local asset: " + assetName, e);
-        }
+        final ArrayList<JSONEntries.Source> sources = Lists.newArrayList();
+        sources.add(new JSONEntries.Source() {
+			public InputStream open() throws IOException {
+				return context.getAssets().open(assetName);
+			}
+		});
+    	handler.setLocalSync(true);
+    	handler.setBatchWriter(mBatchWriter);
+        handler.parseAndApply(JSONEntries.fromSources(sources), mResolver);
     }
 
 }
@@ -23,10 +23,12 @@ import static org.xmlpull.v1.XmlPullParser.TEXT;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 
 import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleContract;
 import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleContract.SearchSuggest;
 import net.peterkuterna.android.apps.devoxxsched.util.Lists;
+import net.peterkuterna.android.apps.devoxxsched.util.Sets;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -34,6 +36,8 @@ import org.xmlpull.v1.XmlPullParserException;
 import android.app.SearchManager;
 import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
 
 
 public class LocalSearchSuggestHandler extends XmlHandler {
@@ -46,9 +50,9 @@ public class LocalSearchSuggestHandler extends XmlHandler {
     public ArrayList<ContentProviderOperation> parse(XmlPullParser parser, ContentResolver resolver)
             throws XmlPullParserException, IOException {
         final ArrayList<ContentProviderOperation> batch = Lists.newArrayList();
-
-        // Clear any existing suggestion words
-        batch.add(ContentProviderOperation.newDelete(SearchSuggest.CONTENT_URI).build());
+        final HashSet<String> words = Sets.newHashSet();
+        final HashSet<String> existingWords = queryWords(resolver, SearchSuggest.CONTENT_URI,
+                null, null, SearchManager.SUGGEST_COLUMN_TEXT_1);
 
         String tag = null;
         int type;
@@ -59,7 +63,7 @@ public class LocalSearchSuggestHandler extends XmlHandler {
                 tag = null;
             } else if (type == TEXT) {
                 final String text = parser.getText();
-                if (Tags.WORD.equals(tag)) {
+                if (Tags.WORD.equals(tag) && words.add(text) && !existingWords.contains(text)) {
                     // Insert word as search suggestion
                     batch.add(ContentProviderOperation.newInsert(SearchSuggest.CONTENT_URI)
                             .withValue(SearchManager.SUGGEST_COLUMN_TEXT_1, text).build());
@@ -67,9 +71,36 @@ public class LocalSearchSuggestHandler extends XmlHandler {
             }
         }
 
+        // Remove the words that were dropped, tag names are suggested as well
+        existingWords.removeAll(words);
+        if (!existingWords.isEmpty()) {
+            existingWords.removeAll(queryWords(resolver, ScheduleContract.Tags.CONTENT_URI, null, null,
+                    ScheduleContract.Tags.TAG_NAME));
+            for (String word : existingWords) {
+                batch.add(ContentProviderOperation.newDelete(SearchSuggest.CONTENT_URI)
+                        .withSelection(SearchManager.SUGGEST_COLUMN_TEXT_1 + "=?", new String[] { word })
+                        .build());
+            }
+        }
+
         return batch;
     }
 
+    private static HashSet<String> queryWords(ContentResolver resolver, Uri uri, String selection,
+            String[] selectionArgs, String column) {
+        final HashSet<String> words = Sets.newHashSet();
+        final Cursor cursor = resolver.query(uri, new String[] { column }, selection, selectionArgs, null);
+        try {
+            final int columnIndex = cursor.getColumnIndexOrThrow(column);
+            while (cursor.moveToNext()) {
+                words.add(cursor.getString(columnIndex));
+            }
+        } finally {
+            cursor.close();
+        }
+        return words;
+    }
+
     private interface Tags {
         String WORD = "word";
     }
@@ -21,16 +21,31 @@
 package net.peterkuterna.android.apps.devoxxsched.io;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import net.peterkuterna.android.apps.devoxxsched.io.JSONHandler.JSONHandlerException;
 import net.peterkuterna.android.apps.devoxxsched.model.RequestHash;
+import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleBatchWriter;
 import net.peterkuterna.android.apps.devoxxsched.util.Lists;
+import net.peterkuterna.android.apps.devoxxsched.util.Maps;
+import net.peterkuterna.android.apps.devoxxsched.util.SyncProbe;
 import net.peterkuterna.android.apps.devoxxsched.util.SyncUtils;
 
+import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.HttpClient;
@@ -44,52 +59,161 @@ import android.util.Log;
 
 
 /**
- * Executes an {@link HttpUriRequest} and passes the result as an
- * {@link JSONArray} to the given {@link JSONHandler}.
+ * Executes an {@link HttpUriRequest} and streams the entries of the result
+ * to the given {@link JSONHandler}.
  */
 public class RemoteExecutor {
+	private static final String TAG = "RemoteExecutor";
+
+	/** Maximum number of requests that are downloaded at the same time. */
+	public static final int MAX_CONCURRENT_REQUESTS = 4;
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private static final String HEADER_ETAG = "ETag";
+	private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+	private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+	private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
     private final HttpClient mHttpClient;
     private final ContentResolver mResolver;
+    private final File mSpoolDir;
+    private final HashMap<String, Future<FeedResponse>> mPrefetched = Maps.newHashMap();
+    private ExecutorService mExecutor;
+    private SyncProbe mSyncProbe;
+    private ScheduleBatchWriter mBatchWriter;
 
     public RemoteExecutor(HttpClient httpClient, ContentResolver resolver) {
+    	this(httpClient, resolver, null);
+    }
+
+    public RemoteExecutor(HttpClient httpClient, ContentResolver resolver, File spoolDir) {
         mHttpClient = httpClient;
         mResolver = resolver;
+        mSpoolDir = spoolDir;
     }
 
     /**
-     * Execute a {@link HttpGet} request, passing a valid response through
-     * {@link JSONHandler#parseAndApply(JSONArray, ContentResolver)}.
+     * Write the operations of the JSON handlers directly through the given
+     * {@link ScheduleBatchWriter}.
+     */
+    public void setBatchWriter(ScheduleBatchWriter batchWriter) {
+    	mBatchWriter = batchWriter;
+    }
+
+    /**
+     * Use the remote md5 hashes recorded by the given {@link SyncProbe}
+     * instead of requesting them again for every download.
+     */
+    public synchronized void setSyncProbe(SyncProbe syncProbe) {
+    	mSyncProbe = syncProbe;
+    }
+
+    /**
+     * Start downloading the given urls concurrently on a bounded pool. The
+     * responses are spooled to disk, later calls to
+     * {@link #executeGet(String[], JSONHandler)} for these urls wait for and
+     * read the spooled response instead of executing the request themselves.
+     */
+    public synchronized void prefetch(String [] urls) {
+    	if (mExecutor == null) {
+    		mExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_REQUESTS);
+    	}
+    	for (final String url : urls) {
+    		if (mPrefetched.containsKey(url)) continue;
+    		mPrefetched.put(url, mExecutor.submit(new Callable<FeedResponse>() {
+				public FeedResponse call() throws Exception {
+					return fetch(url, true, true);
+				}
+			}));
+    	}
+    }
+
+    /**
+     * Cancel any outstanding prefetch and remove the spooled responses that
+     * were not consumed.
+     */
+    public synchronized void shutdown() {
+    	for (Future<FeedResponse> future : mPrefetched.values()) {
+    		if (!future.cancel(true)) {
+    			try {
+					future.get().release();
+				} catch (Exception e) {
+					// nothing was spooled
+				}
+    		}
+    	}
+    	mPrefetched.clear();
+    	if (mExecutor != null) {
+    		mExecutor.shutdownNow();
+    		mExecutor = null;
+    	}
+    }
+
+    /**
+     * Execute a conditional {@link HttpGet} request for each url, streaming
+     * the valid responses through
+     * {@link JSONHandler#parseAndApply(JSONEntries, ContentResolver)}. When
+     * none of the urls was modified since the last sync, nothing is parsed
+     * or applied.
      */
     public ArrayList<RequestHash> executeGet(String [] urls, JSONHandler handler) throws JSONHandlerException {
-    	final ArrayList<RequestHash> result = Lists.newArrayList();
-    	final ArrayList<JSONArray> entries = Lists.newArrayList();
-    	for (String url : urls) {
-            final HttpUriRequest request = new HttpGet(url);
-            final String md5 = SyncUtils.getRemoteMd5(mHttpClient, url);
-            JSONArray requestEntries = executeRequest(request);
-            entries.add(requestEntries);
-            result.add(new RequestHash(url, md5));
+    	final ArrayList<FeedResponse> responses = Lists.newArrayList();
+    	try {
+    		boolean modified = false;
+	    	for (String url : urls) {
+	    		final Future<FeedResponse> future = takePrefetched(url);
+	    		final FeedResponse response = (future != null) ? await(future, url) : fetch(url, true, false);
+	    		responses.add(response);
+	    		modified |= !response.notModified;
+	    	}
+
+	    	if (modified) {
+	    		// The handler needs all feeds of the group, so the ones that
+	    		// were not modified are requested again without validators.
+	    		for (int i = 0; i < responses.size(); i++) {
+	    			final FeedResponse response = responses.get(i);
+	    			if (response.notModified) {
+	    				responses.set(i, fetch(response.url, false, false));
+	    			}
+	    		}
+
+		    	final ArrayList<JSONEntries.Source> sources = Lists.newArrayList();
+		    	for (final FeedResponse response : responses) {
+		    		sources.add(new JSONEntries.Source() {
+						public InputStream open() throws IOException {
+							return response.open();
+						}
+					});
+		    	}
+		    	handler.setLocalSync(false);
+		    	handler.setBatchWriter(mBatchWriter);
+				handler.parseAndApply(JSONEntries.fromSources(sources), mResolver);
+	    	} else {
+	    		Log.d(TAG, "not modified, skipping " + Arrays.toString(urls));
+	    	}
+
+	    	final ArrayList<RequestHash> result = Lists.newArrayList();
+	    	for (FeedResponse response : responses) {
+	    		result.add(new RequestHash(response.url, response.md5, response.etag, response.lastModified));
+	    	}
+	    	return result;
+    	} finally {
+    		for (FeedResponse response : responses) {
+    			response.release();
+    		}
     	}
-    	handler.setLocalSync(false);
-		handler.parseAndApply(entries, mResolver);
-    	return result;
     }
 
     /**
-     * Execute this {@link HttpUriRequest}, passing a valid response through
-     * {@link JSONHandler#parseAndApply(JSONArray, ContentResolver)}.
+     * Execute this {@link HttpUriRequest}, returning the valid response as
+     * a {@link JSONArray}. Buffers the whole response, use
+     * {@link #executeGet(String[], JSONHandler)} to stream the entries
+     * instead.
      */
     public JSONArray executeRequest(HttpUriRequest request) throws JSONHandlerException {
         try {
-            final HttpResponse resp = mHttpClient.execute(request);
-            final int status = resp.getStatusLine().getStatusCode();
-            Log.d("RemoteExecutor", "status = " + status);
-            if (status != HttpStatus.SC_OK) {
-                throw new JSONHandlerException("Unexpected server response " + resp.getStatusLine()
-                        + " for " + request.getRequestLine());
-            }
-
-            final InputStream input = resp.getEntity().getContent();
+            final InputStream input = openRequest(request).getEntity().getContent();
             try {
             	BufferedReader reader = new BufferedReader(new InputStreamReader(input));
             	StringBuilder sb = new StringBuilder();
@@ -111,5 +235,174 @@ public class RemoteExecutor {
                     + request.getRequestLine(), e);
         }
     }
-    
+
+    /**
+     * Execute this {@link HttpUriRequest}, returning a valid response. A
+     * response with status {@link HttpStatus#SC_NOT_MODIFIED} is only valid
+     * for conditional requests.
+     */
+    private HttpResponse openRequest(HttpUriRequest request) throws JSONHandlerException {
+        try {
+            final HttpResponse resp = mHttpClient.execute(request);
+            final int status = resp.getStatusLine().getStatusCode();
+            Log.d(TAG, "status = " + status);
+            if (status == HttpStatus.SC_NOT_MODIFIED && isConditional(request)) {
+            	return resp;
+            }
+            if (status != HttpStatus.SC_OK) {
+            	if (resp.getEntity() != null) resp.getEntity().consumeContent();
+                throw new JSONHandlerException("Unexpected server response " + resp.getStatusLine()
+                        + " for " + request.getRequestLine());
+            }
+
+            return resp;
+        } catch (JSONHandlerException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new JSONHandlerException("Problem reading remote response for "
+                    + request.getRequestLine(), e);
+        }
+    }
+
+    /**
+     * Request the given url, together with its remote md5 hash. A
+     * conditional request sends the validators stored in the sync table. The
+     * content of a modified response is either spooled to a temporary file
+     * or left open for streaming.
+     */
+    private FeedResponse fetch(String url, boolean conditional, boolean spool) throws JSONHandlerException {
+    	final long start = System.currentTimeMillis();
+    	final String md5 = getRemoteMd5(url);
+    	final HttpUriRequest request = new HttpGet(url);
+    	final RequestHash local = conditional ? SyncUtils.getLocalSync(mResolver, url) : null;
+    	if (local != null) {
+    		if (local.getEtag() != null) {
+    			request.addHeader(HEADER_IF_NONE_MATCH, local.getEtag());
+    		}
+    		if (local.getLastModified() != null) {
+    			request.addHeader(HEADER_IF_MODIFIED_SINCE, local.getLastModified());
+    		}
+    	}
+
+    	final HttpResponse resp = openRequest(request);
+    	if (resp.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+    		Log.d(TAG, url + " was not modified");
+    		return new FeedResponse(url, md5, local.getEtag(), local.getLastModified(), true);
+    	}
+
+    	final FeedResponse response = new FeedResponse(url, md5,
+    			getHeader(resp, HEADER_ETAG), getHeader(resp, HEADER_LAST_MODIFIED), false);
+    	try {
+    		final InputStream input = resp.getEntity().getContent();
+    		if (!spool) {
+    			response.input = input;
+    			return response;
+    		}
+
+    		response.file = File.createTempFile("feed", ".json", mSpoolDir);
+	    	final OutputStream output = new FileOutputStream(response.file);
+	    	try {
+	    		final byte [] buffer = new byte[BUFFER_SIZE];
+	    		int read;
+	    		while ((read = input.read(buffer)) != -1) {
+	    			output.write(buffer, 0, read);
+	    		}
+	    	} finally {
+	    		input.close();
+	    		output.close();
+	    	}
+	    	Log.d(TAG, "prefetched " + url + " in " + (System.currentTimeMillis() - start) + "ms");
+	    	return response;
+    	} catch (IOException e) {
+    		response.release();
+    		throw new JSONHandlerException("Problem spooling remote response for "
+    				+ request.getRequestLine(), e);
+    	}
+    }
+
+    private String getRemoteMd5(String url) {
+    	final SyncProbe syncProbe;
+    	synchronized (this) {
+    		syncProbe = mSyncProbe;
+    	}
+    	if (syncProbe != null) {
+    		return syncProbe.getRemoteMd5(url);
+    	}
+    	return SyncUtils.getRemoteMd5(mHttpClient, url);
+    }
+
+    private synchronized Future<FeedResponse> takePrefetched(String url) {
+    	return mPrefetched.remove(url);
+    }
+
+    private static FeedResponse await(Future<FeedResponse> future, String url) throws JSONHandlerException {
+    	try {
+    		return future.get();
+    	} catch (ExecutionException e) {
+    		if (e.getCause() instanceof JSONHandlerException) {
+    			throw (JSONHandlerException) e.getCause();
+    		}
+    		throw new JSONHandlerException("Problem prefetching " + url, e.getCause());
+    	} catch (InterruptedException e) {
+    		throw new JSONHandlerException("Interrupted while prefetching " + url, e);
+    	}
+    }
+
+    private static boolean isConditional(HttpUriRequest request) {
+    	return request.containsHeader(HEADER_IF_NONE_MATCH)
+    			|| request.containsHeader(HEADER_IF_MODIFIED_SINCE);
+    }
+
+    private static String getHeader(HttpResponse resp, String name) {
+    	final Header header = resp.getFirstHeader(name);
+    	return (header != null) ? header.getValue() : null;
+    }
+
+    /**
+     * Response of a feed request. The content is either spooled to a
+     * temporary file, left open for streaming or, when the feed was not
+     * modified, absent.
+     */
+    private static class FeedResponse {
+    	final String url;
+    	final String md5;
+    	final String etag;
+    	final String lastModified;
+    	final boolean notModified;
+    	File file;
+    	InputStream input;
+
+    	FeedResponse(String url, String md5, String etag, String lastModified, boolean notModified) {
+    		this.url = url;
+    		this.md5 = md5;
+    		this.etag = etag;
+    		this.lastModified = lastModified;
+    		this.notModified = notModified;
+    	}
+
+    	InputStream open() throws IOException {
+    		if (file != null) {
+    			return new FileInputStream(file);
+    		}
+    		final InputStream stream = input;
+    		input = null;
+    		return stream;
+    	}
+
+    	void release() {
+    		if (file != null) {
+    			file.delete();
+    			file = null;
+    		}
+    		if (input != null) {
+    			try {
+    				input.close();
+    			} catch (IOException e) {
+    				// ignore
+    			}
+    			input = null;
+    		}
+    	}
+    }
+
 }
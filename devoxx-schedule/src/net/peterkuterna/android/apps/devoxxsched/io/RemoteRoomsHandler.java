@@ -19,18 +19,20 @@ package net.peterkuterna.android.apps.devoxxsched.io;
 import static net.peterkuterna.android.apps.devoxxsched.util.ParserUtils.sanitizeId;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 
 import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleContract;
 import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleContract.Rooms;
 import net.peterkuterna.android.apps.devoxxsched.util.Lists;
+import net.peterkuterna.android.apps.devoxxsched.util.ParserUtils;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
+import android.content.ContentValues;
 import android.net.Uri;
 import android.util.Log;
 
@@ -48,42 +50,44 @@ public class RemoteRoomsHandler extends JSONHandler {
 	}
 
 	@Override
-	public ArrayList<ContentProviderOperation> parse(ArrayList<JSONArray> entries,
-			ContentResolver resolver) throws JSONException {
-		final ArrayList<ContentProviderOperation> batch = Lists.newArrayList();
+	public ArrayList<SyncOperation> parse(JSONEntries entries, ContentResolver resolver) throws JSONException {
+		final ArrayList<SyncOperation> batch = Lists.newArrayList();
 		final HashSet<String> roomIds = new HashSet<String>();
+		final HashMap<String, ContentValues> existingRooms = loadSnapshot(Rooms.CONTENT_URI, RoomsQuery.PROJECTION, RoomsQuery.ROOM_ID, resolver);
 
 		int nrEntries = 0;
-		for (JSONArray rooms : entries) {
-			Log.d(TAG, "Retrieved " + rooms.length() + " room entries.");
-			nrEntries += rooms.length();
-	
-	        for (int i = 0; i< rooms.length(); i++) {
-	            JSONObject room = rooms.getJSONObject(i);
-	            String id = room.getString("id");
-	            
-	            final String roomId = sanitizeId(id);
-	            final Uri roomUri = Rooms.buildRoomUri(roomId);
-	            roomIds.add(roomId);
-	            
-	            ContentProviderOperation.Builder builder;
-	            if (isRowExisting(Rooms.buildRoomUri(roomId), RoomsQuery.PROJECTION, resolver)) {
-	            	builder = ContentProviderOperation.newUpdate(roomUri);
-	            } else {
-		            builder = ContentProviderOperation.newInsert(Rooms.CONTENT_URI);
+		while (entries.hasNext()) {
+			JSONObject room = entries.next();
+			nrEntries++;
+	        String id = room.getString("id");
+	        
+	        final String roomId = sanitizeId(id);
+	        final Uri roomUri = Rooms.buildRoomUri(roomId);
+	        roomIds.add(roomId);
+	        
+	        final String name = room.getString("name");
+	        final String capacity = room.getString("capacity");
+	        final long fingerprint = ParserUtils.fingerprint(name, capacity);
+	        final ContentValues existingRoom = existingRooms.get(roomId);
+	        if (hasFingerprint(existingRoom, Rooms.ROOM_FINGERPRINT, fingerprint)) continue;
+	        
+	        SyncOperation.Builder builder;
+	        if (existingRoom != null) {
+	        	builder = SyncOperation.newUpdate(roomUri);
+	        } else {
+		            builder = SyncOperation.newInsert(Rooms.CONTENT_URI);
 		            builder.withValue(Rooms.ROOM_ID, roomId);
-	            }
-			    builder.withValue(Rooms.NAME, room.getString("name"));
-			    builder.withValue(Rooms.CAPACITY, room.getString("capacity"));
-			    batch.add(builder.build());
 	        }
+			    builder.withValue(Rooms.NAME, name);
+			    builder.withValue(Rooms.CAPACITY, capacity);
+			    builder.withValue(Rooms.ROOM_FINGERPRINT, fingerprint);
+			    batch.add(builder.build());
 		}
+		Log.d(TAG, "Retrieved " + nrEntries + " room entries.");
 
         if (isRemoteSync() && nrEntries > 0) {
-		    for (String lostId : getLostIds(roomIds, Rooms.CONTENT_URI, RoomsQuery.PROJECTION, RoomsQuery.ROOM_ID, resolver)) {
-		    	final Uri lostRoomUri = Rooms.buildRoomUri(lostId);
-		    	batch.add(ContentProviderOperation.newDelete(lostRoomUri).build());
-		    }
+		    batch.add(SyncOperation.newRetain(Rooms.CONTENT_URI, Rooms.ROOM_ID)
+		    		.withRetained(roomIds).build());
         }
 
 	    return batch;
@@ -92,9 +96,11 @@ public class RemoteRoomsHandler extends JSONHandler {
     private interface RoomsQuery {
         String[] PROJECTION = {
                 Rooms.ROOM_ID,
+                Rooms.ROOM_FINGERPRINT,
         };
 
         int ROOM_ID = 0;
+        int ROOM_FINGERPRINT = 1;
     }
 
 }
@@ -18,6 +18,7 @@ package net.peterkuterna.android.apps.devoxxsched.io;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 
 import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleContract;
 import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleContract.Blocks;
@@ -26,13 +27,14 @@ import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleContract.Sessi
 import net.peterkuterna.android.apps.devoxxsched.util.Lists;
 import net.peterkuterna.android.apps.devoxxsched.util.Maps;
 import net.peterkuterna.android.apps.devoxxsched.util.ParserUtils;
+import net.peterkuterna.android.apps.devoxxsched.util.Sets;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
+import android.content.ContentValues;
 import android.database.Cursor;
 import android.net.Uri;
 import android.provider.BaseColumns;
@@ -53,129 +55,164 @@ public class RemoteScheduleHandler extends JSONHandler {
 	}
 
 	@Override
-	public ArrayList<ContentProviderOperation> parse(ArrayList<JSONArray> entries, ContentResolver resolver) throws JSONException {
-		final ArrayList<ContentProviderOperation> batch = Lists.newArrayList();
-		final HashMap<String, ContentProviderOperation> blockBatchMap = Maps.newHashMap();
-		final HashMap<String, ContentProviderOperation> sessionUpdateBatchMap = Maps.newHashMap();
+	public ArrayList<SyncOperation> parse(JSONEntries entries, ContentResolver resolver) throws JSONException {
+		final ArrayList<SyncOperation> batch = Lists.newArrayList();
+		final HashSet<String> blockIds = Sets.newHashSet();
+		final ArrayList<SyncOperation> blockBatch = Lists.newArrayList();
+		final HashMap<String, SyncOperation> sessionUpdateBatchMap = Maps.newHashMap();
+		final HashMap<String, ContentValues> existingBlocks = loadSnapshot(Blocks.CONTENT_URI, BlocksQuery.PROJECTION, BlocksQuery.BLOCK_ID, resolver);
+		final HashMap<String, ContentValues> existingSessions = loadSnapshot(Sessions.CONTENT_URI, SessionsQuery.PROJECTION, SessionsQuery.SESSION_ID, resolver);
+		final HashMap<String, String> roomIds = loadRoomIds(resolver);
 		
 		int nrEntries = 0;
-		for (JSONArray schedules : entries) {
-			Log.d(TAG, "Retrieved " + schedules.length() + " schedule entries.");
-			nrEntries += schedules.length();
-	
-	        for (int i=0; i<schedules.length(); i++) {
-	            JSONObject schedule = schedules.getJSONObject(i);
-	            
-	            final long startTime = ParserUtils.parseDevoxxTime(schedule.getString("fromTime"));
-	            final long endTime = ParserUtils.parseDevoxxTime(schedule.getString("toTime"));
-			    final String kind = schedule.getString("kind");
-	            
-	            final String blockId = Blocks.generateBlockId(kind, startTime, endTime);
-	            
-	            if (!blockBatchMap.containsKey(blockId)) {
-	                final Uri blockUri = Blocks.buildBlockUri(blockId);
-	                
-	                ContentProviderOperation.Builder builder;
-	                if (isRowExisting(Blocks.buildBlockUri(blockId), BlocksQuery.PROJECTION, resolver)) {
-	                	builder = ContentProviderOperation.newUpdate(blockUri);
-	                } else {
-	    	            builder = ContentProviderOperation.newInsert(Blocks.CONTENT_URI);
-	    	            builder.withValue(Blocks.BLOCK_ID, blockId);
-	                }
-	    		    builder.withValue(Blocks.BLOCK_START, startTime);
-	    		    builder.withValue(Blocks.BLOCK_END, endTime);
-	
-	    		    final String type = schedule.getString("type");
-	    		    final String code = schedule.getString("code");
-	    		    
-	    		    if (code.startsWith("D10")) {
-	    		    	builder.withValue(Blocks.BLOCK_TITLE, type.replaceAll("\\ \\(.*\\)", ""));
-	    		    } else {
-	    		    	builder.withValue(Blocks.BLOCK_TITLE, schedule.getString("code"));
-	    		    }
-	
-	    		    builder.withValue(Blocks.BLOCK_TYPE, kind);
-	    		    blockBatchMap.put(blockId, builder.build());
-	            }
-	            
-	            if (schedule.has("presentationUri")) {
-	            	final Uri presentationUri = Uri.parse(schedule.getString("presentationUri"));
-	            	final String sessionId = presentationUri.getLastPathSegment();
-	            	final Uri sessionUri = Sessions.buildSessionUri(sessionId);
-	            	
-	            	if (isRowExisting(sessionUri, SessionsQuery.PROJECTION, resolver)) {
-		            	String roomId = null;
-		                if (schedule.has("room")) {
-		                	final String roomName = schedule.getString("room");
-		                	Cursor cursor = resolver.query(Rooms.buildRoomsWithNameUri(roomName), RoomsQuery.PROJECTION, null, null, null);
-		                	if (cursor.moveToNext()) {
-		                		roomId = cursor.getString(RoomsQuery.ROOM_ID);
-		                	}
-		                	cursor.close();
-		                }
-		            	final ContentProviderOperation.Builder builder = ContentProviderOperation.newUpdate(sessionUri);
-		            	builder.withValue(Sessions.BLOCK_ID, blockId);
-		            	builder.withValue(Sessions.ROOM_ID, roomId);
-		            	if (schedule.has("note")) {
-		            		final String note = schedule.getString("note");
-		            		if (note != null && note.trim().length() > 0) {
-		            			builder.withValue(Sessions.NOTE, note.trim());
-		            		}
-		            	}
-		            	
-		            	sessionUpdateBatchMap.put(sessionId, builder.build());
-	            	}
-	            }
-	        }
+		while (entries.hasNext()) {
+			JSONObject schedule = entries.next();
+			nrEntries++;
+
+			final long startTime = ParserUtils.parseDevoxxTime(schedule.getString("fromTime"));
+			final long endTime = ParserUtils.parseDevoxxTime(schedule.getString("toTime"));
+			final String kind = schedule.getString("kind");
+
+			final String blockId = Blocks.generateBlockId(kind, startTime, endTime);
+
+			if (blockIds.add(blockId)) {
+				final String type = schedule.getString("type");
+				final String code = schedule.getString("code");
+				final String title = code.startsWith("D10") ? type.replaceAll("\\ \\(.*\\)", "") : code;
+				final long fingerprint = ParserUtils.fingerprint(startTime, endTime, title, kind);
+				final ContentValues existingBlock = existingBlocks.get(blockId);
+
+				if (!hasFingerprint(existingBlock, Blocks.BLOCK_FINGERPRINT, fingerprint)) {
+					SyncOperation.Builder builder;
+					if (existingBlock != null) {
+						builder = SyncOperation.newUpdate(Blocks.buildBlockUri(blockId));
+					} else {
+						builder = SyncOperation.newInsert(Blocks.CONTENT_URI);
+						builder.withValue(Blocks.BLOCK_ID, blockId);
+					}
+					builder.withValue(Blocks.BLOCK_START, startTime);
+					builder.withValue(Blocks.BLOCK_END, endTime);
+					builder.withValue(Blocks.BLOCK_TITLE, title);
+					builder.withValue(Blocks.BLOCK_TYPE, kind);
+					builder.withValue(Blocks.BLOCK_FINGERPRINT, fingerprint);
+					blockBatch.add(builder.build());
+				}
+			}
+
+			if (schedule.has("presentationUri")) {
+				final Uri presentationUri = Uri.parse(schedule.getString("presentationUri"));
+				final String sessionId = presentationUri.getLastPathSegment();
+				final Uri sessionUri = Sessions.buildSessionUri(sessionId);
+
+				final ContentValues existingSession = existingSessions.get(sessionId);
+				if (existingSession != null) {
+					final String roomId = schedule.has("room") ? roomIds.get(schedule.getString("room")) : null;
+					String note = null;
+					if (schedule.has("note")) {
+						note = schedule.getString("note");
+						note = (note != null && note.trim().length() > 0) ? note.trim() : null;
+					}
+
+					// Sessions that keep their place in the schedule are not written
+					SyncOperation update = null;
+					if (!isEqual(blockId, existingSession.getAsString(Sessions.BLOCK_ID))
+							|| !isEqual(roomId, existingSession.getAsString(Sessions.ROOM_ID))
+							|| (note != null && !note.equals(existingSession.getAsString(Sessions.NOTE)))) {
+						final SyncOperation.Builder builder = SyncOperation.newUpdate(sessionUri);
+						builder.withValue(Sessions.BLOCK_ID, blockId);
+						builder.withValue(Sessions.ROOM_ID, roomId);
+						if (note != null) {
+							builder.withValue(Sessions.NOTE, note);
+						}
+						update = builder.build();
+					}
+					sessionUpdateBatchMap.put(sessionId, update);
+				}
+			}
 		}
+		Log.d(TAG, "Retrieved " + nrEntries + " schedule entries.");
         
-        batch.addAll(blockBatchMap.values());
-        batch.addAll(sessionUpdateBatchMap.values());
+        batch.addAll(blockBatch);
+        for (SyncOperation update : sessionUpdateBatchMap.values()) {
+            if (update != null) batch.add(update);
+        }
 
         if (isRemoteSync() && nrEntries > 0) {
-		    for (String lostId : getLostIds(blockBatchMap.keySet(), Blocks.CONTENT_URI, BlocksQuery.PROJECTION, BlocksQuery.BLOCK_ID, resolver)) {
-		    	if (!lostId.startsWith("lab")) {
-		    		final Uri lostBlockUri = Blocks.buildBlockUri(lostId);
-			    	batch.add(ContentProviderOperation.newDelete(lostBlockUri).build());
+		    // Lab blocks are not part of the schedule feed
+		    final SyncOperation.Builder blocksRetain = SyncOperation.newRetain(Blocks.CONTENT_URI, Blocks.BLOCK_ID)
+		    		.withRetained(blockIds);
+		    for (String existingId : existingBlocks.keySet()) {
+		    	if (existingId.startsWith("lab")) {
+		    		blocksRetain.withRetained(existingId);
 		    	}
 		    }
-		    for (String lostId : getLostIds(sessionUpdateBatchMap.keySet(), Sessions.CONTENT_URI, SessionsQuery.PROJECTION, SessionsQuery.SESSION_ID, resolver)) {
-		    	Uri deleteUri = Sessions.buildSpeakersDirUri(lostId);
-		    	batch.add(ContentProviderOperation.newDelete(deleteUri).build());
-		    	deleteUri = Sessions.buildTagsDirUri(lostId);
-		    	batch.add(ContentProviderOperation.newDelete(deleteUri).build());
-		    	deleteUri = Sessions.buildSessionUri(lostId);
-		    	batch.add(ContentProviderOperation.newDelete(deleteUri).build());
-		    }
+		    batch.add(blocksRetain.build());
+
+		    batch.add(SyncOperation.newRetain(Sessions.CONTENT_URI, Sessions.SESSION_ID)
+		    		.withRetained(sessionUpdateBatchMap.keySet()).build());
         }
 
         return batch;
 	}
 
+	/**
+	 * Reads the id of every room in one query, keyed by the room name that
+	 * the schedule entries refer to.
+	 */
+	private HashMap<String, String> loadRoomIds(ContentResolver resolver) {
+		final HashMap<String, String> roomIds = Maps.newHashMap();
+		final Cursor cursor = query(Rooms.CONTENT_URI, RoomsQuery.PROJECTION, resolver);
+		try {
+			while (cursor.moveToNext()) {
+				final String name = cursor.getString(RoomsQuery.NAME);
+				if (!roomIds.containsKey(name)) {
+					roomIds.put(name, cursor.getString(RoomsQuery.ROOM_ID));
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+		return roomIds;
+	}
+
+	private static boolean isEqual(String value, String otherValue) {
+		return value == null ? otherValue == null : value.equals(otherValue);
+	}
+
     private interface SessionsQuery {
         String[] PROJECTION = {
         		Sessions.SESSION_ID,
+        		Sessions.BLOCK_ID,
+        		Sessions.ROOM_ID,
+        		Sessions.NOTE,
         };
 
         int SESSION_ID = 0;
+        int BLOCK_ID = 1;
+        int ROOM_ID = 2;
+        int NOTE = 3;
     }
 
     private interface BlocksQuery {
         String[] PROJECTION = {
                 Blocks.BLOCK_ID,
+                Blocks.BLOCK_FINGERPRINT,
         };
 
         int BLOCK_ID = 0;
+        int BLOCK_FINGERPRINT = 1;
     }
 
    private interface RoomsQuery {
         String[] PROJECTION = {
                 BaseColumns._ID,
                 Rooms.ROOM_ID,
+                Rooms.NAME,
         };
 
         int _ID = 0;
         int ROOM_ID = 1;
+        int NAME = 2;
     }
     
 }
@@ -30,7 +30,6 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.util.Log;
 
@@ -48,30 +47,27 @@ public class RemoteSessionTypesHandler extends JSONHandler {
 	}
 
 	@Override
-	public ArrayList<ContentProviderOperation> parse(ArrayList<JSONArray> entries, ContentResolver resolver) throws JSONException {
-		final ArrayList<ContentProviderOperation> batch = Lists.newArrayList();
+	public ArrayList<SyncOperation> parse(JSONEntries entries, ContentResolver resolver) throws JSONException {
+		final ArrayList<SyncOperation> batch = Lists.newArrayList();
 		final HashSet<String> typeIds = Sets.newHashSet();
 		
 		int nrEntries = 0;
-		for (JSONArray types : entries) {
-			Log.d(TAG, "Retrieved " + types.length() + " presentation types entries.");
-			nrEntries += types.length();
-	
-	        for (int i=0; i < types.length(); i++) {
-	            JSONObject type = types.getJSONObject(i);
-	            String id = type.getString("id");
-	            
-	            final String typeId = sanitizeId(id);
-	            typeIds.add(typeId);
-	            ContentProviderOperation.Builder builder;
-	            builder = ContentProviderOperation.newInsert(Types.CONTENT_URI);
-	            builder.withValue(Types.TYPE_ID, typeId);
+		while (entries.hasNext()) {
+			JSONObject type = entries.next();
+			nrEntries++;
+	        String id = type.getString("id");
+	        
+	        final String typeId = sanitizeId(id);
+	        typeIds.add(typeId);
+	        SyncOperation.Builder builder;
+	        builder = SyncOperation.newInsert(Types.CONTENT_URI);
+	        builder.withValue(Types.TYPE_ID, typeId);
 			    builder.withValue(Types.TYPE_NAME, type.getString("name"));
 			    builder.withValue(Types.TYPE_DESCRIPTION, type.getString("description"));
 			    
-	        	batch.add(builder.build());
-	        }
+	    	batch.add(builder.build());
 		}
+		Log.d(TAG, "Retrieved " + nrEntries + " presentation types entries.");
         
         return batch;
 	}
@@ -41,9 +41,8 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.app.SearchManager;
-import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
-import android.database.Cursor;
+import android.content.ContentValues;
 import android.graphics.Color;
 import android.net.Uri;
 import android.util.Log;
@@ -81,182 +80,170 @@ public class RemoteSessionsHandler extends JSONHandler {
 	}
 
 	@Override
-	public ArrayList<ContentProviderOperation> parse(ArrayList<JSONArray> entries, ContentResolver resolver) throws JSONException {
-		final ArrayList<ContentProviderOperation> batch = Lists.newArrayList();
+	public ArrayList<SyncOperation> parse(JSONEntries entries, ContentResolver resolver) throws JSONException {
+		final ArrayList<SyncOperation> batch = Lists.newArrayList();
 		final HashSet<String> sessionIds = Sets.newHashSet();
 		final HashSet<String> trackIds = Sets.newHashSet();
 		final HashMap<String, HashSet<String>> sessionSpeakerIds = Maps.newHashMap();
 		final HashMap<String, HashSet<String>> sessionTagIds = Maps.newHashMap();
+		final HashMap<String, ContentValues> existingSessions = loadSnapshot(Sessions.CONTENT_URI, SessionsQuery.PROJECTION, SessionsQuery.SESSION_ID, resolver);
+		final HashMap<String, ContentValues> existingTracks = loadSnapshot(Tracks.CONTENT_URI, TracksQuery.PROJECTION, TracksQuery.TRACK_ID, resolver);
+		final HashMap<String, HashSet<String>> existingSessionSpeakerIds = loadLinks(Sessions.CONTENT_SPEAKERS_URI, SessionsSpeakersQuery.PROJECTION, SessionsSpeakersQuery.SESSION_ID, SessionsSpeakersQuery.SPEAKER_ID, resolver);
 		
 		int nrEntries = 0;
-		for (JSONArray sessions : entries) {
-			Log.d(TAG, "Retrieved " + sessions.length() + " presentation entries.");
-			nrEntries += sessions.length();
-	
-	        for (int i=0; i < sessions.length(); i++) {
-	            JSONObject session = sessions.getJSONObject(i);
-	            String id = session.getString("id");
-	            
-	            final String sessionId = sanitizeId(id);
-	            final Uri sessionUri = Sessions.buildSessionUri(sessionId);
-	            sessionIds.add(sessionId);
-	            int isStarred = isStarred(sessionUri, resolver);
-	
-	            boolean sessionUpdated = false;
-	            boolean newSession = false;
-	            ContentProviderOperation.Builder builder;
-	            if (isRowExisting(sessionUri, SessionsQuery.PROJECTION, resolver)) {
-	            	builder = ContentProviderOperation.newUpdate(sessionUri);
-	            	builder.withValue(Sessions.NEW, false);
-	        		sessionUpdated = isSessionUpdated(sessionUri, session, resolver);
-	    			if (isRemoteSync()) {
-	            		builder.withValue(Sessions.UPDATED, sessionUpdated);
-	            	}
-	            } else {
-	            	newSession = true;
-		            builder = ContentProviderOperation.newInsert(Sessions.CONTENT_URI);
-		            builder.withValue(Sessions.SESSION_ID, sessionId);
-		            if (!isLocalSync()) {
-		            	builder.withValue(Sessions.NEW, true);
-		            }
-	            }
-	            
-			    final String type = session.getString("type");
-			    if (newSession || sessionUpdated) {
-				    builder.withValue(Sessions.TITLE, session.getString("title"));
-				    builder.withValue(Sessions.EXPERIENCE, session.getString("experience"));
-				    builder.withValue(Sessions.TYPE, type);
-				    builder.withValue(Sessions.SUMMARY, session.getString("summary"));
-				    builder.withValue(Sessions.STARRED, isStarred);
-	            }
-			    builder.withValue(Sessions.TYPE_ID, getTypeId(type));
-			    
-	        	batch.add(builder.build());
-			    
-			    if (session.has("track")) {
-			    	final String trackName = session.getString("track");
-			    	final String trackId = Tracks.generateTrackId(trackName);
-			    	final Uri trackUri = Tracks.buildTrackUri(trackId);
-	
-				    if (!trackIds.contains(trackId)) {
-				    	trackIds.add(trackId);
-				    	
-			            ContentProviderOperation.Builder trackBuilder;
-			            if (isRowExisting(Tracks.buildTrackUri(trackId), TracksQuery.PROJECTION, resolver)) {
-			            	trackBuilder = ContentProviderOperation.newUpdate(trackUri);
-			            } else {
-			            	trackBuilder = ContentProviderOperation.newInsert(Tracks.CONTENT_URI);
-			            	trackBuilder.withValue(Tracks.TRACK_ID, trackId);
-			            }
-	
-		                trackBuilder.withValue(Tracks.TRACK_NAME, trackName);
-		                final int color = Color.parseColor(getTrackColor(trackId));
-		                trackBuilder.withValue(Tracks.TRACK_COLOR, color);
-		    		    batch.add(trackBuilder.build());
-				    }
-				    
-		            if (newSession || sessionUpdated) {
-					    builder.withValue(Sessions.TRACK_ID, trackId);
-		            }
-			    }
-			    
-			    if (session.has("speakers")) {
-				    final Uri speakerSessionsUri = Sessions.buildSpeakersDirUri(sessionId);
-			    	final JSONArray speakers = session.getJSONArray("speakers");
-					final HashSet<String> speakerIds = Sets.newHashSet();
-			    	
-			    	if (!isLocalSync()) {
-	            		final boolean sessionSpeakersUpdated = isSessionSpeakersUpdated(speakerSessionsUri, speakers, resolver);
-			    		if (sessionSpeakersUpdated) {
-				    		Log.d(TAG, "Speakers of session with id " + sessionId + " was udpated.");
-				    		batch.add(ContentProviderOperation.newUpdate(sessionUri)
-				    				.withValue(Sessions.UPDATED, true)
-				    				.build());
-			    		}
-			    	}
-			    	
-			    	for (int j = 0; j < speakers.length(); j++) {
-			    		JSONObject speaker = speakers.getJSONObject(j);
-			    		
-		            	final Uri speakerUri = Uri.parse(speaker.getString("speakerUri"));
-		            	final String speakerId = speakerUri.getLastPathSegment();
-		            	speakerIds.add(speakerId);
-	
-				    	batch.add(ContentProviderOperation.newInsert(speakerSessionsUri)
-				    			.withValue(SessionsSpeakers.SPEAKER_ID, speakerId)
-				    			.withValue(SessionsSpeakers.SESSION_ID, sessionId).build());
-			    	}
-			    	
-			    	sessionSpeakerIds.put(sessionId, speakerIds);
-			    }
-			    
-			    if (session.has("tags")) {
-				    final Uri tagSessionsUri = Sessions.buildTagsDirUri(sessionId);
-			    	final JSONArray tags = session.getJSONArray("tags");
-			    	final HashSet<String> tagIds = Sets.newHashSet();
-			    	
-			    	for (int j = 0; j < tags.length(); j++) {
-			    		JSONObject tag = tags.getJSONObject(j);
-			    		final String tagName = tag.getString("name").toLowerCase();
-			    		final String tagId = Tags.generateTagId(tagName);
-			    		tagIds.add(tagId);
-			    		
-			            batch.add(ContentProviderOperation.newInsert(Tags.CONTENT_URI)
-					            .withValue(Tags.TAG_ID, tagId)
-			            		.withValue(Tags.TAG_NAME, tagName).build());
-			    		
-	                    batch.add(ContentProviderOperation.newInsert(SearchSuggest.CONTENT_URI)
-	                            .withValue(SearchManager.SUGGEST_COLUMN_TEXT_1, tagName).build());
-
-	                    batch.add(ContentProviderOperation.newInsert(tagSessionsUri)
-			    				.withValue(SessionsTags.TAG_ID, tagId)
-			    				.withValue(SessionsTags.SESSION_ID, sessionId).build());
-			    	}
-
-			    	sessionTagIds.put(sessionId, tagIds);
-			    }
-	        }
+		while (entries.hasNext()) {
+			JSONObject session = entries.next();
+			nrEntries++;
+			String id = session.getString("id");
+
+			final String sessionId = sanitizeId(id);
+			final Uri sessionUri = Sessions.buildSessionUri(sessionId);
+			sessionIds.add(sessionId);
+			final ContentValues existingSession = existingSessions.get(sessionId);
+			final int isStarred = isStarred(existingSession);
+
+			final String type = session.getString("type");
+			final String trackName = session.has("track") ? session.getString("track") : null;
+			final String trackId = trackName != null ? Tracks.generateTrackId(trackName) : null;
+			final long fingerprint = ParserUtils.fingerprint(session.getString("title"),
+					session.getString("summary"), session.getString("experience"), type, trackName);
+
+			boolean sessionUpdated = false;
+			boolean newSession = false;
+			boolean build = false;
+			SyncOperation.Builder builder;
+			if (existingSession != null) {
+				builder = SyncOperation.newUpdate(sessionUri);
+				if (isFlagSet(existingSession, Sessions.NEW)) {
+					builder.withValue(Sessions.NEW, false);
+					build = true;
+				}
+				sessionUpdated = !hasFingerprint(existingSession, Sessions.SESSION_FINGERPRINT, fingerprint);
+				// Rows synced before fingerprints existed are filled in silently
+				final boolean flagUpdated = sessionUpdated
+						&& existingSession.getAsLong(Sessions.SESSION_FINGERPRINT) != null;
+				if (isRemoteSync() && flagUpdated != isFlagSet(existingSession, Sessions.UPDATED)) {
+					builder.withValue(Sessions.UPDATED, flagUpdated);
+					build = true;
+				}
+			} else {
+				newSession = true;
+				builder = SyncOperation.newInsert(Sessions.CONTENT_URI);
+				builder.withValue(Sessions.SESSION_ID, sessionId);
+				if (!isLocalSync()) {
+					builder.withValue(Sessions.NEW, true);
+				}
+			}
+
+			if (newSession || sessionUpdated) {
+				builder.withValue(Sessions.TITLE, session.getString("title"));
+				builder.withValue(Sessions.EXPERIENCE, session.getString("experience"));
+				builder.withValue(Sessions.TYPE, type);
+				builder.withValue(Sessions.SUMMARY, session.getString("summary"));
+				builder.withValue(Sessions.STARRED, isStarred);
+				builder.withValue(Sessions.TYPE_ID, getTypeId(type));
+				if (trackId != null) {
+					builder.withValue(Sessions.TRACK_ID, trackId);
+				}
+				builder.withValue(Sessions.SESSION_FINGERPRINT, fingerprint);
+				build = true;
+			}
+
+			if (build) batch.add(builder.build());
+
+			if (trackId != null && trackIds.add(trackId)) {
+				final int color = Color.parseColor(getTrackColor(trackId));
+				final long trackFingerprint = ParserUtils.fingerprint(trackName, color);
+				final ContentValues existingTrack = existingTracks.get(trackId);
+
+				if (!hasFingerprint(existingTrack, Tracks.TRACK_FINGERPRINT, trackFingerprint)) {
+					SyncOperation.Builder trackBuilder;
+					if (existingTrack != null) {
+						trackBuilder = SyncOperation.newUpdate(Tracks.buildTrackUri(trackId));
+					} else {
+						trackBuilder = SyncOperation.newInsert(Tracks.CONTENT_URI);
+						trackBuilder.withValue(Tracks.TRACK_ID, trackId);
+					}
+
+					trackBuilder.withValue(Tracks.TRACK_NAME, trackName);
+					trackBuilder.withValue(Tracks.TRACK_COLOR, color);
+					trackBuilder.withValue(Tracks.TRACK_FINGERPRINT, trackFingerprint);
+					batch.add(trackBuilder.build());
+				}
+			}
+
+			if (session.has("speakers")) {
+				final Uri speakerSessionsUri = Sessions.buildSpeakersDirUri(sessionId);
+				final JSONArray speakers = session.getJSONArray("speakers");
+				final HashSet<String> speakerIds = Sets.newHashSet();
+
+				if (!isLocalSync()) {
+					final boolean sessionSpeakersUpdated = isSessionSpeakersUpdated(existingSessionSpeakerIds.get(sessionId), speakers);
+					if (sessionSpeakersUpdated) {
+						Log.d(TAG, "Speakers of session with id " + sessionId + " was udpated.");
+						batch.add(SyncOperation.newUpdate(sessionUri)
+								.withValue(Sessions.UPDATED, true)
+								.build());
+					}
+				}
+
+				for (int j = 0; j < speakers.length(); j++) {
+					JSONObject speaker = speakers.getJSONObject(j);
+
+					final Uri speakerUri = Uri.parse(speaker.getString("speakerUri"));
+					final String speakerId = speakerUri.getLastPathSegment();
+					speakerIds.add(speakerId);
+
+					batch.add(SyncOperation.newInsert(speakerSessionsUri)
+							.withValue(SessionsSpeakers.SPEAKER_ID, speakerId)
+							.withValue(SessionsSpeakers.SESSION_ID, sessionId).build());
+				}
+
+				sessionSpeakerIds.put(sessionId, speakerIds);
+			}
+
+			if (session.has("tags")) {
+				final Uri tagSessionsUri = Sessions.buildTagsDirUri(sessionId);
+				final JSONArray tags = session.getJSONArray("tags");
+				final HashSet<String> tagIds = Sets.newHashSet();
+
+				for (int j = 0; j < tags.length(); j++) {
+					JSONObject tag = tags.getJSONObject(j);
+					final String tagName = tag.getString("name").toLowerCase();
+					final String tagId = Tags.generateTagId(tagName);
+					tagIds.add(tagId);
+
+					batch.add(SyncOperation.newInsert(Tags.CONTENT_URI)
+							.withValue(Tags.TAG_ID, tagId)
+							.withValue(Tags.TAG_NAME, tagName).build());
+
+					batch.add(SyncOperation.newInsert(SearchSuggest.CONTENT_URI)
+							.withValue(SearchManager.SUGGEST_COLUMN_TEXT_1, tagName).build());
+
+					batch.add(SyncOperation.newInsert(tagSessionsUri)
+							.withValue(SessionsTags.TAG_ID, tagId)
+							.withValue(SessionsTags.SESSION_ID, sessionId).build());
+				}
+
+				sessionTagIds.put(sessionId, tagIds);
+			}
+
+			flushIfFull(batch);
 		}
+		Log.d(TAG, "Retrieved " + nrEntries + " presentation entries.");
         
         if (isRemoteSync() && nrEntries > 0) {
-        	for (Entry<String, HashSet<String>> entry : sessionSpeakerIds.entrySet()) {
-        		String sessionId = entry.getKey();
-        		HashSet<String> speakerIds = entry.getValue();
-			    final Uri speakerSessionsUri = Sessions.buildSpeakersDirUri(sessionId);
-    	    	HashSet<String> lostSpeakerIds = getLostIds(speakerIds, speakerSessionsUri, SpeakersQuery.PROJECTION, SpeakersQuery.SPEAKER_ID, resolver);
-            	for (String lostSpeakerId : lostSpeakerIds) {
-	        		final Uri deleteUri = Sessions.buildSessionSpeakerUri(sessionId, lostSpeakerId);
-			    	batch.add(ContentProviderOperation.newDelete(deleteUri).build());
-            	}
-        	}
-
-        	for (Entry<String, HashSet<String>> entry : sessionTagIds.entrySet()) {
-        		String sessionId = entry.getKey();
-        		HashSet<String> tagIds = entry.getValue();
-			    final Uri tagSessionsUri = Sessions.buildTagsDirUri(sessionId);
-    	    	HashSet<String> lostTagIds = getLostIds(tagIds, tagSessionsUri, TagsQuery.PROJECTION, TagsQuery.TAG_ID, resolver);
-            	for (String lostTagId : lostTagIds) {
-	        		final Uri deleteUri = Sessions.buildSessionTagUri(sessionId, lostTagId);
-			    	batch.add(ContentProviderOperation.newDelete(deleteUri).build());
-            	}
-        	}
-
-        	HashSet<String> lostTrackIds = getLostIds(trackIds, Tracks.CONTENT_URI, TracksQuery.PROJECTION, TracksQuery.TRACK_ID, resolver);
-        	for (String lostTrackId : lostTrackIds) {
-        		Uri deleteUri = Tracks.buildSessionsUri(lostTrackId);
-		    	batch.add(ContentProviderOperation.newDelete(deleteUri).build());
-		    	deleteUri = Tracks.buildTrackUri(lostTrackId);
-		    	batch.add(ContentProviderOperation.newDelete(deleteUri).build());
-        	}
-        	HashSet<String> lostSessionIds = getLostIds(sessionIds, Sessions.CONTENT_URI, SessionsQuery.PROJECTION, SessionsQuery.SESSION_ID, resolver);
-        	for (String lostSessionId : lostSessionIds) {
-		    	Uri deleteUri = Sessions.buildSpeakersDirUri(lostSessionId);
-		    	batch.add(ContentProviderOperation.newDelete(deleteUri).build());
-		    	deleteUri = Sessions.buildTagsDirUri(lostSessionId);
-		    	batch.add(ContentProviderOperation.newDelete(deleteUri).build());
-		    	deleteUri = Sessions.buildSessionUri(lostSessionId);
-		    	batch.add(ContentProviderOperation.newDelete(deleteUri).build());
-        	}
+        	// Links of the synced sessions that are no longer in the feed
+        	batch.add(newLinksRetain(Sessions.CONTENT_SPEAKERS_URI,
+        			SessionsSpeakers.SESSION_ID, SessionsSpeakers.SPEAKER_ID, sessionSpeakerIds));
+        	batch.add(newLinksRetain(Sessions.CONTENT_TAGS_URI,
+        			SessionsTags.SESSION_ID, SessionsTags.TAG_ID, sessionTagIds));
+
+        	// Deletes cascade from tracks to sessions and on to their links
+        	batch.add(SyncOperation.newRetain(Tracks.CONTENT_URI, Tracks.TRACK_ID)
+        			.withRetained(trackIds).build());
+        	batch.add(SyncOperation.newRetain(Sessions.CONTENT_URI, Sessions.SESSION_ID)
+        			.withRetained(sessionIds).build());
         }
         
         return batch;
@@ -296,93 +283,73 @@ public class RemoteSessionsHandler extends JSONHandler {
 		}
 	}
 	
-	private static int isStarred(Uri uri, ContentResolver resolver) {
-        final Cursor cursor = resolver.query(uri, SessionsQuery.PROJECTION, null, null, null);
-        int starred = 0;
-        try {
-            if (cursor.moveToFirst()) {
-            	starred = cursor.getInt(SessionsQuery.STARRED);
-            }
-        } finally {
-            cursor.close();
-        }
-        return starred;
+	private static int isStarred(ContentValues values) {
+		if (values == null) return 0;
+		final Integer starred = values.getAsInteger(Sessions.STARRED);
+		return (starred != null) ? starred : 0;
     }
 	
-	private static boolean isSessionUpdated(Uri uri, JSONObject session, ContentResolver resolver) throws JSONException {
-        final Cursor cursor = resolver.query(uri, SessionsQuery.PROJECTION, null, null, null);
-        try {
-            if (!cursor.moveToFirst()) return false;
-
-            final String curTitle = cursor.getString(SessionsQuery.TITLE).toLowerCase().trim();
-        	final String curSummary = cursor.getString(SessionsQuery.SUMMARY).toLowerCase().trim();
-        	final String curExperience = cursor.getString(SessionsQuery.EXPERIENCE).toLowerCase().trim();
-        	final String curType = cursor.getString(SessionsQuery.TYPE).toLowerCase().trim();
-        	final String newTitle = session.getString("title").toLowerCase().trim();
-        	final String newSummary = session.getString("summary").toLowerCase().trim();
-        	final String newExperience = session.getString("experience").toLowerCase().trim();
-        	final String newType = session.getString("type").toLowerCase().trim();
-        	
-        	return (!curTitle.equals(newTitle)
-        			|| !curSummary.equals(newSummary)
-        			|| !curExperience.equals(newExperience)
-        			|| !curType.equals(newType));
-        } finally {
-            cursor.close();
-        }
+	private static boolean isFlagSet(ContentValues values, String column) {
+		final Integer flag = values.getAsInteger(column);
+		return flag != null && flag != 0;
 	}
 
-	private static boolean isSessionSpeakersUpdated(Uri uri, JSONArray speakers, ContentResolver resolver) throws JSONException {
-        final Cursor cursor = resolver.query(uri, SpeakersQuery.PROJECTION, null, null, null);
-        try {
-            if (!cursor.moveToFirst()) return false;
-            return cursor.getCount() != speakers.length();
-        } finally {
-            cursor.close();
-        }
+	/**
+	 * Retain the given links of every session in the map, the links of the
+	 * other sessions are left alone.
+	 */
+	private static SyncOperation newLinksRetain(Uri uri, String sessionColumn, String linkColumn,
+			HashMap<String, HashSet<String>> links) {
+		final SyncOperation.Builder builder = SyncOperation.newRetain(uri, sessionColumn, linkColumn);
+		for (Entry<String, HashSet<String>> entry : links.entrySet()) {
+			final String sessionId = entry.getKey();
+			builder.withRetained(sessionId);
+			for (String linkId : entry.getValue()) {
+				builder.withRetained(sessionId, linkId);
+			}
+		}
+		return builder.build();
+	}
+
+	private static boolean isSessionSpeakersUpdated(HashSet<String> speakerIds, JSONArray speakers) {
+        if (speakerIds == null) return false;
+        return speakerIds.size() != speakers.length();
 	}
 
     private interface SessionsQuery {
         String[] PROJECTION = {
         		Sessions.SESSION_ID,
-        		Sessions.TITLE,
-        		Sessions.SUMMARY,
-        		Sessions.EXPERIENCE,
-        		Sessions.TYPE,
-        		Sessions.TYPE_ID,
                 Sessions.STARRED,
+                Sessions.NEW,
+                Sessions.UPDATED,
+                Sessions.SESSION_FINGERPRINT,
         };
 
         int SESSION_ID = 0;
-        int TITLE = 1;
-        int SUMMARY = 2;
-        int EXPERIENCE = 3;
-        int TYPE = 4;
-        int STARRED = 5;
+        int STARRED = 1;
+        int NEW = 2;
+        int UPDATED = 3;
+        int SESSION_FINGERPRINT = 4;
     }
 
-    private interface SpeakersQuery {
+    private interface SessionsSpeakersQuery {
         String[] PROJECTION = {
-        		Speakers.SPEAKER_ID,
+        		SessionsSpeakers.SESSION_ID,
+        		SessionsSpeakers.SPEAKER_ID,
         };
 
-        int SPEAKER_ID = 0;
-    }
-
-    private interface TagsQuery {
-        String[] PROJECTION = {
-        		Tags.TAG_ID,
-        };
-
-        int TAG_ID = 0;
+        int SESSION_ID = 0;
+        int SPEAKER_ID = 1;
     }
 
     private interface TracksQuery {
         String[] PROJECTION = {
                 Tracks.TRACK_ID,
+                Tracks.TRACK_FINGERPRINT,
         };
 
         int TRACK_ID = 0;
+        int TRACK_FINGERPRINT = 1;
     }
 
 }
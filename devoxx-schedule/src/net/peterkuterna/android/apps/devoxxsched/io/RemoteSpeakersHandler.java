@@ -19,19 +19,20 @@ package net.peterkuterna.android.apps.devoxxsched.io;
 import static net.peterkuterna.android.apps.devoxxsched.util.ParserUtils.sanitizeId;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 
 import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleContract;
 import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleContract.Speakers;
 import net.peterkuterna.android.apps.devoxxsched.util.Lists;
+import net.peterkuterna.android.apps.devoxxsched.util.ParserUtils;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
-import android.database.Cursor;
+import android.content.ContentValues;
 import android.net.Uri;
 import android.util.Log;
 
@@ -49,100 +50,61 @@ public class RemoteSpeakersHandler extends JSONHandler {
 	}
 
 	@Override
-	public ArrayList<ContentProviderOperation> parse(ArrayList<JSONArray> entries,
-			ContentResolver resolver) throws JSONException {
-		final ArrayList<ContentProviderOperation> batch = Lists.newArrayList();
+	public ArrayList<SyncOperation> parse(JSONEntries entries, ContentResolver resolver) throws JSONException {
+		final ArrayList<SyncOperation> batch = Lists.newArrayList();
 		final HashSet<String> speakerIds = new HashSet<String>();
+		final HashMap<String, ContentValues> existingSpeakers = loadSnapshot(Speakers.CONTENT_URI, SpeakersQuery.PROJECTION, SpeakersQuery.SPEAKER_ID, resolver);
 		
 		int nrEntries = 0;
-		for (JSONArray speakers : entries) {
-			Log.d(TAG, "Retrieved " + speakers.length() + " speaker entries.");
-			nrEntries += speakers.length();
-	
-	        for (int i=0; i < speakers.length(); i++) {
-	            JSONObject speaker = speakers.getJSONObject(i);
-	            String id = speaker.getString("id");
-	            
-	            final String speakerId = sanitizeId(id);
-	            final Uri speakerUri = Speakers.buildSpeakerUri(speakerId);
-	            speakerIds.add(speakerId);
-	            
-	            boolean speakerUpdated = false;
-	            boolean newSpeaker = false;
-	            boolean build = false;
-	            ContentProviderOperation.Builder builder;
-	            if (isRowExisting(Speakers.buildSpeakerUri(speakerId), SpeakersQuery.PROJECTION, resolver)) {
-	            	builder = ContentProviderOperation.newUpdate(speakerUri);
-	            	speakerUpdated = isSpeakerUpdated(speakerUri, speaker, resolver);
-	            } else {
-	            	newSpeaker = true;
-		            builder = ContentProviderOperation.newInsert(Speakers.CONTENT_URI);
-				    builder.withValue(Speakers.SPEAKER_ID, speakerId);
-				    build = true;
-	            }
-	            
-	            if (newSpeaker || speakerUpdated) {
-				    builder.withValue(Speakers.FIRST_NAME, speaker.getString("firstName"));
-				    builder.withValue(Speakers.LAST_NAME, speaker.getString("lastName"));
-				    builder.withValue(Speakers.BIO, speaker.getString("bio"));
-				    builder.withValue(Speakers.COMPANY, speaker.getString("company"));
-				    builder.withValue(Speakers.IMAGE_URL, speaker.getString("imageURI"));
-				    build = true;
-	            }
-	            if (build) batch.add(builder.build());
+		while (entries.hasNext()) {
+			JSONObject speaker = entries.next();
+			nrEntries++;
+	        String id = speaker.getString("id");
+	        
+	        final String speakerId = sanitizeId(id);
+	        final Uri speakerUri = Speakers.buildSpeakerUri(speakerId);
+	        speakerIds.add(speakerId);
+	        
+	        final long fingerprint = ParserUtils.fingerprint(speaker.getString("firstName"),
+	        		speaker.getString("lastName"), speaker.getString("bio"),
+	        		speaker.getString("company"), speaker.getString("imageURI"));
+	        final ContentValues existingSpeaker = existingSpeakers.get(speakerId);
+	        if (!hasFingerprint(existingSpeaker, Speakers.SPEAKER_FINGERPRINT, fingerprint)) {
+		        SyncOperation.Builder builder;
+		        if (existingSpeaker != null) {
+		        	builder = SyncOperation.newUpdate(speakerUri);
+		        } else {
+			            builder = SyncOperation.newInsert(Speakers.CONTENT_URI);
+					    builder.withValue(Speakers.SPEAKER_ID, speakerId);
+		        }
+			    builder.withValue(Speakers.FIRST_NAME, speaker.getString("firstName"));
+			    builder.withValue(Speakers.LAST_NAME, speaker.getString("lastName"));
+			    builder.withValue(Speakers.BIO, speaker.getString("bio"));
+			    builder.withValue(Speakers.COMPANY, speaker.getString("company"));
+			    builder.withValue(Speakers.IMAGE_URL, speaker.getString("imageURI"));
+			    builder.withValue(Speakers.SPEAKER_FINGERPRINT, fingerprint);
+			    batch.add(builder.build());
 	        }
+	        flushIfFull(batch);
 		}
+		Log.d(TAG, "Retrieved " + nrEntries + " speaker entries.");
         
         if (isRemoteSync() && nrEntries > 0) {
-		    for (String lostId : getLostIds(speakerIds, Speakers.CONTENT_URI, SpeakersQuery.PROJECTION, SpeakersQuery.SPEAKER_ID, resolver)) {
-		    	Uri deleteUri = Speakers.buildSessionsDirUri(lostId);
-		    	batch.add(ContentProviderOperation.newDelete(deleteUri).build());
-		    	deleteUri = Speakers.buildSpeakerUri(lostId);
-		    	batch.add(ContentProviderOperation.newDelete(deleteUri).build());
-		    }
+		    batch.add(SyncOperation.newRetain(Speakers.CONTENT_URI, Speakers.SPEAKER_ID)
+		    		.withRetained(speakerIds).build());
         }
 
         return batch;
 	}
 
-	private static boolean isSpeakerUpdated(Uri uri, JSONObject speaker, ContentResolver resolver) throws JSONException {
-        final Cursor cursor = resolver.query(uri, SpeakersQuery.PROJECTION, null, null, null);
-        try {
-            if (!cursor.moveToFirst()) return false;
-
-            final String curFirstName = cursor.getString(SpeakersQuery.FIRST_NAME).toLowerCase().trim();
-        	final String curLastName = cursor.getString(SpeakersQuery.LAST_NAME).toLowerCase().trim();
-        	final String curBio = cursor.getString(SpeakersQuery.BIO).toLowerCase().trim();
-        	final String curCompany = cursor.getString(SpeakersQuery.COMPANY).toLowerCase().trim();
-        	final String newFirstName = speaker.has("firstName") ? speaker.getString("firstName").toLowerCase().trim() : curFirstName;
-        	final String newLastName = speaker.has("lastName") ? speaker.getString("lastName").toLowerCase().trim() : curLastName;
-        	final String newBio = speaker.has("bio") ? speaker.getString("bio").toLowerCase().trim() : curBio;
-        	final String newCompany = speaker.has("company") ? speaker.getString("company").toLowerCase().trim() : curCompany;
-        	
-        	return (!curFirstName.equals(newFirstName)
-        			|| !curLastName.equals(newLastName)
-        			|| !curBio.equals(newBio)
-        			|| !curCompany.equals(newCompany));
-        } finally {
-            cursor.close();
-        }
-	}
-
-	
     private interface SpeakersQuery {
         String[] PROJECTION = {
                 Speakers.SPEAKER_ID,
-                Speakers.FIRST_NAME,
-                Speakers.LAST_NAME,
-                Speakers.BIO,
-                Speakers.COMPANY,
+                Speakers.SPEAKER_FINGERPRINT,
         };
 
         int SPEAKER_ID = 0;
-        int FIRST_NAME = 1;
-        int LAST_NAME = 2;
-        int BIO = 3;
-        int COMPANY = 4;
+        int SPEAKER_FINGERPRINT = 1;
     }
 
 }
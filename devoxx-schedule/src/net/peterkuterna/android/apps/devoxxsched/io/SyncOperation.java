@@ -1,6 +1,16 @@
 package net.peterkuterna.android.apps.devoxxsched.io;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Map.Entry;
+
+import net.peterkuterna.android.apps.devoxxsched.util.Lists;
+
+import android.content.ContentProviderOperation;
 import android.content.ContentValues;
+import android.database.DatabaseUtils;
 import android.net.Uri;
 
 public class SyncOperation {
@@ -8,17 +18,27 @@ public class SyncOperation {
     public final static int TYPE_INSERT = 1;
     public final static int TYPE_UPDATE = 2;
     public final static int TYPE_DELETE = 3;
+    public final static int TYPE_RETAIN = 4;
+
+    /** Separates the keys of a row when a retain is done through a selection. */
+    private final static String KEY_SEPARATOR = "\u0001";
 
     private final static String TAG = "SyncOperation";
 
     private final int mType;
     private final Uri mUri;
     private final ContentValues mValues;
+    private final boolean mYieldAllowed;
+    private final String [] mKeyColumns;
+    private final ArrayList<String []> mRetainedKeys;
 
     public SyncOperation(Builder builder) {
         mType = builder.mType;
         mUri = builder.mUri;
         mValues = builder.mValues;
+        mYieldAllowed = builder.mYieldAllowed;
+        mKeyColumns = builder.mKeyColumns;
+        mRetainedKeys = builder.mRetainedKeys;
     }
     
     public static Builder newInsert(Uri uri) {
@@ -33,6 +53,23 @@ public class SyncOperation {
     	return new Builder(uri, TYPE_DELETE);
     }
 
+    /**
+     * Create a {@link Builder} for an operation that deletes every row of the
+     * given {@link Uri} whose key was not retained with
+     * {@link Builder#withRetained(String...)}. With two key columns the first
+     * one scopes the operation: only rows whose first key was retained are
+     * considered, so retaining just a first key removes all of its rows.
+     */
+    public static Builder newRetain(Uri uri, String... keyColumns) {
+    	if (keyColumns.length < 1 || keyColumns.length > 2) {
+    		throw new IllegalArgumentException("One or two key columns required");
+    	}
+    	final Builder builder = new Builder(uri, TYPE_RETAIN);
+    	builder.mKeyColumns = keyColumns;
+    	builder.mRetainedKeys = Lists.newArrayList();
+    	return builder;
+    }
+
     public int getType() {
 		return mType;
 	}
@@ -44,7 +81,132 @@ public class SyncOperation {
 	public ContentValues getValues() {
 		return mValues;
 	}
+
+	/**
+	 * Returns the key columns of a retain operation.
+	 */
+	public String [] getKeyColumns() {
+		return mKeyColumns;
+	}
+
+	/**
+	 * Returns the retained keys of a retain operation, a second key may be
+	 * null when only the first key was retained.
+	 */
+	public ArrayList<String []> getRetainedKeys() {
+		return mRetainedKeys;
+	}
+
+	/**
+	 * Returns a key that is the same for inserts of the same values into the
+	 * same {@link Uri}, or null when this is not an insert.
+	 */
+	public String getInsertKey() {
+		if (mType != TYPE_INSERT) return null;
+		final StringBuilder key = new StringBuilder(mUri.toString());
+		if (mValues != null) {
+			final String [] columns = new String[mValues.size()];
+			int i = 0;
+			for (Entry<String, Object> entry : mValues.valueSet()) {
+				columns[i++] = entry.getKey();
+			}
+			Arrays.sort(columns);
+			for (String column : columns) {
+				key.append(KEY_SEPARATOR).append(column).append('=').append(mValues.get(column));
+			}
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Returns true if the transaction may be yielded to other threads
+	 * before this operation is applied.
+	 */
+	public boolean isYieldAllowed() {
+		return mYieldAllowed;
+	}
 	
+	/**
+	 * Convert this operation into a {@link ContentProviderOperation}, used
+	 * when the operations are applied through a
+	 * {@link android.content.ContentResolver}.
+	 */
+	public ContentProviderOperation toContentProviderOperation() {
+		return toContentProviderOperation(mYieldAllowed);
+	}
+
+	/**
+	 * Convert this operation into a {@link ContentProviderOperation} that may
+	 * or may not yield the transaction.
+	 */
+	public ContentProviderOperation toContentProviderOperation(boolean yieldAllowed) {
+		final ContentProviderOperation.Builder builder;
+		switch (mType) {
+			case TYPE_INSERT:
+				builder = ContentProviderOperation.newInsert(mUri);
+				break;
+			case TYPE_UPDATE:
+				builder = ContentProviderOperation.newUpdate(mUri);
+				break;
+			case TYPE_RETAIN:
+				builder = ContentProviderOperation.newDelete(mUri);
+				addRetainSelection(builder);
+				break;
+			default:
+				builder = ContentProviderOperation.newDelete(mUri);
+				break;
+		}
+		if (mValues != null) {
+			builder.withValues(mValues);
+		}
+		builder.withYieldAllowed(yieldAllowed);
+		return builder.build();
+	}
+
+	/**
+	 * Express the retained keys as a selection, which is far slower than the
+	 * keys staged by the batch writer but works for any provider. The keys
+	 * are inlined rather than bound, as a full retain easily has more keys
+	 * than SQLite allows host parameters.
+	 */
+	private void addRetainSelection(ContentProviderOperation.Builder builder) {
+		final LinkedHashSet<String> scope = new LinkedHashSet<String>();
+		final LinkedHashSet<String> keys = new LinkedHashSet<String>();
+		for (String [] retainedKey : mRetainedKeys) {
+			if (mKeyColumns.length == 1) {
+				keys.add(retainedKey[0]);
+			} else {
+				scope.add(retainedKey[0]);
+				if (retainedKey[1] != null) {
+					keys.add(retainedKey[0] + KEY_SEPARATOR + retainedKey[1]);
+				}
+			}
+		}
+
+		final StringBuilder selection = new StringBuilder();
+		if (mKeyColumns.length == 1) {
+			selection.append(mKeyColumns[0]);
+		} else {
+			selection.append(mKeyColumns[0]).append(" IN (");
+			appendValues(selection, scope);
+			selection.append(") AND ").append(mKeyColumns[0]).append("||'").append(KEY_SEPARATOR)
+					.append("'||").append(mKeyColumns[1]);
+		}
+		selection.append(" NOT IN (");
+		appendValues(selection, keys);
+		selection.append(")");
+		builder.withSelection(selection.toString(), null);
+	}
+
+	private static void appendValues(StringBuilder selection, Collection<String> values) {
+		boolean first = true;
+		for (String value : values) {
+			if (!first) selection.append(',');
+			DatabaseUtils.appendEscapedSQLString(selection, value);
+			first = false;
+		}
+	}
+
 	public boolean isInsertOperation() {
 		return mType == TYPE_INSERT;
 	}
@@ -57,11 +219,18 @@ public class SyncOperation {
 		return mType == TYPE_DELETE;
 	}
 
+	public boolean isRetainOperation() {
+		return mType == TYPE_RETAIN;
+	}
+
 	public static class Builder {
 		
 		private final int mType;
 		private final Uri mUri;
 		private ContentValues mValues;
+		private boolean mYieldAllowed;
+		private String [] mKeyColumns;
+		private ArrayList<String []> mRetainedKeys;
 		
 		public Builder(Uri uri, int type) {
 			this.mUri = uri;
@@ -71,6 +240,36 @@ public class SyncOperation {
 		public SyncOperation build() {
 			return new SyncOperation(this);
 		}
+
+		public Builder withYieldAllowed(boolean yieldAllowed) {
+			mYieldAllowed = yieldAllowed;
+			return this;
+		}
+
+		/**
+		 * Retain the rows with the given key. For an operation with two key
+		 * columns, passing only the first key keeps nothing but puts all rows
+		 * with that first key in scope.
+		 */
+		public Builder withRetained(String... keys) {
+			if (mRetainedKeys == null) {
+				throw new IllegalStateException("Only retain operations have retained keys");
+			}
+			final String [] retainedKey = new String[mKeyColumns.length];
+			System.arraycopy(keys, 0, retainedKey, 0, Math.min(keys.length, retainedKey.length));
+			mRetainedKeys.add(retainedKey);
+			return this;
+		}
+
+		/**
+		 * Retain the rows with any of the given first keys.
+		 */
+		public Builder withRetained(Collection<String> keys) {
+			for (String key : keys) {
+				withRetained(key);
+			}
+			return this;
+		}
 		
         public Builder withValue(String key, Object value) {
             if (mValues == null) {
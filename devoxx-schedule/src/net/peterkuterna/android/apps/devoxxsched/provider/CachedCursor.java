@@ -0,0 +1,162 @@
+/*
+ * Copyright 2010 Peter Kuterna
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.peterkuterna.android.apps.devoxxsched.provider;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+
+
+/**
+ * {@link Cursor} over a result materialized by the {@link QueryCache}.
+ * Unlike a {@link android.database.MatrixCursor}, {@link #requery()} loads
+ * the rows again through its {@link Loader}, so adapters and managed
+ * cursors see the current data after a change.
+ */
+class CachedCursor extends AbstractCursor {
+
+	/**
+	 * Runs the query behind a {@link CachedCursor} again.
+	 */
+	interface Loader {
+		Cursor load();
+	}
+
+	private String [] mColumns;
+	private Object [][] mRows;
+	private Loader mLoader;
+
+	CachedCursor(String [] columns, Object [][] rows) {
+		mColumns = columns;
+		mRows = rows;
+	}
+
+	void setLoader(Loader loader) {
+		mLoader = loader;
+	}
+
+	/**
+	 * The current rows, shared with the caller. They are never modified, a
+	 * {@link #requery()} replaces them.
+	 */
+	Object [][] getRows() {
+		return mRows;
+	}
+
+	/**
+	 * Read the remaining rows of the given {@link Cursor} as strings, the
+	 * way they are kept in the {@link QueryCache}.
+	 */
+	static Object [][] readRows(Cursor cursor) {
+		final int columnCount = cursor.getColumnCount();
+		final Object [][] rows = new Object[cursor.getCount()][];
+		int i = 0;
+		cursor.moveToPosition(-1);
+		while (cursor.moveToNext()) {
+			final Object [] row = new Object[columnCount];
+			for (int j = 0; j < columnCount; j++) {
+				row[j] = cursor.isNull(j) ? null : cursor.getString(j);
+			}
+			rows[i++] = row;
+		}
+		return rows;
+	}
+
+	@Override
+	public boolean requery() {
+		if (isClosed()) {
+			return false;
+		}
+		if (mLoader != null) {
+			final Cursor cursor = mLoader.load();
+			try {
+				if (cursor instanceof CachedCursor) {
+					mColumns = ((CachedCursor) cursor).mColumns;
+					mRows = ((CachedCursor) cursor).mRows;
+				} else {
+					mColumns = cursor.getColumnNames();
+					mRows = readRows(cursor);
+				}
+			} finally {
+				cursor.close();
+			}
+		}
+		mPos = -1;
+		return super.requery();
+	}
+
+	@Override
+	public int getCount() {
+		return mRows.length;
+	}
+
+	@Override
+	public String [] getColumnNames() {
+		return mColumns;
+	}
+
+	private Object get(int column) {
+		if (column < 0 || column >= mColumns.length) {
+			throw new IllegalArgumentException("Column index " + column + " out of range");
+		}
+		if (mPos < 0 || mPos >= mRows.length) {
+			throw new IllegalStateException("Cursor position " + mPos + " out of range");
+		}
+		return mRows[mPos][column];
+	}
+
+	@Override
+	public String getString(int column) {
+		final Object value = get(column);
+		return value != null ? value.toString() : null;
+	}
+
+	@Override
+	public short getShort(int column) {
+		final Object value = get(column);
+		return value != null ? Short.parseShort(value.toString()) : 0;
+	}
+
+	@Override
+	public int getInt(int column) {
+		final Object value = get(column);
+		return value != null ? Integer.parseInt(value.toString()) : 0;
+	}
+
+	@Override
+	public long getLong(int column) {
+		final Object value = get(column);
+		return value != null ? Long.parseLong(value.toString()) : 0;
+	}
+
+	@Override
+	public float getFloat(int column) {
+		final Object value = get(column);
+		return value != null ? Float.parseFloat(value.toString()) : 0.0f;
+	}
+
+	@Override
+	public double getDouble(int column) {
+		final Object value = get(column);
+		return value != null ? Double.parseDouble(value.toString()) : 0.0d;
+	}
+
+	@Override
+	public boolean isNull(int column) {
+		return get(column) == null;
+	}
+
+}
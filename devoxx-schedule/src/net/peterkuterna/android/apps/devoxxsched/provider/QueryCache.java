@@ -0,0 +1,270 @@
+/*
+ * Copyright 2010 Peter Kuterna
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.peterkuterna.android.apps.devoxxsched.provider;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleDatabase.Tables;
+import net.peterkuterna.android.apps.devoxxsched.util.Maps;
+import net.peterkuterna.android.apps.devoxxsched.util.Sets;
+
+import android.database.Cursor;
+
+
+/**
+ * Least recently used cache of materialized {@link ScheduleProvider} query
+ * results. Every entry remembers the tables its query read from and is
+ * dropped as soon as one of those tables is written.
+ */
+public class QueryCache {
+
+	/** Estimated heap size of all entries together. */
+	private static final int MAX_BYTES = 512 * 1024;
+	/** Larger results are not cached, so one entry can't flush the others. */
+	private static final int MAX_ENTRY_BYTES = MAX_BYTES / 4;
+	/** Larger results are not even read into memory. */
+	private static final int MAX_ROWS = 1000;
+
+	/** Estimated overhead of a {@link String} and of an array. */
+	private static final int STRING_BYTES = 40;
+	private static final int ARRAY_BYTES = 16;
+
+	private static final String [] TABLES = {
+		Tables.SESSIONS, Tables.SPEAKERS, Tables.ROOMS, Tables.BLOCKS, Tables.TRACKS,
+		Tables.TYPES, Tables.TAGS, Tables.NOTES, Tables.SYNC, Tables.SESSIONS_SPEAKERS,
+		Tables.SESSIONS_TAGS, Tables.SESSIONS_PARALLEL, Tables.SESSIONS_SEARCH,
+		Tables.SPEAKERS_SEARCH, Tables.SEARCH_SUGGEST,
+	};
+
+	/**
+	 * Tables that are updated by triggers when the key table is written,
+	 * which may in turn fire triggers of their own.
+	 */
+	private static final HashMap<String, String []> sTriggeredTables = Maps.newHashMap();
+
+	static {
+		sTriggeredTables.put(Tables.SESSIONS, new String[] { Tables.BLOCKS, Tables.TRACKS,
+				Tables.TYPES, Tables.ROOMS, Tables.SPEAKERS, Tables.SESSIONS_PARALLEL,
+				Tables.SESSIONS_SEARCH, Tables.SESSIONS_SPEAKERS, Tables.SESSIONS_TAGS,
+				Tables.NOTES });
+		sTriggeredTables.put(Tables.BLOCKS, new String[] { Tables.SESSIONS_PARALLEL });
+		sTriggeredTables.put(Tables.TRACKS, new String[] { Tables.SESSIONS });
+		sTriggeredTables.put(Tables.SPEAKERS, new String[] { Tables.SPEAKERS_SEARCH,
+				Tables.SESSIONS_SPEAKERS });
+		sTriggeredTables.put(Tables.TAGS, new String[] { Tables.SESSIONS_TAGS });
+		sTriggeredTables.put(Tables.SESSIONS_SPEAKERS, new String[] { Tables.SPEAKERS });
+		sTriggeredTables.put(Tables.SESSIONS_TAGS, new String[] { Tables.TAGS });
+	}
+
+	private static QueryCache sInstance;
+
+	private final LinkedHashMap<String, Entry> mEntries =
+			new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	private int mSize;
+	private int mGeneration;
+	private int mHitCount;
+	private int mMissCount;
+
+	private static class Entry {
+		final String [] columns;
+		final Object [][] rows;
+		final HashSet<String> tables;
+		final int size;
+
+		Entry(String [] columns, Object [][] rows, HashSet<String> tables, int size) {
+			this.columns = columns;
+			this.rows = rows;
+			this.tables = tables;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Returns the {@link QueryCache} shared by {@link ScheduleProvider} and
+	 * {@link ScheduleBatchWriter}.
+	 */
+	public static synchronized QueryCache getInstance() {
+		if (sInstance == null) {
+			sInstance = new QueryCache();
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Return a fresh {@link Cursor} over the cached result for the given key,
+	 * or null when it is not cached.
+	 */
+	public synchronized Cursor get(String key) {
+		final Entry entry = mEntries.get(key);
+		if (entry == null) {
+			mMissCount++;
+			return null;
+		}
+		mHitCount++;
+		return new CachedCursor(entry.columns, entry.rows);
+	}
+
+	/**
+	 * Current generation of the cache, to be passed to
+	 * {@link #put(String, int, String, Cursor)} once the query is done.
+	 */
+	public synchronized int getGeneration() {
+		return mGeneration;
+	}
+
+	/**
+	 * Cache the result of the given query. The returned {@link Cursor} has to
+	 * be used instead of the given one, it is a {@link CachedCursor} unless
+	 * the result is too large. Nothing is cached when a table was
+	 * written since the given generation or when the result is too large.
+	 */
+	public Cursor put(String key, int generation, String sql, Cursor cursor) {
+		final int count = cursor.getCount();
+		if (count > MAX_ROWS) {
+			return cursor;
+		}
+
+		final String [] columns;
+		final Object [][] rows;
+		if (cursor instanceof CachedCursor) {
+			// Already materialized, share its rows instead of copying them
+			columns = cursor.getColumnNames();
+			rows = ((CachedCursor) cursor).getRows();
+		} else {
+			columns = cursor.getColumnNames();
+			try {
+				rows = CachedCursor.readRows(cursor);
+			} finally {
+				cursor.close();
+			}
+		}
+
+		final int size = estimateSize(columns, rows);
+		if (size <= MAX_ENTRY_BYTES) {
+			final Entry entry = new Entry(columns, rows, getTables(sql), size);
+			synchronized (this) {
+				if (generation == mGeneration) {
+					final Entry previous = mEntries.put(key, entry);
+					if (previous != null) {
+						mSize -= previous.size;
+					}
+					mSize += size;
+					trimToSize();
+				}
+			}
+		}
+
+		return cursor instanceof CachedCursor ? cursor : new CachedCursor(columns, rows);
+	}
+
+	/**
+	 * Drop every entry that read from the given table, directly or through
+	 * a table that is maintained by triggers on it.
+	 */
+	public synchronized void invalidate(String table) {
+		mGeneration++;
+		if (mEntries.isEmpty()) return;
+
+		final HashSet<String> tables = Sets.newHashSet();
+		tables.add(table);
+		addTriggeredTables(table, tables);
+
+		final Iterator<Entry> entries = mEntries.values().iterator();
+		while (entries.hasNext()) {
+			final Entry entry = entries.next();
+			for (String changedTable : tables) {
+				if (entry.tables.contains(changedTable)) {
+					entries.remove();
+					mSize -= entry.size;
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drop the least recently used entries until the cache fits its budget.
+	 */
+	private void trimToSize() {
+		final Iterator<Entry> entries = mEntries.values().iterator();
+		while (mSize > MAX_BYTES && entries.hasNext()) {
+			mSize -= entries.next().size;
+			entries.remove();
+		}
+	}
+
+	/**
+	 * Estimate the heap size of a result from the length of its strings.
+	 */
+	private static int estimateSize(String [] columns, Object [][] rows) {
+		int size = ARRAY_BYTES + rows.length * (ARRAY_BYTES + columns.length * 4);
+		for (Object [] row : rows) {
+			for (Object value : row) {
+				if (value != null) {
+					size += STRING_BYTES + 2 * value.toString().length();
+				}
+			}
+		}
+		return size;
+	}
+
+	private static void addTriggeredTables(String table, HashSet<String> tables) {
+		final String [] triggeredTables = sTriggeredTables.get(table);
+		if (triggeredTables == null) return;
+		for (String triggeredTable : triggeredTables) {
+			if (tables.add(triggeredTable)) {
+				addTriggeredTables(triggeredTable, tables);
+			}
+		}
+	}
+
+	public synchronized int getHitCount() {
+		return mHitCount;
+	}
+
+	public synchronized int getMissCount() {
+		return mMissCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "QueryCache[entries=" + mEntries.size() + ", bytes=" + mSize + ", hits=" + mHitCount
+				+ ", misses=" + mMissCount + "]";
+	}
+
+	/**
+	 * Return the tables that are named in the given sql.
+	 */
+	private static HashSet<String> getTables(String sql) {
+		final HashSet<String> words = Sets.newHashSet();
+		for (String word : sql.split("[^\\w]+")) {
+			words.add(word);
+		}
+		final HashSet<String> tables = Sets.newHashSet();
+		for (String table : TABLES) {
+			if (words.contains(table)) {
+				tables.add(table);
+			}
+		}
+		return tables;
+	}
+
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2010 Peter Kuterna
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.peterkuterna.android.apps.devoxxsched.provider;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.peterkuterna.android.apps.devoxxsched.util.Maps;
+import net.peterkuterna.android.apps.devoxxsched.util.SelectionBuilder;
+import net.peterkuterna.android.apps.devoxxsched.util.Sets;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+
+/**
+ * Immutable description of the query behind a {@link ScheduleProvider} uri
+ * match: the table expression, the projection map and the where clauses.
+ * Plans are built once and only need the path arguments to create a
+ * {@link SelectionBuilder}, so every query of a match runs the same sql.
+ * <p>
+ * The joins of the table expression are all left outer joins on a unique
+ * key, so a join that is not referenced by the query is left out without
+ * changing the resulting rows.
+ */
+class QueryPlan {
+
+	private static final Pattern JOIN_PATTERN = Pattern.compile("(?i)\\s+(?=LEFT OUTER JOIN\\s)");
+	private static final Pattern JOIN_TABLE_PATTERN = Pattern.compile("(?i)^LEFT OUTER JOIN\\s+(\\w+)");
+	private static final Pattern REFERENCE_PATTERN = Pattern.compile("([A-Za-z_]\\w*)(\\.[A-Za-z_]\\w*)?");
+
+	/**
+	 * Columns of the joinable tables, read once from the schema.
+	 */
+	private static final HashMap<String, HashSet<String>> sTableColumns = Maps.newHashMap();
+
+	private final String mTable;
+	private final String mBaseTable;
+	private final Join [] mJoins;
+	private final Map<String, String> mProjectionMap;
+	private final String mSelection;
+	private final String mRankTable;
+	private final float [] mRankWeights;
+
+	private static class Join {
+		final String table;
+		final String sql;
+		final HashSet<String> references;
+
+		Join(String sql) {
+			final Matcher matcher = JOIN_TABLE_PATTERN.matcher(sql);
+			if (!matcher.find()) {
+				throw new IllegalArgumentException("Unsupported join: " + sql);
+			}
+			this.table = matcher.group(1);
+			this.sql = sql;
+			this.references = Sets.newHashSet();
+			addReferences(sql.substring(matcher.end()), references, null);
+			this.references.remove(table);
+		}
+	}
+
+	private QueryPlan(Builder builder) {
+		mTable = builder.mTable;
+		final String [] parts = JOIN_PATTERN.split(mTable);
+		mBaseTable = parts[0];
+		if (parts.length > 1) {
+			mJoins = new Join[parts.length - 1];
+			for (int i = 1; i < parts.length; i++) {
+				mJoins[i - 1] = new Join(parts[i]);
+			}
+		} else {
+			mJoins = null;
+		}
+		mProjectionMap = builder.mProjectionMap.isEmpty() ? null
+				: Collections.unmodifiableMap(builder.mProjectionMap);
+		mSelection = builder.mSelection.length() > 0 ? builder.mSelection.toString() : null;
+		mRankTable = builder.mRankTable;
+		mRankWeights = builder.mRankWeights;
+	}
+
+	/**
+	 * Create a {@link Builder} for a plan on the given table expression.
+	 */
+	static Builder newPlan(String table) {
+		return new Builder(table);
+	}
+
+	/**
+	 * Create a {@link SelectionBuilder} for this plan, binding the given path
+	 * arguments in the order the where clauses were added.
+	 */
+	SelectionBuilder newSelection(String... pathArgs) {
+		final SelectionBuilder builder = new SelectionBuilder().table(mTable);
+		if (mProjectionMap != null) {
+			builder.projectionMap(mProjectionMap);
+		}
+		return builder.where(mSelection, pathArgs);
+	}
+
+	/**
+	 * Returns whether the results of this plan can be ranked on relevance,
+	 * see {@link Builder#rankBy(String, float...)}.
+	 */
+	boolean isRanked() {
+		return mRankTable != null;
+	}
+
+	/**
+	 * Returns the full-text table whose {@code matchinfo()} ranks the
+	 * results, or null when the plan is not ranked.
+	 */
+	String getRankTable() {
+		return mRankTable;
+	}
+
+	/**
+	 * Returns the weights of the columns of the rank table.
+	 */
+	float [] getRankWeights() {
+		return mRankWeights;
+	}
+
+	/**
+	 * Return the table expression for a query with the given projection,
+	 * selection and sort order, leaving out the joins it does not reference.
+	 * The projection is read before {@link SelectionBuilder} maps it.
+	 */
+	String getTable(SQLiteDatabase db, String [] projection, String selection, String sortOrder) {
+		if (mJoins == null || projection == null) {
+			return mTable;
+		}
+
+		final HashSet<String> tables = Sets.newHashSet();
+		final HashSet<String> columns = Sets.newHashSet();
+		for (String column : projection) {
+			final String target = mProjectionMap != null ? mProjectionMap.get(column) : null;
+			addReferences(target != null ? target : column, tables, columns);
+		}
+		addReferences(selection, tables, columns);
+		addReferences(sortOrder, tables, columns);
+
+		// Later joins can only refer to earlier ones
+		final boolean [] needed = new boolean[mJoins.length];
+		int count = 0;
+		for (int i = mJoins.length - 1; i >= 0; i--) {
+			final Join join = mJoins[i];
+			needed[i] = tables.contains(join.table)
+					|| containsAny(getTableColumns(db, join.table), columns);
+			if (needed[i]) {
+				tables.addAll(join.references);
+				count++;
+			}
+		}
+		if (count == mJoins.length) {
+			return mTable;
+		}
+
+		final StringBuilder table = new StringBuilder(mBaseTable);
+		for (int i = 0; i < mJoins.length; i++) {
+			if (needed[i]) {
+				table.append(' ').append(mJoins[i].sql);
+			}
+		}
+		return table.toString();
+	}
+
+	/**
+	 * Collect the tables of the qualified references and the unqualified
+	 * columns in the given sql. String literals are skipped.
+	 */
+	private static void addReferences(String sql, HashSet<String> tables, HashSet<String> columns) {
+		if (sql == null) return;
+		final Matcher matcher = REFERENCE_PATTERN.matcher(sql.replaceAll("'[^']*'", "''"));
+		while (matcher.find()) {
+			if (matcher.group(2) != null) {
+				tables.add(matcher.group(1));
+			} else if (columns != null) {
+				columns.add(matcher.group(1));
+			}
+		}
+	}
+
+	private static boolean containsAny(HashSet<String> set, HashSet<String> values) {
+		for (String value : values) {
+			if (set.contains(value)) return true;
+		}
+		return false;
+	}
+
+	private static HashSet<String> getTableColumns(SQLiteDatabase db, String table) {
+		synchronized (sTableColumns) {
+			HashSet<String> columns = sTableColumns.get(table);
+			if (columns == null) {
+				columns = Sets.newHashSet();
+				final Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+				try {
+					while (cursor.moveToNext()) {
+						columns.add(cursor.getString(1));
+					}
+				} finally {
+					cursor.close();
+				}
+				sTableColumns.put(table, columns);
+			}
+			return columns;
+		}
+	}
+
+	/**
+	 * Builder for a {@link QueryPlan}.
+	 */
+	static class Builder {
+		private final String mTable;
+		private final HashMap<String, String> mProjectionMap = Maps.newHashMap();
+		private final StringBuilder mSelection = new StringBuilder();
+		private String mRankTable;
+		private float [] mRankWeights;
+
+		private Builder(String table) {
+			mTable = table;
+		}
+
+		Builder mapToTable(String column, String table) {
+			mProjectionMap.put(column, table + "." + column);
+			return this;
+		}
+
+		Builder map(String fromColumn, String toClause) {
+			mProjectionMap.put(fromColumn, toClause + " AS " + fromColumn);
+			return this;
+		}
+
+		/**
+		 * Add a where clause, any placeholder in it is bound to the next path
+		 * argument.
+		 */
+		Builder where(String selection) {
+			if (mSelection.length() > 0) {
+				mSelection.append(" AND ");
+			}
+			mSelection.append("(").append(selection).append(")");
+			return this;
+		}
+
+		/**
+		 * Rank the results on their matches in the given full-text table,
+		 * weighting the hits of its columns in the order they are declared.
+		 */
+		Builder rankBy(String table, float... weights) {
+			mRankTable = table;
+			mRankWeights = weights;
+			return this;
+		}
+
+		QueryPlan build() {
+			return new QueryPlan(this);
+		}
+	}
+
+}
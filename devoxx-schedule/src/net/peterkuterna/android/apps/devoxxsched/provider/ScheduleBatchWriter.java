@@ -0,0 +1,659 @@
+/*
+ * Copyright 2010 Peter Kuterna
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.peterkuterna.android.apps.devoxxsched.provider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import net.peterkuterna.android.apps.devoxxsched.io.SyncOperation;
+import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleContract.Blocks;
+import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleContract.Rooms;
+import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleContract.Sessions;
+import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleContract.Speakers;
+import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleContract.Sync;
+import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleContract.Tags;
+import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleContract.Tracks;
+import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleContract.Types;
+import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleDatabase.SessionsCountColumns;
+import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleDatabase.SessionsSpeakers;
+import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleDatabase.SessionsTags;
+import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleDatabase.Tables;
+import net.peterkuterna.android.apps.devoxxsched.util.Lists;
+import net.peterkuterna.android.apps.devoxxsched.util.Maps;
+import net.peterkuterna.android.apps.devoxxsched.util.SelectionBuilder;
+import net.peterkuterna.android.apps.devoxxsched.util.Sets;
+
+import android.app.SearchManager;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.text.TextUtils;
+import android.util.Log;
+
+
+/**
+ * Applies a set of {@link SyncOperation} directly on the
+ * {@link ScheduleDatabase}, bypassing {@link ContentResolver#applyBatch}.
+ * Every distinct statement is compiled once per batch and the whole batch is
+ * executed inside a single transaction. Change notifications are sent for the
+ * touched {@link Uri}s once the transaction is committed.
+ * <p>
+ * Between {@link #beginStaging()} and {@link #commitStaging()} the schedule
+ * tables are written through temporary shadow copies, so readers never see a
+ * partially synced schedule. The staged snapshot is swapped in with one short
+ * transaction that keeps the user owned columns.
+ */
+public class ScheduleBatchWriter {
+
+	private static final String TAG = "ScheduleBatchWriter";
+
+	private static final String SHADOW_PREFIX = "shadow_";
+	private static final String RETAINED_KEYS = "retained_keys";
+
+	/** Default number of operations applied between yield points. */
+	public static final int DEFAULT_CHUNK_SIZE = 100;
+
+	/**
+	 * Table that is written through a shadow copy while staging. The swap
+	 * never overwrites the preserved columns of existing rows, which are
+	 * either owned by the user or maintained by triggers.
+	 */
+	private static class StagedTable {
+		final String table;
+		final String [] keyColumns;
+		final String [] preservedColumns;
+
+		StagedTable(String table, String [] keyColumns, String [] preservedColumns) {
+			this.table = table;
+			this.keyColumns = keyColumns;
+			this.preservedColumns = preservedColumns;
+		}
+	}
+
+	/** Staged tables, in the order they are swapped in. */
+	private static final StagedTable [] STAGED_TABLES = {
+		new StagedTable(Tables.ROOMS, new String[] { Rooms.ROOM_ID },
+				new String[] { SessionsCountColumns.SESSIONS_COUNT }),
+		new StagedTable(Tables.TYPES, new String[] { Types.TYPE_ID },
+				new String[] { SessionsCountColumns.SESSIONS_COUNT }),
+		new StagedTable(Tables.TRACKS, new String[] { Tracks.TRACK_ID },
+				new String[] { SessionsCountColumns.SESSIONS_COUNT }),
+		new StagedTable(Tables.TAGS, new String[] { Tags.TAG_ID },
+				new String[] { SessionsCountColumns.SESSIONS_COUNT }),
+		new StagedTable(Tables.SPEAKERS, new String[] { Speakers.SPEAKER_ID },
+				new String[] { Speakers.CONTAINS_STARRED }),
+		new StagedTable(Tables.BLOCKS, new String[] { Blocks.BLOCK_ID },
+				new String[] { Sessions.STARRED_IN_BLOCK_COUNT, SessionsCountColumns.SESSIONS_COUNT,
+						Blocks.CONTAINS_STARRED }),
+		new StagedTable(Tables.SESSIONS, new String[] { Sessions.SESSION_ID },
+				new String[] { Sessions.STARRED }),
+		new StagedTable(Tables.SESSIONS_SPEAKERS,
+				new String[] { SessionsSpeakers.SESSION_ID, SessionsSpeakers.SPEAKER_ID }, null),
+		new StagedTable(Tables.SESSIONS_TAGS,
+				new String[] { SessionsTags.SESSION_ID, SessionsTags.TAG_ID }, null),
+	};
+
+	/**
+	 * Unique key of every table that is upserted, the staged tables and the
+	 * ones below.
+	 */
+	private static final HashMap<String, String []> sKeyColumns = Maps.newHashMap();
+
+	static {
+		for (StagedTable stagedTable : STAGED_TABLES) {
+			sKeyColumns.put(stagedTable.table, stagedTable.keyColumns);
+		}
+		sKeyColumns.put(Tables.SYNC, new String[] { Sync.URI_ID });
+		sKeyColumns.put(Tables.SEARCH_SUGGEST, new String[] { SearchManager.SUGGEST_COLUMN_TEXT_1 });
+	}
+
+	private final ContentResolver mResolver;
+	private final ScheduleDatabase mOpenHelper;
+	private final HashSet<String> mStagedTables = Sets.newHashSet();
+	private int mChunkSize = DEFAULT_CHUNK_SIZE;
+
+	public ScheduleBatchWriter(Context context) {
+		mResolver = context.getContentResolver();
+		mOpenHelper = ScheduleDatabase.getInstance(context);
+	}
+
+	/**
+	 * Set the number of operations that is applied before the transaction is
+	 * yielded to waiting readers.
+	 */
+	public synchronized void setChunkSize(int chunkSize) {
+		mChunkSize = Math.max(1, chunkSize);
+	}
+
+	/**
+	 * Apply the given set of {@link SyncOperation}. The transaction is
+	 * yielded to waiting readers every chunk of operations, or before an
+	 * operation that allows it. All changes since the last yield will be
+	 * rolled back if any single one fails.
+	 */
+	public synchronized void apply(ArrayList<SyncOperation> operations) {
+		final long start = System.currentTimeMillis();
+		final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+		final HashMap<String, SQLiteStatement> statements = Maps.newHashMap();
+		final HashSet<Uri> notifyUris = Sets.newHashSet();
+
+		db.beginTransaction();
+		try {
+			int chunk = 0;
+			for (SyncOperation operation : operations) {
+				if (chunk >= mChunkSize || (chunk > 0 && operation.isYieldAllowed())) {
+					db.yieldIfContendedSafely();
+					chunk = 0;
+				}
+				chunk++;
+				final String table = execute(db, statements, operation);
+				if (table != null && !mStagedTables.contains(table)) {
+					Collections.addAll(notifyUris, ScheduleProvider.getNotifyUris(table));
+					ScheduleProvider.invalidateCaches(table);
+				}
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+			for (SQLiteStatement statement : statements.values()) {
+				statement.close();
+			}
+		}
+
+		Log.d(TAG, "applied " + operations.size() + " operations with " + statements.size()
+				+ " statements in " + (System.currentTimeMillis() - start) + "ms");
+
+		for (Uri uri : notifyUris) {
+			mResolver.notifyChange(uri, null);
+		}
+	}
+
+	/**
+	 * Query the rows of the given {@link Uri} as the sync sees them, which
+	 * includes the staged changes while staging.
+	 */
+	public synchronized Cursor query(Uri uri, String [] projection) {
+		final SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+		final SelectionBuilder builder = ScheduleProvider.buildSimpleSelection(uri);
+		return db.query(getTargetTable(builder.getTable()), projection,
+				builder.getSelection(), builder.getSelectionArgs(), null, null, null);
+	}
+
+	/**
+	 * Start writing the schedule tables through shadow copies that start out
+	 * as a copy of the live tables.
+	 */
+	public synchronized void beginStaging() {
+		if (!mStagedTables.isEmpty()) {
+			abortStaging();
+		}
+
+		final long start = System.currentTimeMillis();
+		final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+		final HashSet<String> stagedTables = Sets.newHashSet();
+		db.beginTransaction();
+		try {
+			for (StagedTable stagedTable : STAGED_TABLES) {
+				final String shadow = SHADOW_PREFIX + stagedTable.table;
+				db.execSQL("DROP TABLE IF EXISTS temp." + shadow);
+				db.execSQL(getShadowTableSql(db, stagedTable.table, shadow));
+				db.execSQL("INSERT INTO " + shadow + " SELECT * FROM " + stagedTable.table);
+				stagedTables.add(stagedTable.table);
+			}
+			// Deletes cascade between the shadow copies as they do between the live tables
+			ScheduleDatabase.createTempCascadeTriggers(db, SHADOW_PREFIX, stagedTables);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+
+		mStagedTables.addAll(stagedTables);
+		Log.d(TAG, "staging started in " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	/**
+	 * Swap the staged snapshot into the live tables with one transaction.
+	 * Only rows that were removed, changed or added are touched and the
+	 * preserved columns of the live rows are kept.
+	 */
+	public synchronized void commitStaging() {
+		if (mStagedTables.isEmpty()) return;
+
+		final long start = System.currentTimeMillis();
+		final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+		final HashSet<Uri> notifyUris = Sets.newHashSet();
+		db.beginTransaction();
+		try {
+			final SQLiteStatement changes = db.compileStatement("SELECT changes()");
+			try {
+				// Parents get their new rows before the children point to them,
+				// and children let go of a parent before it is deleted, so the
+				// cascade triggers only remove what left the snapshot
+				final long [] touched = new long[STAGED_TABLES.length];
+				for (int i = 0; i < STAGED_TABLES.length; i++) {
+					touched[i] += swapRows(db, changes, STAGED_TABLES[i]);
+				}
+				for (int i = STAGED_TABLES.length - 1; i >= 0; i--) {
+					touched[i] += deleteRows(db, changes, STAGED_TABLES[i]);
+				}
+				for (int i = 0; i < STAGED_TABLES.length; i++) {
+					if (touched[i] > 0) {
+						final String table = STAGED_TABLES[i].table;
+						Log.d(TAG, "swapped " + touched[i] + " rows of " + table);
+						Collections.addAll(notifyUris, ScheduleProvider.getNotifyUris(table));
+						ScheduleProvider.invalidateCaches(table);
+					}
+				}
+			} finally {
+				changes.close();
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		Log.d(TAG, "staged snapshot swapped in " + (System.currentTimeMillis() - start) + "ms");
+
+		dropShadowTables(db);
+		TimelineIndex.rebuild(db);
+
+		for (Uri uri : notifyUris) {
+			mResolver.notifyChange(uri, null);
+		}
+	}
+
+	/**
+	 * Throw away the staged changes.
+	 */
+	public synchronized void abortStaging() {
+		if (mStagedTables.isEmpty()) return;
+
+		dropShadowTables(mOpenHelper.getWritableDatabase());
+	}
+
+	private void dropShadowTables(SQLiteDatabase db) {
+		mStagedTables.clear();
+		for (StagedTable stagedTable : STAGED_TABLES) {
+			db.execSQL("DROP TABLE IF EXISTS temp." + SHADOW_PREFIX + stagedTable.table);
+		}
+	}
+
+	/**
+	 * Returns the statement that creates a temporary shadow table with the
+	 * same columns and constraints as the given table.
+	 */
+	private static String getShadowTableSql(SQLiteDatabase db, String table, String shadow) {
+		final Cursor cursor = db.rawQuery("SELECT sql FROM sqlite_master WHERE type='table' AND name=?",
+				new String[] { table });
+		try {
+			if (!cursor.moveToFirst()) {
+				throw new IllegalStateException("Unknown table: " + table);
+			}
+			final String sql = cursor.getString(0);
+			final int columnsStart = sql.indexOf('(');
+			return "CREATE TEMP TABLE " + shadow + " " + sql.substring(columnsStart);
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Returns the columns of a table, except the {@link BaseColumns#_ID}.
+	 */
+	private static ArrayList<String> getTableColumns(SQLiteDatabase db, String table) {
+		final ArrayList<String> columns = Lists.newArrayList();
+		final Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+		try {
+			final int nameIndex = cursor.getColumnIndexOrThrow("name");
+			while (cursor.moveToNext()) {
+				final String column = cursor.getString(nameIndex);
+				if (!BaseColumns._ID.equals(column)) {
+					columns.add(column);
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+		return columns;
+	}
+
+	/**
+	 * Delete the rows of a live table that are not in its shadow table,
+	 * returning the number of rows deleted.
+	 */
+	private static long deleteRows(SQLiteDatabase db, SQLiteStatement changes, StagedTable stagedTable) {
+		final String table = stagedTable.table;
+		db.execSQL("DELETE FROM " + table + " WHERE NOT EXISTS (SELECT 1 FROM " + SHADOW_PREFIX
+				+ table + " s WHERE " + getKeyMatch(stagedTable) + ")");
+		return changes.simpleQueryForLong();
+	}
+
+	private static String getKeyMatch(StagedTable stagedTable) {
+		final StringBuilder keyMatch = new StringBuilder();
+		for (String key : stagedTable.keyColumns) {
+			if (keyMatch.length() > 0) keyMatch.append(" AND ");
+			keyMatch.append("s.").append(key).append("=").append(stagedTable.table).append(".").append(key);
+		}
+		return keyMatch.toString();
+	}
+
+	/**
+	 * Update and insert the rows of a live table from its shadow table,
+	 * returning the number of rows touched. Removed rows are left to
+	 * {@link #deleteRows(SQLiteDatabase, SQLiteStatement, StagedTable)}.
+	 */
+	private static long swapRows(SQLiteDatabase db, SQLiteStatement changes, StagedTable stagedTable) {
+		final String table = stagedTable.table;
+		final String shadow = SHADOW_PREFIX + table;
+		final ArrayList<String> columns = getTableColumns(db, table);
+		final ArrayList<String> updatedColumns = new ArrayList<String>(columns);
+		for (String key : stagedTable.keyColumns) {
+			updatedColumns.remove(key);
+		}
+		if (stagedTable.preservedColumns != null) {
+			for (String preserved : stagedTable.preservedColumns) {
+				updatedColumns.remove(preserved);
+			}
+		}
+
+		final String keyMatch = getKeyMatch(stagedTable);
+		long touched = 0;
+
+		// Rows of which a synced column changed
+		if (!updatedColumns.isEmpty()) {
+			final StringBuilder set = new StringBuilder();
+			final StringBuilder changed = new StringBuilder();
+			for (String column : updatedColumns) {
+				if (set.length() > 0) {
+					set.append(",");
+					changed.append(" OR ");
+				}
+				set.append(column).append("=(SELECT s.").append(column).append(" FROM ")
+						.append(shadow).append(" s WHERE ").append(keyMatch).append(")");
+				changed.append("s.").append(column).append(" IS NOT ").append(table).append(".").append(column);
+			}
+			db.execSQL("UPDATE " + table + " SET " + set + " WHERE EXISTS (SELECT 1 FROM " + shadow
+					+ " s WHERE " + keyMatch + " AND (" + changed + "))");
+			touched += changes.simpleQueryForLong();
+		}
+
+		// Rows that are new in the snapshot
+		final String columnList = TextUtils.join(",", columns);
+		db.execSQL("INSERT INTO " + table + " (" + columnList + ") SELECT " + columnList + " FROM "
+				+ shadow + " s WHERE NOT EXISTS (SELECT 1 FROM " + table + " WHERE " + keyMatch + ")");
+		touched += changes.simpleQueryForLong();
+		return touched;
+	}
+
+	/**
+	 * Execute a single operation, returning the table it was applied to or
+	 * null when an insert found the same row already in place.
+	 */
+	private String execute(SQLiteDatabase db, HashMap<String, SQLiteStatement> statements, SyncOperation operation) {
+		final Uri uri = operation.getUri();
+		final ContentValues values = operation.getValues();
+
+		if (operation.isInsertOperation()) {
+			final String table = ScheduleProvider.getInsertTable(uri);
+			if (table == null) {
+				throw new UnsupportedOperationException("Unknown uri: " + uri);
+			}
+			return upsert(db, statements, table, getTargetTable(table), values) ? table : null;
+		} else if (operation.isRetainOperation()) {
+			return retain(db, statements, operation);
+		} else {
+			final SelectionBuilder builder = ScheduleProvider.buildSimpleSelection(uri);
+			final String selection = builder.getSelection();
+			final String [] selectionArgs = builder.getSelectionArgs();
+			final String [] columns;
+			final StringBuilder sql = new StringBuilder();
+			if (operation.isUpdateOperation()) {
+				columns = getColumns(values);
+				if (columns.length == 0) return builder.getTable();
+				sql.append("UPDATE ").append(getTargetTable(builder.getTable())).append(" SET ");
+				for (int i = 0; i < columns.length; i++) {
+					if (i > 0) sql.append(",");
+					sql.append(columns[i]).append("=?");
+				}
+			} else {
+				columns = new String[0];
+				sql.append("DELETE FROM ").append(getTargetTable(builder.getTable()));
+			}
+			if (!TextUtils.isEmpty(selection)) {
+				sql.append(" WHERE ").append(selection);
+			}
+
+			final SQLiteStatement statement = getStatement(db, statements, sql.toString());
+			bindValues(statement, values, columns);
+			for (int i = 0; i < selectionArgs.length; i++) {
+				statement.bindString(columns.length + i + 1, selectionArgs[i]);
+			}
+			statement.execute();
+			return builder.getTable();
+		}
+	}
+
+	/**
+	 * Insert the given values, or when a row with the same unique key exists
+	 * update only that row's columns that differ. Unlike the
+	 * {@code ON CONFLICT REPLACE} of the tables this keeps the row and its
+	 * {@link BaseColumns#_ID}, and an unchanged row is not written at all.
+	 * New rows go through a plain insert, so constraint violations are still
+	 * reported. Returns whether a row was inserted or updated.
+	 */
+	static boolean upsert(SQLiteDatabase db, HashMap<String, SQLiteStatement> statements,
+			String table, String targetTable, ContentValues values) {
+		final String [] columns = getColumns(values);
+		final String [] keyColumns = sKeyColumns.get(table);
+		final boolean hasKey = keyColumns != null && containsAll(values, keyColumns);
+
+		final StringBuilder sql = new StringBuilder();
+		if (hasKey) {
+			sql.append("SELECT COUNT(*) FROM ").append(targetTable).append(" WHERE ");
+			for (int i = 0; i < keyColumns.length; i++) {
+				if (i > 0) sql.append(" AND ");
+				sql.append(keyColumns[i]).append("=?");
+			}
+			final SQLiteStatement exists = getStatement(db, statements, sql.toString());
+			bindValues(exists, values, keyColumns);
+			if (exists.simpleQueryForLong() > 0) {
+				return update(db, statements, targetTable, values, columns, keyColumns);
+			}
+		}
+
+		sql.setLength(0);
+		sql.append("INSERT INTO ").append(targetTable).append(" (").append(TextUtils.join(",", columns))
+				.append(") VALUES (");
+		for (int i = 0; i < columns.length; i++) {
+			sql.append((i > 0) ? ",?" : "?");
+		}
+		sql.append(")");
+
+		final SQLiteStatement insert = getStatement(db, statements, sql.toString());
+		bindValues(insert, values, columns);
+		insert.executeInsert();
+		return true;
+	}
+
+	/**
+	 * Update the columns of the row with the given key that differ from the
+	 * given values, returning whether the row changed.
+	 */
+	private static boolean update(SQLiteDatabase db, HashMap<String, SQLiteStatement> statements,
+			String targetTable, ContentValues values, String [] columns, String [] keyColumns) {
+		final ArrayList<String> updateColumns = Lists.newArrayList();
+		for (String column : columns) {
+			if (!Arrays.asList(keyColumns).contains(column)) {
+				updateColumns.add(column);
+			}
+		}
+		if (updateColumns.isEmpty()) return false;
+
+		final String [] setColumns = updateColumns.toArray(new String[updateColumns.size()]);
+		final StringBuilder sql = new StringBuilder();
+		sql.append("UPDATE ").append(targetTable).append(" SET ");
+		for (int i = 0; i < setColumns.length; i++) {
+			if (i > 0) sql.append(",");
+			sql.append(setColumns[i]).append("=?");
+		}
+		sql.append(" WHERE ");
+		for (String keyColumn : keyColumns) {
+			sql.append(keyColumn).append("=? AND ");
+		}
+		sql.append("(");
+		for (int i = 0; i < setColumns.length; i++) {
+			if (i > 0) sql.append(" OR ");
+			sql.append(setColumns[i]).append(" IS NOT ?");
+		}
+		sql.append(")");
+
+		final SQLiteStatement update = getStatement(db, statements, sql.toString());
+		bindValues(update, values, setColumns, 0);
+		bindValues(update, values, keyColumns, setColumns.length);
+		bindValues(update, values, setColumns, setColumns.length + keyColumns.length);
+		update.execute();
+		return getStatement(db, statements, "SELECT changes()").simpleQueryForLong() > 0;
+	}
+
+	/**
+	 * Delete the rows of the operation's {@link Uri} whose key is not among
+	 * the retained keys. The keys are staged in a temporary table, so the
+	 * whole set is removed with a single statement.
+	 */
+	private String retain(SQLiteDatabase db, HashMap<String, SQLiteStatement> statements, SyncOperation operation) {
+		final String [] keyColumns = operation.getKeyColumns();
+		final SelectionBuilder builder = ScheduleProvider.buildSimpleSelection(operation.getUri());
+		final String table = builder.getTable();
+		final String targetTable = getTargetTable(table);
+
+		db.execSQL("CREATE TEMP TABLE IF NOT EXISTS " + RETAINED_KEYS + " (key0 TEXT, key1 TEXT)");
+		db.execSQL("CREATE INDEX IF NOT EXISTS temp." + RETAINED_KEYS + "_index ON "
+				+ RETAINED_KEYS + " (key0, key1)");
+		db.execSQL("DELETE FROM " + RETAINED_KEYS);
+		final SQLiteStatement insert = getStatement(db, statements,
+				"INSERT INTO " + RETAINED_KEYS + " (key0, key1) VALUES (?, ?)");
+		for (String [] key : operation.getRetainedKeys()) {
+			insert.bindString(1, key[0]);
+			if (key.length > 1 && key[1] != null) {
+				insert.bindString(2, key[1]);
+			} else {
+				insert.bindNull(2);
+			}
+			insert.execute();
+		}
+
+		final StringBuilder sql = new StringBuilder("DELETE FROM ").append(targetTable).append(" WHERE ");
+		final String selection = builder.getSelection();
+		if (!TextUtils.isEmpty(selection)) {
+			sql.append("(").append(selection).append(") AND ");
+		}
+		if (keyColumns.length == 1) {
+			sql.append(keyColumns[0]).append(" NOT IN (SELECT key0 FROM ").append(RETAINED_KEYS).append(")");
+		} else {
+			sql.append(keyColumns[0]).append(" IN (SELECT key0 FROM ").append(RETAINED_KEYS)
+					.append(") AND NOT EXISTS (SELECT 1 FROM ").append(RETAINED_KEYS)
+					.append(" WHERE key0=").append(targetTable).append(".").append(keyColumns[0])
+					.append(" AND key1=").append(targetTable).append(".").append(keyColumns[1]).append(")");
+		}
+
+		final SQLiteStatement delete = getStatement(db, statements, sql.toString());
+		final String [] selectionArgs = builder.getSelectionArgs();
+		for (int i = 0; i < selectionArgs.length; i++) {
+			delete.bindString(i + 1, selectionArgs[i]);
+		}
+		delete.execute();
+		return table;
+	}
+
+	private static boolean containsAll(ContentValues values, String [] columns) {
+		for (String column : columns) {
+			if (!values.containsKey(column)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the table that is written to for the given table, which is
+	 * its shadow copy while staging.
+	 */
+	private String getTargetTable(String table) {
+		return mStagedTables.contains(table) ? SHADOW_PREFIX + table : table;
+	}
+
+	private static SQLiteStatement getStatement(SQLiteDatabase db, HashMap<String, SQLiteStatement> statements, String sql) {
+		SQLiteStatement statement = statements.get(sql);
+		if (statement == null) {
+			statement = db.compileStatement(sql);
+			statements.put(sql, statement);
+		} else {
+			statement.clearBindings();
+		}
+		return statement;
+	}
+
+	/**
+	 * Returns the columns of the given values in a stable order, so that
+	 * operations with the same columns share a compiled statement.
+	 */
+	private static String [] getColumns(ContentValues values) {
+		if (values == null) return new String[0];
+		final Set<Entry<String, Object>> entries = values.valueSet();
+		final String [] columns = new String[entries.size()];
+		int i = 0;
+		for (Entry<String, Object> entry : entries) {
+			columns[i++] = entry.getKey();
+		}
+		Arrays.sort(columns);
+		return columns;
+	}
+
+	private static void bindValues(SQLiteStatement statement, ContentValues values, String [] columns) {
+		bindValues(statement, values, columns, 0);
+	}
+
+	private static void bindValues(SQLiteStatement statement, ContentValues values, String [] columns, int offset) {
+		for (int i = 0; i < columns.length; i++) {
+			final Object value = values.get(columns[i]);
+			final int index = offset + i + 1;
+			if (value == null) {
+				statement.bindNull(index);
+			} else if (value instanceof String) {
+				statement.bindString(index, (String) value);
+			} else if (value instanceof Boolean) {
+				statement.bindLong(index, ((Boolean) value) ? 1 : 0);
+			} else if (value instanceof Float || value instanceof Double) {
+				statement.bindDouble(index, ((Number) value).doubleValue());
+			} else if (value instanceof Number) {
+				statement.bindLong(index, ((Number) value).longValue());
+			} else if (value instanceof byte[]) {
+				statement.bindBlob(index, (byte[]) value);
+			} else {
+				statement.bindString(index, value.toString());
+			}
+		}
+	}
+
+}
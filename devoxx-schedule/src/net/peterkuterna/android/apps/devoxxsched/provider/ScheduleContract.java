@@ -45,6 +45,8 @@ public class ScheduleContract {
 		String URI_ID = "uri_id";
 		String URI = "uri";
 		String MD5 = "md5";
+		String ETAG = "etag";
+		String LAST_MODIFIED = "last_modified";
 	}
 
     interface BlocksColumns {
@@ -58,6 +60,8 @@ public class ScheduleContract {
         String BLOCK_END = "block_end";
         /** Type describing this block. */
         String BLOCK_TYPE = "block_type";
+        /** Hash of the synced fields of this block. */
+        String BLOCK_FINGERPRINT = "block_fingerprint";
     }
     
     interface TracksColumns {
@@ -67,6 +71,8 @@ public class ScheduleContract {
         String TRACK_NAME = "track_name";
         /** Color used to identify this track, in {@link Color#argb} format. */
         String TRACK_COLOR = "track_color";
+        /** Hash of the synced fields of this track. */
+        String TRACK_FINGERPRINT = "track_fingerprint";
     }
 
     interface RoomsColumns {
@@ -76,6 +82,8 @@ public class ScheduleContract {
     	String NAME = "name";
         /** Capacity of the room. */
     	String CAPACITY = "capacity";
+        /** Hash of the synced fields of this room. */
+    	String ROOM_FINGERPRINT = "room_fingerprint";
     }
 
     interface SessionsColumns {
@@ -97,6 +105,8 @@ public class ScheduleContract {
     	String UPDATED = "updated";
         /** Field to mark if this session was new. */
     	String NEW = "new";
+        /** Hash of the synced fields of this session. */
+    	String SESSION_FINGERPRINT = "session_fingerprint";
     }
 
     interface SpeakersColumns {
@@ -112,6 +122,8 @@ public class ScheduleContract {
     	String BIO = "bio";
         /** URL towards image of speaker. */
     	String IMAGE_URL = "image_url";
+        /** Hash of the synced fields of this speaker. */
+    	String SPEAKER_FINGERPRINT = "speaker_fingerprint";
     }
     
     interface TagsColumns {
@@ -425,6 +437,12 @@ public class ScheduleContract {
             CONTENT_URI.buildUpon().appendPath(PATH_UPDATED).build();
         public static final Uri CONTENT_UPDATED_STARRED_URI =
         	CONTENT_UPDATED_URI.buildUpon().appendPath(PATH_STARRED).build();
+        /** {@link Uri} that references all {@link Speakers} links of all sessions. */
+        public static final Uri CONTENT_SPEAKERS_URI =
+            CONTENT_URI.buildUpon().appendPath(PATH_SPEAKERS).build();
+        /** {@link Uri} that references all {@link Tags} links of all sessions. */
+        public static final Uri CONTENT_TAGS_URI =
+            CONTENT_URI.buildUpon().appendPath(PATH_TAGS).build();
 
         public static final String CONTENT_TYPE =
                 "vnd.android.cursor.dir/vnd.devoxx.session";
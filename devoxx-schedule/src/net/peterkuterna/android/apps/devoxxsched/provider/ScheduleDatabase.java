@@ -19,6 +19,8 @@
  */
 package net.peterkuterna.android.apps.devoxxsched.provider;
 
+import java.util.Set;
+
 import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleContract.Blocks;
 import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleContract.BlocksColumns;
 import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleContract.Notes;
@@ -39,7 +41,9 @@ import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleContract.Types
 import android.app.SearchManager;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.provider.BaseColumns;
 import android.util.Log;
 
@@ -67,8 +71,16 @@ public class ScheduleDatabase extends SQLiteOpenHelper {
     private static final int VER_ALTER_SEARCH_SUGGEST_TABLE = 8;
     private static final int VER_ADD_INDICES = 9;
     private static final int VER_ADD_SESSION_TYPES = 10;
+    private static final int VER_ADD_SYNC_VALIDATORS = 11;
+    private static final int VER_STORE_STARRED_IN_BLOCK_COUNT = 12;
+    private static final int VER_STORE_SESSIONS_COUNTS = 13;
+    private static final int VER_STORE_SPEAKER_CONTAINS_STARRED = 14;
+    private static final int VER_ADD_SESSIONS_PARALLEL = 15;
+    private static final int VER_ADD_FINGERPRINTS = 16;
+    private static final int VER_ADD_CASCADE_DELETES = 17;
+    private static final int VER_UPGRADE_FULLTEXT_TABLES = 18;
 
-    private static final int DATABASE_VERSION = VER_ADD_SESSION_TYPES;
+    private static final int DATABASE_VERSION = VER_UPGRADE_FULLTEXT_TABLES;
 
     interface Tables {
         String SESSIONS = "sessions";
@@ -82,6 +94,7 @@ public class ScheduleDatabase extends SQLiteOpenHelper {
         String SYNC = "sync";
         String SESSIONS_SPEAKERS = "sessions_speakers";
         String SESSIONS_TAGS = "sessions_tags";
+        String SESSIONS_PARALLEL = "sessions_parallel";
 
         String SESSIONS_SEARCH = "sessions_search";
         String SPEAKERS_SEARCH = "speakers_search";
@@ -123,16 +136,51 @@ public class ScheduleDatabase extends SQLiteOpenHelper {
 
         String SPEAKERS_SEARCH_JOIN_SPEAKERS = "speakers_search "
             + "LEFT OUTER JOIN speakers ON speakers_search.speaker_id=speakers.speaker_id";
+
+        /** Join for the {@code fts4} search tables, which share the row ids. */
+        String SESSIONS_FTS4_SEARCH_JOIN_SESSIONS_BLOCKS_ROOMS_TRACKS = "sessions_search "
+            + "LEFT OUTER JOIN sessions ON sessions_search.docid=sessions._id "
+            + "LEFT OUTER JOIN blocks ON sessions.block_id=blocks.block_id "
+            + "LEFT OUTER JOIN rooms ON sessions.room_id=rooms.room_id "
+        	+ "LEFT OUTER JOIN tracks ON sessions.track_id=tracks.track_id";
+
+        String SPEAKERS_FTS4_SEARCH_JOIN_SPEAKERS = "speakers_search "
+            + "LEFT OUTER JOIN speakers ON speakers_search.docid=speakers._id";
     }
 
     private interface Triggers {
         String SESSIONS_SEARCH_INSERT = "sessions_search_insert";
         String SESSIONS_SEARCH_DELETE = "sessions_search_delete";
         String SESSIONS_SEARCH_UPDATE = "sessions_search_update";
+        String SESSIONS_SEARCH_PRE_UPDATE = "sessions_search_pre_update";
 
         String SPEAKERS_SEARCH_INSERT = "speakers_search_insert";
         String SPEAKERS_SEARCH_DELETE = "speakers_search_delete";
         String SPEAKERS_SEARCH_UPDATE = "speakers_search_update";
+        String SPEAKERS_SEARCH_PRE_UPDATE = "speakers_search_pre_update";
+
+        String SESSIONS_STARRED_INSERT = "sessions_starred_insert";
+        String SESSIONS_STARRED_DELETE = "sessions_starred_delete";
+        String SESSIONS_STARRED_UPDATE = "sessions_starred_update";
+
+        String BLOCKS_STARRED_INSERT = "blocks_starred_insert";
+        String BLOCKS_STARRED_DELETE = "blocks_starred_delete";
+        String BLOCKS_STARRED_UPDATE = "blocks_starred_update";
+
+        String SPEAKERS_STARRED_SESSIONS_INSERT = "speakers_starred_sessions_insert";
+        String SPEAKERS_STARRED_SESSIONS_DELETE = "speakers_starred_sessions_delete";
+        String SPEAKERS_STARRED_SESSIONS_UPDATE = "speakers_starred_sessions_update";
+        String SPEAKERS_STARRED_LINKS_INSERT = "speakers_starred_links_insert";
+        String SPEAKERS_STARRED_LINKS_DELETE = "speakers_starred_links_delete";
+        String SPEAKERS_STARRED_LINKS_UPDATE = "speakers_starred_links_update";
+        String SPEAKERS_STARRED_INSERT = "speakers_starred_insert";
+
+        String SESSIONS_PARALLEL_INSERT = "sessions_parallel_insert";
+        String SESSIONS_PARALLEL_DELETE = "sessions_parallel_delete";
+        String SESSIONS_PARALLEL_UPDATE = "sessions_parallel_update";
+        String BLOCKS_PARALLEL_INSERT = "blocks_parallel_insert";
+        String BLOCKS_PARALLEL_DELETE = "blocks_parallel_delete";
+        String BLOCKS_PARALLEL_UPDATE = "blocks_parallel_update";
     }
 
     public interface SessionsSpeakers {
@@ -145,6 +193,15 @@ public class ScheduleDatabase extends SQLiteOpenHelper {
         String TAG_ID = "tag_id";
     }
 
+    /**
+     * Pairs of sessions where the block of the parallel session falls within
+     * the block of the session.
+     */
+    public interface SessionsParallel {
+        String SESSION_ID = "session_id";
+        String PARALLEL_SESSION_ID = "parallel_session_id";
+    }
+
     interface SessionsSearchColumns {
         String SESSION_ID = "session_id";
         String BODY = "body";
@@ -155,6 +212,11 @@ public class ScheduleDatabase extends SQLiteOpenHelper {
         String BODY = "body";
     }
 
+    /** Column of the tables that keep a count of their sessions. */
+    interface SessionsCountColumns {
+        String SESSIONS_COUNT = "sessions_count";
+    }
+
     /** Fully-qualified field names. */
     private interface Qualified {
         String SESSIONS_SEARCH_SESSION_ID = Tables.SESSIONS_SEARCH + "."
@@ -181,6 +243,36 @@ public class ScheduleDatabase extends SQLiteOpenHelper {
         String TYPE_ID = "REFERENCES " + Tables.TYPES + "(" + Types.TYPE_ID + ")";
     }
 
+    /**
+     * Rows of a child table that refer to a row of a parent table and are
+     * deleted along with it.
+     */
+    private static class Cascade {
+        final String parent;
+        final String parentKey;
+        final String child;
+        final String childKey;
+
+        Cascade(String parent, String parentKey, String child, String childKey) {
+            this.parent = parent;
+            this.parentKey = parentKey;
+            this.child = child;
+            this.childKey = childKey;
+        }
+    }
+
+    /** Cascades enforcing the {@link References} clauses. */
+    private static final Cascade [] CASCADES = {
+        new Cascade(Tables.TRACKS, Tracks.TRACK_ID, Tables.SESSIONS, Sessions.TRACK_ID),
+        new Cascade(Tables.SESSIONS, Sessions.SESSION_ID, Tables.SESSIONS_SPEAKERS,
+                SessionsSpeakers.SESSION_ID),
+        new Cascade(Tables.SESSIONS, Sessions.SESSION_ID, Tables.SESSIONS_TAGS, SessionsTags.SESSION_ID),
+        new Cascade(Tables.SESSIONS, Sessions.SESSION_ID, Tables.NOTES, Notes.SESSION_ID),
+        new Cascade(Tables.SPEAKERS, Speakers.SPEAKER_ID, Tables.SESSIONS_SPEAKERS,
+                SessionsSpeakers.SPEAKER_ID),
+        new Cascade(Tables.TAGS, Tags.TAG_ID, Tables.SESSIONS_TAGS, SessionsTags.TAG_ID),
+    };
+
     private interface Subquery {
         /**
          * Subquery used to build the {@link SessionsSearchColumns#BODY} string
@@ -197,6 +289,55 @@ public class ScheduleDatabase extends SQLiteOpenHelper {
         String SPEAKERS_BODY = "(new." + Speakers.FIRST_NAME + "||'; '||new." + Speakers.LAST_NAME
         		+ "||'; '||new." + Speakers.COMPANY + "||'; '||" + "new." + Speakers.BIO
         		+ ")";
+
+        /**
+         * Subquery used to count the starred {@link Sessions} in blocks that
+         * overlap with the {@link Blocks} row being updated.
+         */
+        String BLOCK_STARRED_SESSIONS_COUNT = "(SELECT COUNT(S." + Sessions.SESSION_ID + ") FROM "
+        		+ Tables.SESSIONS + " AS S LEFT OUTER JOIN " + Tables.BLOCKS + " AS B ON S."
+        		+ Sessions.BLOCK_ID + "=B." + Blocks.BLOCK_ID + " WHERE S." + Sessions.STARRED
+        		+ "=1 AND ((" + Tables.BLOCKS + "." + Blocks.BLOCK_START + ">=B." + Blocks.BLOCK_START
+        		+ " AND " + Tables.BLOCKS + "." + Blocks.BLOCK_END + "<=B." + Blocks.BLOCK_END
+        		+ ") OR (" + Tables.BLOCKS + "." + Blocks.BLOCK_END + ">B." + Blocks.BLOCK_START
+        		+ " AND " + Tables.BLOCKS + "." + Blocks.BLOCK_END + "<=B." + Blocks.BLOCK_END
+        		+ ") OR (" + Tables.BLOCKS + "." + Blocks.BLOCK_START + "<B." + Blocks.BLOCK_END
+        		+ " AND " + Tables.BLOCKS + "." + Blocks.BLOCK_START + ">=B." + Blocks.BLOCK_START
+        		+ ")))";
+
+        /**
+         * Subquery used to flag whether the {@link Speakers} row being updated
+         * has any starred session.
+         */
+        String SPEAKER_CONTAINS_STARRED = "(SELECT IFNULL(MAX(" + Tables.SESSIONS + "." + Sessions.STARRED
+        		+ "),0) FROM " + Tables.SESSIONS + " JOIN " + Tables.SESSIONS_SPEAKERS + " ON "
+        		+ Tables.SESSIONS + "." + Sessions.SESSION_ID + "=" + Tables.SESSIONS_SPEAKERS + "."
+        		+ SessionsSpeakers.SESSION_ID + " WHERE " + Tables.SESSIONS_SPEAKERS + "."
+        		+ SessionsSpeakers.SPEAKER_ID + "=" + Tables.SPEAKERS + "." + Speakers.SPEAKER_ID + ")";
+    }
+
+    private static ScheduleDatabase sInstance;
+    /**
+     * Lengths of the prefix indexes of the {@code fts4} search tables. The
+     * last word of a search is still being typed, so it is matched as a
+     * prefix once it has {@link #MIN_SEARCH_PREFIX} characters.
+     */
+    private static final String SEARCH_PREFIXES = "3,4,5";
+    static final int MIN_SEARCH_PREFIX = 3;
+
+    private static Boolean sFts4Supported;
+    private static volatile Boolean sFts4SearchTables;
+
+    /**
+     * Returns the {@link ScheduleDatabase} shared by {@link ScheduleProvider}
+     * and {@link ScheduleBatchWriter}, so both write through the same
+     * connection.
+     */
+    public static synchronized ScheduleDatabase getInstance(Context context) {
+    	if (sInstance == null) {
+    		sInstance = new ScheduleDatabase(context.getApplicationContext());
+    	}
+    	return sInstance;
     }
 
     public ScheduleDatabase(Context context) {
@@ -222,6 +363,7 @@ public class ScheduleDatabase extends SQLiteOpenHelper {
                 + SessionsColumns.STARRED + " INTEGER NOT NULL DEFAULT 0,"
                 + SessionsColumns.NEW + " INTEGER NOT NULL DEFAULT 0,"
                 + SessionsColumns.UPDATED + " INTEGER NOT NULL DEFAULT 0,"
+                + SessionsColumns.SESSION_FINGERPRINT + " INTEGER,"
                 + "UNIQUE (" + SessionsColumns.SESSION_ID + ") ON CONFLICT REPLACE)");
 
         db.execSQL("CREATE TABLE " + Tables.SPEAKERS + " ("
@@ -232,6 +374,8 @@ public class ScheduleDatabase extends SQLiteOpenHelper {
                 + SpeakersColumns.BIO + " TEXT NOT NULL,"
                 + SpeakersColumns.COMPANY + " TEXT NOT NULL,"
                 + SpeakersColumns.IMAGE_URL + " TEXT NOT NULL,"
+                + Speakers.CONTAINS_STARRED + " INTEGER NOT NULL DEFAULT 0,"
+                + SpeakersColumns.SPEAKER_FINGERPRINT + " INTEGER,"
                 + "UNIQUE (" + SpeakersColumns.SPEAKER_ID + ") ON CONFLICT REPLACE)");
         
         db.execSQL("CREATE TABLE " + Tables.ROOMS + " ("
@@ -239,6 +383,8 @@ public class ScheduleDatabase extends SQLiteOpenHelper {
                 + RoomsColumns.ROOM_ID + " TEXT NOT NULL,"
                 + RoomsColumns.NAME + " TEXT NOT NULL,"
                 + RoomsColumns.CAPACITY + " TEXT NOT NULL,"
+                + Rooms.SESSIONS_COUNT + " INTEGER NOT NULL DEFAULT 0,"
+                + RoomsColumns.ROOM_FINGERPRINT + " INTEGER,"
                 + "UNIQUE (" + RoomsColumns.ROOM_ID + ") ON CONFLICT REPLACE)");
 
         db.execSQL("CREATE TABLE " + Tables.BLOCKS + " ("
@@ -248,6 +394,10 @@ public class ScheduleDatabase extends SQLiteOpenHelper {
                 + BlocksColumns.BLOCK_START + " INTEGER NOT NULL,"
                 + BlocksColumns.BLOCK_END + " INTEGER NOT NULL,"
                 + BlocksColumns.BLOCK_TYPE + " TEXT NOT NULL,"
+                + Sessions.STARRED_IN_BLOCK_COUNT + " INTEGER NOT NULL DEFAULT 0,"
+                + Blocks.SESSIONS_COUNT + " INTEGER NOT NULL DEFAULT 0,"
+                + Blocks.CONTAINS_STARRED + " INTEGER NOT NULL DEFAULT 0,"
+                + BlocksColumns.BLOCK_FINGERPRINT + " INTEGER,"
                 + "UNIQUE (" + BlocksColumns.BLOCK_ID + ") ON CONFLICT REPLACE)");
 
         db.execSQL("CREATE TABLE " + Tables.TRACKS + " ("
@@ -255,6 +405,8 @@ public class ScheduleDatabase extends SQLiteOpenHelper {
                 + TracksColumns.TRACK_ID + " TEXT NOT NULL,"
                 + TracksColumns.TRACK_NAME + " TEXT,"
                 + TracksColumns.TRACK_COLOR + " INTEGER,"
+                + Tracks.SESSIONS_COUNT + " INTEGER NOT NULL DEFAULT 0,"
+                + TracksColumns.TRACK_FINGERPRINT + " INTEGER,"
                 + "UNIQUE (" + TracksColumns.TRACK_ID + ") ON CONFLICT REPLACE)");
 
         db.execSQL("CREATE TABLE " + Tables.TYPES + " ("
@@ -262,12 +414,14 @@ public class ScheduleDatabase extends SQLiteOpenHelper {
                 + TypesColumns.TYPE_ID + " TEXT NOT NULL,"
                 + TypesColumns.TYPE_NAME + " TEXT NOT NULL,"
                 + TypesColumns.TYPE_DESCRIPTION + " TEXT NOT NULL,"
+                + Types.SESSIONS_COUNT + " INTEGER NOT NULL DEFAULT 0,"
                 + "UNIQUE (" + TypesColumns.TYPE_ID + ") ON CONFLICT REPLACE)");
         
         db.execSQL("CREATE TABLE " + Tables.TAGS + " ("
                 + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
                 + TagsColumns.TAG_ID + " TEXT NOT NULL,"
                 + TagsColumns.TAG_NAME + " TEXT NOT NULL,"
+                + Tags.SESSIONS_COUNT + " INTEGER NOT NULL DEFAULT 0,"
                 + "UNIQUE (" + TagsColumns.TAG_ID + ") ON CONFLICT REPLACE)");
         
         db.execSQL("CREATE TABLE " + Tables.SESSIONS_SPEAKERS + " ("
@@ -283,6 +437,8 @@ public class ScheduleDatabase extends SQLiteOpenHelper {
                 + SessionsTags.TAG_ID + " TEXT NOT NULL " + References.TAG_ID + ","
                 + "UNIQUE (" + SessionsTags.SESSION_ID + ","
                         + SessionsTags.TAG_ID + ") ON CONFLICT REPLACE)");
+
+        createSessionsParallel(db);
         
         db.execSQL("CREATE TABLE " + Tables.NOTES + " ("
                 + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
@@ -295,10 +451,22 @@ public class ScheduleDatabase extends SQLiteOpenHelper {
                 + SyncColumns.URI_ID + " TEXT NOT NULL,"
                 + SyncColumns.URI + " TEXT NOT NULL,"
                 + SyncColumns.MD5 + " TEXT NOT NULL,"
+                + SyncColumns.ETAG + " TEXT,"
+                + SyncColumns.LAST_MODIFIED + " TEXT,"
                 + "UNIQUE (" + SyncColumns.URI_ID + ") ON CONFLICT REPLACE)");
 
-        createSessionsSearch(db, true);
-        createSpeakersSearch(db, true);
+        sFts4SearchTables = null;
+        if (isFts4Supported(db)) {
+            createFts4SessionsSearch(db);
+            createFts4SpeakersSearch(db);
+        } else {
+            createSessionsSearch(db, true);
+            createSpeakersSearch(db, true);
+        }
+        createStarredInBlockTriggers(db);
+        createSessionsCountTriggers(db);
+        createSpeakerStarredTriggers(db);
+        createCascadeTriggers(db);
 
         db.execSQL("CREATE TABLE " + Tables.SEARCH_SUGGEST + " ("
                 + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
@@ -384,6 +552,436 @@ public class ScheduleDatabase extends SQLiteOpenHelper {
                 + "=old." + Speakers.SPEAKER_ID + ";" + " END;");
     }
 
+    /**
+     * Returns whether the SQLite library supports {@code fts4} tables with
+     * external content, which needs version 3.7.9.
+     */
+    private static boolean isFts4Supported(SQLiteDatabase db) {
+        if (sFts4Supported == null) {
+            final SQLiteStatement statement = db.compileStatement("SELECT sqlite_version()");
+            try {
+                final String [] version = statement.simpleQueryForString().split("\\.");
+                int major = 0, minor = 0, patch = 0;
+                try {
+                    major = Integer.parseInt(version[0]);
+                    if (version.length > 1) minor = Integer.parseInt(version[1]);
+                    if (version.length > 2) patch = Integer.parseInt(version[2]);
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "Unknown SQLite version", e);
+                }
+                sFts4Supported = major > 3 || (major == 3 && (minor > 7 || (minor == 7 && patch >= 9)));
+            } finally {
+                statement.close();
+            }
+        }
+        return sFts4Supported;
+    }
+
+    /**
+     * Returns whether the search tables on disk are the {@code fts4} ones,
+     * which decides how they are queried. This is read from the schema, as
+     * a database may have been created by an older SQLite library.
+     */
+    static boolean hasFts4SearchTables(SQLiteDatabase db) {
+        Boolean fts4SearchTables = sFts4SearchTables;
+        if (fts4SearchTables == null) {
+            final SQLiteStatement statement = db.compileStatement("SELECT sql FROM sqlite_master"
+                    + " WHERE type='table' AND name='" + Tables.SESSIONS_SEARCH + "'");
+            try {
+                final String sql = statement.simpleQueryForString();
+                fts4SearchTables = sql != null && sql.toLowerCase().contains("using fts4");
+            } catch (SQLiteDoneException e) {
+                fts4SearchTables = false;
+            } finally {
+                statement.close();
+            }
+            sFts4SearchTables = fts4SearchTables;
+        }
+        return fts4SearchTables;
+    }
+
+    /**
+     * Replace the {@code fts3} search tables by {@code fts4} ones and index
+     * the current sessions and speakers.
+     */
+    private static void upgradeSearchTables(SQLiteDatabase db) {
+        sFts4SearchTables = null;
+        db.execSQL("DROP TRIGGER IF EXISTS " + Triggers.SESSIONS_SEARCH_INSERT);
+        db.execSQL("DROP TRIGGER IF EXISTS " + Triggers.SESSIONS_SEARCH_DELETE);
+        db.execSQL("DROP TRIGGER IF EXISTS " + Triggers.SESSIONS_SEARCH_UPDATE);
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.SESSIONS_SEARCH);
+        db.execSQL("DROP TRIGGER IF EXISTS " + Triggers.SPEAKERS_SEARCH_INSERT);
+        db.execSQL("DROP TRIGGER IF EXISTS " + Triggers.SPEAKERS_SEARCH_DELETE);
+        db.execSQL("DROP TRIGGER IF EXISTS " + Triggers.SPEAKERS_SEARCH_UPDATE);
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.SPEAKERS_SEARCH);
+
+        createFts4SessionsSearch(db);
+        createFts4SpeakersSearch(db);
+        db.execSQL("INSERT INTO " + Tables.SESSIONS_SEARCH + "(docid, " + Sessions.TITLE
+        		+ ", " + Sessions.SUMMARY + ", " + Sessions.EXPERIENCE + ", " + Sessions.NOTE
+        		+ ") SELECT " + BaseColumns._ID + ", " + Sessions.TITLE + ", " + Sessions.SUMMARY
+        		+ ", " + Sessions.EXPERIENCE + ", " + Sessions.NOTE + " FROM " + Tables.SESSIONS);
+        db.execSQL("INSERT INTO " + Tables.SPEAKERS_SEARCH + "(docid, " + Speakers.FIRST_NAME
+        		+ ", " + Speakers.LAST_NAME + ", " + Speakers.COMPANY + ", " + Speakers.BIO
+        		+ ") SELECT " + BaseColumns._ID + ", " + Speakers.FIRST_NAME + ", "
+        		+ Speakers.LAST_NAME + ", " + Speakers.COMPANY + ", " + Speakers.BIO
+        		+ " FROM " + Tables.SPEAKERS);
+    }
+
+    /**
+     * Move the search tables to {@code fts4} when the platform started
+     * supporting it after they were created, e.g. after an OS update. This
+     * does not change the database version, so {@link #onUpgrade} misses it.
+     */
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (!db.isReadOnly() && isFts4Supported(db) && !hasFts4SearchTables(db)) {
+            Log.d(TAG, "moving search tables to fts4");
+            db.beginTransaction();
+            try {
+                upgradeSearchTables(db);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Create {@link Tables#SESSIONS_SEARCH} as an {@code fts4} index over the
+     * text columns of {@link Tables#SESSIONS}, without a copy of the text.
+     * The prefix indexes serve partial word queries of up to five characters
+     * like {@code "andr*"}, longer prefixes scan the terms of the full index.
+     */
+    private static void createFts4SessionsSearch(SQLiteDatabase db) {
+        final String columns = Sessions.TITLE + ", " + Sessions.SUMMARY + ", "
+                + Sessions.EXPERIENCE + ", " + Sessions.NOTE;
+        db.execSQL("CREATE VIRTUAL TABLE " + Tables.SESSIONS_SEARCH + " USING fts4("
+                + columns + ", content=\"" + Tables.SESSIONS + "\", prefix=\"" + SEARCH_PREFIXES + "\","
+                + " tokenize=porter)");
+        createFts4SearchTriggers(db, Tables.SESSIONS, Tables.SESSIONS_SEARCH, columns,
+                Triggers.SESSIONS_SEARCH_INSERT, Triggers.SESSIONS_SEARCH_DELETE,
+                Triggers.SESSIONS_SEARCH_PRE_UPDATE, Triggers.SESSIONS_SEARCH_UPDATE);
+    }
+
+    /**
+     * Create {@link Tables#SPEAKERS_SEARCH} as an {@code fts4} index over the
+     * text columns of {@link Tables#SPEAKERS}, without a copy of the text.
+     */
+    private static void createFts4SpeakersSearch(SQLiteDatabase db) {
+        final String columns = Speakers.FIRST_NAME + ", " + Speakers.LAST_NAME + ", "
+                + Speakers.COMPANY + ", " + Speakers.BIO;
+        db.execSQL("CREATE VIRTUAL TABLE " + Tables.SPEAKERS_SEARCH + " USING fts4("
+                + columns + ", content=\"" + Tables.SPEAKERS + "\", prefix=\"" + SEARCH_PREFIXES + "\","
+                + " tokenize=porter)");
+        createFts4SearchTriggers(db, Tables.SPEAKERS, Tables.SPEAKERS_SEARCH, columns,
+                Triggers.SPEAKERS_SEARCH_INSERT, Triggers.SPEAKERS_SEARCH_DELETE,
+                Triggers.SPEAKERS_SEARCH_PRE_UPDATE, Triggers.SPEAKERS_SEARCH_UPDATE);
+    }
+
+    /**
+     * Create the triggers that keep an external content {@code fts4} table
+     * in line with its content table. The old index entries are removed
+     * before the row changes, as they are read back from the content table.
+     */
+    private static void createFts4SearchTriggers(SQLiteDatabase db, String table, String search,
+            String columns, String insertTrigger, String deleteTrigger, String preUpdateTrigger,
+            String updateTrigger) {
+        final String deleteOld = "DELETE FROM " + search + " WHERE docid=old." + BaseColumns._ID + ";";
+        final String insertNew = "INSERT INTO " + search + "(docid, " + columns + ") VALUES(new."
+                + BaseColumns._ID + ", new." + columns.replace(", ", ", new.") + ");";
+
+        db.execSQL("CREATE TRIGGER " + insertTrigger + " AFTER INSERT ON " + table
+                + " BEGIN " + insertNew + " END;");
+
+        db.execSQL("CREATE TRIGGER " + deleteTrigger + " BEFORE DELETE ON " + table
+                + " BEGIN " + deleteOld + " END;");
+
+        db.execSQL("CREATE TRIGGER " + preUpdateTrigger + " BEFORE UPDATE OF " + columns
+                + " ON " + table + " BEGIN " + deleteOld + " END;");
+
+        db.execSQL("CREATE TRIGGER " + updateTrigger + " AFTER UPDATE OF " + columns
+                + " ON " + table + " BEGIN " + insertNew + " END;");
+    }
+
+    /**
+     * Create triggers that keep {@link Sessions#STARRED_IN_BLOCK_COUNT} up to
+     * date on every {@link Tables#BLOCKS} row that overlaps with a block whose
+     * starred sessions changed.
+     */
+    private static void createStarredInBlockTriggers(SQLiteDatabase db) {
+        db.execSQL("CREATE TRIGGER " + Triggers.SESSIONS_STARRED_INSERT + " AFTER INSERT ON "
+                + Tables.SESSIONS + " WHEN new." + Sessions.STARRED + "=1 BEGIN "
+                + updateStarredInBlockCount("new") + " END;");
+
+        db.execSQL("CREATE TRIGGER " + Triggers.SESSIONS_STARRED_DELETE + " AFTER DELETE ON "
+                + Tables.SESSIONS + " WHEN old." + Sessions.STARRED + "=1 BEGIN "
+                + updateStarredInBlockCount("old") + " END;");
+
+        db.execSQL("CREATE TRIGGER " + Triggers.SESSIONS_STARRED_UPDATE + " AFTER UPDATE OF "
+                + Sessions.STARRED + ", " + Sessions.BLOCK_ID + " ON " + Tables.SESSIONS
+                + " WHEN old." + Sessions.STARRED + "=1 OR new." + Sessions.STARRED + "=1 BEGIN "
+                + updateStarredInBlockCount("old") + " " + updateStarredInBlockCount("new") + " END;");
+
+        db.execSQL("CREATE TRIGGER " + Triggers.BLOCKS_STARRED_INSERT + " AFTER INSERT ON "
+                + Tables.BLOCKS + " BEGIN " + updateStarredInBlockCount("new." + Blocks.BLOCK_START,
+                "new." + Blocks.BLOCK_END) + " END;");
+
+        db.execSQL("CREATE TRIGGER " + Triggers.BLOCKS_STARRED_DELETE + " AFTER DELETE ON "
+                + Tables.BLOCKS + " BEGIN " + updateStarredInBlockCount("old." + Blocks.BLOCK_START,
+                "old." + Blocks.BLOCK_END) + " END;");
+
+        db.execSQL("CREATE TRIGGER " + Triggers.BLOCKS_STARRED_UPDATE + " AFTER UPDATE OF "
+                + Blocks.BLOCK_START + ", " + Blocks.BLOCK_END + " ON " + Tables.BLOCKS + " BEGIN "
+                + updateStarredInBlockCount("old." + Blocks.BLOCK_START, "old." + Blocks.BLOCK_END) + " "
+                + updateStarredInBlockCount("new." + Blocks.BLOCK_START, "new." + Blocks.BLOCK_END)
+                + " END;");
+    }
+
+    /**
+     * Statement that recounts the blocks overlapping with the block of the
+     * given session row reference, {@code old} or {@code new}.
+     */
+    private static String updateStarredInBlockCount(String session) {
+        final String blockOfSession = " FROM " + Tables.BLOCKS + " WHERE " + Blocks.BLOCK_ID + "="
+                + session + "." + Sessions.BLOCK_ID + ")";
+        return updateStarredInBlockCount("(SELECT " + Blocks.BLOCK_START + blockOfSession,
+                "(SELECT " + Blocks.BLOCK_END + blockOfSession);
+    }
+
+    /**
+     * Statement that recounts the blocks overlapping with the given range.
+     */
+    private static String updateStarredInBlockCount(String start, String end) {
+        return "UPDATE " + Tables.BLOCKS + " SET " + Sessions.STARRED_IN_BLOCK_COUNT + "="
+                + Subquery.BLOCK_STARRED_SESSIONS_COUNT + " WHERE " + Blocks.BLOCK_START + "<="
+                + end + " AND " + Blocks.BLOCK_END + ">=" + start + ";";
+    }
+
+    /**
+     * Create triggers that keep the sessions counts of
+     * {@link Tables#TRACKS}, {@link Tables#TAGS}, {@link Tables#TYPES},
+     * {@link Tables#ROOMS} and {@link Tables#BLOCKS}, and
+     * {@link Blocks#CONTAINS_STARRED}, up to date.
+     */
+    private static void createSessionsCountTriggers(SQLiteDatabase db) {
+        createSessionsCountTriggers(db, Tables.TRACKS, Tracks.TRACK_ID, Tables.SESSIONS, Sessions.TRACK_ID);
+        createSessionsCountTriggers(db, Tables.TAGS, Tags.TAG_ID, Tables.SESSIONS_TAGS, SessionsTags.TAG_ID);
+        createSessionsCountTriggers(db, Tables.TYPES, Types.TYPE_ID, Tables.SESSIONS, Sessions.TYPE_ID);
+        createSessionsCountTriggers(db, Tables.ROOMS, Rooms.ROOM_ID, Tables.SESSIONS, Sessions.ROOM_ID);
+        createSessionsCountTriggers(db, Tables.BLOCKS, Blocks.BLOCK_ID, Tables.SESSIONS,
+                Sessions.BLOCK_ID + ", " + Sessions.STARRED);
+    }
+
+    /**
+     * Create the triggers that recount the sessions of a table row whenever
+     * one of the given columns of the source table changes, and when the row
+     * itself is inserted.
+     */
+    private static void createSessionsCountTriggers(SQLiteDatabase db, String table, String idColumn,
+            String source, String sourceColumns) {
+        db.execSQL("CREATE TRIGGER " + table + "_sessions_count_insert AFTER INSERT ON " + source
+                + " BEGIN " + updateSessionsCount(table, idColumn, source, "new") + " END;");
+
+        db.execSQL("CREATE TRIGGER " + table + "_sessions_count_delete AFTER DELETE ON " + source
+                + " BEGIN " + updateSessionsCount(table, idColumn, source, "old") + " END;");
+
+        db.execSQL("CREATE TRIGGER " + table + "_sessions_count_update AFTER UPDATE OF "
+                + sourceColumns + " ON " + source + " BEGIN "
+                + updateSessionsCount(table, idColumn, source, "old") + " "
+                + updateSessionsCount(table, idColumn, source, "new") + " END;");
+
+        db.execSQL("CREATE TRIGGER " + table + "_sessions_count_init AFTER INSERT ON " + table
+                + " BEGIN " + updateSessionsCount(table, idColumn, source, "new") + " END;");
+    }
+
+    /**
+     * Statement that recounts the sessions of the row with the id of the
+     * given row reference, {@code old} or {@code new}.
+     */
+    private static String updateSessionsCount(String table, String idColumn, String source, String row) {
+        return "UPDATE " + table + " SET " + getSessionsCountValues(table, idColumn, source)
+                + " WHERE " + idColumn + "=" + row + "." + idColumn + ";";
+    }
+
+    /**
+     * Assignments that recount the sessions of the rows being updated.
+     */
+    private static String getSessionsCountValues(String table, String idColumn, String source) {
+        String values = SessionsCountColumns.SESSIONS_COUNT + "=(SELECT COUNT(*) FROM " + source + " WHERE "
+                + source + "." + idColumn + "=" + table + "." + idColumn + ")";
+        if (Tables.BLOCKS.equals(table)) {
+            values += "," + Blocks.CONTAINS_STARRED + "=(SELECT IFNULL(MAX(" + Sessions.STARRED + "),0) FROM "
+                    + Tables.SESSIONS + " WHERE " + Tables.SESSIONS + "." + Sessions.BLOCK_ID + "="
+                    + Tables.BLOCKS + "." + Blocks.BLOCK_ID + ")";
+        }
+        return values;
+    }
+
+    /**
+     * Create triggers that keep {@link Speakers#CONTAINS_STARRED} up to date
+     * as sessions are starred and speakers are linked to sessions.
+     */
+    private static void createSpeakerStarredTriggers(SQLiteDatabase db) {
+        db.execSQL("CREATE TRIGGER " + Triggers.SPEAKERS_STARRED_SESSIONS_INSERT + " AFTER INSERT ON "
+                + Tables.SESSIONS + " WHEN new." + Sessions.STARRED + "=1 BEGIN "
+                + updateSpeakersOfSession("new") + " END;");
+
+        db.execSQL("CREATE TRIGGER " + Triggers.SPEAKERS_STARRED_SESSIONS_DELETE + " AFTER DELETE ON "
+                + Tables.SESSIONS + " WHEN old." + Sessions.STARRED + "=1 BEGIN "
+                + updateSpeakersOfSession("old") + " END;");
+
+        db.execSQL("CREATE TRIGGER " + Triggers.SPEAKERS_STARRED_SESSIONS_UPDATE + " AFTER UPDATE OF "
+                + Sessions.STARRED + " ON " + Tables.SESSIONS + " WHEN old." + Sessions.STARRED
+                + " IS NOT new." + Sessions.STARRED + " BEGIN " + updateSpeakersOfSession("new")
+                + " END;");
+
+        db.execSQL("CREATE TRIGGER " + Triggers.SPEAKERS_STARRED_LINKS_INSERT + " AFTER INSERT ON "
+                + Tables.SESSIONS_SPEAKERS + " BEGIN " + updateSpeakerContainsStarred("new") + " END;");
+
+        db.execSQL("CREATE TRIGGER " + Triggers.SPEAKERS_STARRED_LINKS_DELETE + " AFTER DELETE ON "
+                + Tables.SESSIONS_SPEAKERS + " BEGIN " + updateSpeakerContainsStarred("old") + " END;");
+
+        db.execSQL("CREATE TRIGGER " + Triggers.SPEAKERS_STARRED_LINKS_UPDATE + " AFTER UPDATE ON "
+                + Tables.SESSIONS_SPEAKERS + " BEGIN " + updateSpeakerContainsStarred("old") + " "
+                + updateSpeakerContainsStarred("new") + " END;");
+
+        db.execSQL("CREATE TRIGGER " + Triggers.SPEAKERS_STARRED_INSERT + " AFTER INSERT ON "
+                + Tables.SPEAKERS + " BEGIN " + updateSpeakerContainsStarred("new") + " END;");
+    }
+
+    /**
+     * Statement that flags the speakers of the given session row reference,
+     * {@code old} or {@code new}.
+     */
+    private static String updateSpeakersOfSession(String session) {
+        return "UPDATE " + Tables.SPEAKERS + " SET " + Speakers.CONTAINS_STARRED + "="
+                + Subquery.SPEAKER_CONTAINS_STARRED + " WHERE " + Speakers.SPEAKER_ID + " IN (SELECT "
+                + SessionsSpeakers.SPEAKER_ID + " FROM " + Tables.SESSIONS_SPEAKERS + " WHERE "
+                + SessionsSpeakers.SESSION_ID + "=" + session + "." + Sessions.SESSION_ID + ");";
+    }
+
+    /**
+     * Statement that flags the speaker of the given row reference,
+     * {@code old} or {@code new}.
+     */
+    private static String updateSpeakerContainsStarred(String row) {
+        return "UPDATE " + Tables.SPEAKERS + " SET " + Speakers.CONTAINS_STARRED + "="
+                + Subquery.SPEAKER_CONTAINS_STARRED + " WHERE " + Speakers.SPEAKER_ID + "="
+                + row + "." + Speakers.SPEAKER_ID + ";";
+    }
+
+    /**
+     * Create {@link Tables#SESSIONS_PARALLEL} and the triggers that update it
+     * whenever a session moves to another block or a block is retimed.
+     */
+    private static void createSessionsParallel(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + Tables.SESSIONS_PARALLEL + " ("
+                + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+                + SessionsParallel.SESSION_ID + " TEXT NOT NULL " + References.SESSION_ID + ","
+                + SessionsParallel.PARALLEL_SESSION_ID + " TEXT NOT NULL " + References.SESSION_ID + ","
+                + "UNIQUE (" + SessionsParallel.SESSION_ID + ","
+                        + SessionsParallel.PARALLEL_SESSION_ID + ") ON CONFLICT IGNORE)");
+
+        db.execSQL("CREATE INDEX "
+                + Tables.SESSIONS_PARALLEL + "_" + SessionsParallel.PARALLEL_SESSION_ID + "_IDX ON "
+                + Tables.SESSIONS_PARALLEL + "(" + SessionsParallel.PARALLEL_SESSION_ID + ")");
+
+        final String sessionIdOfNew = "=new." + Sessions.SESSION_ID;
+        final String sessionIdOfOld = "=old." + Sessions.SESSION_ID;
+        db.execSQL("CREATE TRIGGER " + Triggers.SESSIONS_PARALLEL_INSERT + " AFTER INSERT ON "
+                + Tables.SESSIONS + " BEGIN " + deleteParallel(sessionIdOfNew) + " "
+                + insertParallel(sessionIdOfNew) + " END;");
+
+        db.execSQL("CREATE TRIGGER " + Triggers.SESSIONS_PARALLEL_DELETE + " AFTER DELETE ON "
+                + Tables.SESSIONS + " BEGIN " + deleteParallel(sessionIdOfOld) + " END;");
+
+        db.execSQL("CREATE TRIGGER " + Triggers.SESSIONS_PARALLEL_UPDATE + " AFTER UPDATE OF "
+                + Sessions.BLOCK_ID + " ON " + Tables.SESSIONS + " WHEN old." + Sessions.BLOCK_ID
+                + " IS NOT new." + Sessions.BLOCK_ID + " BEGIN " + deleteParallel(sessionIdOfNew)
+                + " " + insertParallel(sessionIdOfNew) + " END;");
+
+        final String sessionsOfNew = " IN (SELECT " + Sessions.SESSION_ID + " FROM " + Tables.SESSIONS
+                + " WHERE " + Sessions.BLOCK_ID + "=new." + Blocks.BLOCK_ID + ")";
+        final String sessionsOfOld = " IN (SELECT " + Sessions.SESSION_ID + " FROM " + Tables.SESSIONS
+                + " WHERE " + Sessions.BLOCK_ID + "=old." + Blocks.BLOCK_ID + ")";
+        db.execSQL("CREATE TRIGGER " + Triggers.BLOCKS_PARALLEL_INSERT + " AFTER INSERT ON "
+                + Tables.BLOCKS + " BEGIN " + deleteParallel(sessionsOfNew) + " "
+                + insertParallel(sessionsOfNew) + " END;");
+
+        db.execSQL("CREATE TRIGGER " + Triggers.BLOCKS_PARALLEL_DELETE + " AFTER DELETE ON "
+                + Tables.BLOCKS + " BEGIN " + deleteParallel(sessionsOfOld) + " END;");
+
+        db.execSQL("CREATE TRIGGER " + Triggers.BLOCKS_PARALLEL_UPDATE + " AFTER UPDATE OF "
+                + Blocks.BLOCK_START + ", " + Blocks.BLOCK_END + " ON " + Tables.BLOCKS + " BEGIN "
+                + deleteParallel(sessionsOfNew) + " " + insertParallel(sessionsOfNew) + " END;");
+
+        db.execSQL(insertParallel(null));
+    }
+
+    /**
+     * Statement that removes the pairs of the sessions matching the given
+     * condition on their session id.
+     */
+    private static String deleteParallel(String sessionIdCondition) {
+        return "DELETE FROM " + Tables.SESSIONS_PARALLEL + " WHERE " + SessionsParallel.SESSION_ID
+                + sessionIdCondition + " OR " + SessionsParallel.PARALLEL_SESSION_ID
+                + sessionIdCondition + ";";
+    }
+
+    /**
+     * Statement that adds the pairs of the sessions matching the given
+     * condition on their session id, or of all sessions when null.
+     */
+    private static String insertParallel(String sessionIdCondition) {
+        final String pairs = "INSERT INTO " + Tables.SESSIONS_PARALLEL + " ("
+                + SessionsParallel.SESSION_ID + "," + SessionsParallel.PARALLEL_SESSION_ID + ") SELECT S."
+                + Sessions.SESSION_ID + ",P." + Sessions.SESSION_ID + " FROM " + Tables.SESSIONS + " AS S,"
+                + Tables.BLOCKS + " AS SB," + Tables.BLOCKS + " AS PB," + Tables.SESSIONS + " AS P WHERE S."
+                + Sessions.BLOCK_ID + "=SB." + Blocks.BLOCK_ID + " AND P." + Sessions.BLOCK_ID + "=PB."
+                + Blocks.BLOCK_ID + " AND PB." + Blocks.BLOCK_START + ">=SB." + Blocks.BLOCK_START
+                + " AND PB." + Blocks.BLOCK_END + "<=SB." + Blocks.BLOCK_END + " AND S."
+                + Sessions.SESSION_ID + "<>P." + Sessions.SESSION_ID;
+        if (sessionIdCondition == null) {
+            return pairs + ";";
+        }
+        return pairs + " AND S." + Sessions.SESSION_ID + sessionIdCondition + "; "
+                + pairs + " AND P." + Sessions.SESSION_ID + sessionIdCondition + ";";
+    }
+
+    /**
+     * Create the triggers that delete the rows referring to a deleted row,
+     * so a single delete also removes the links and notes of a session. The
+     * search triggers then take care of the full text rows.
+     */
+    private static void createCascadeTriggers(SQLiteDatabase db) {
+        for (Cascade cascade : CASCADES) {
+            db.execSQL(createCascadeTrigger("", cascade));
+        }
+    }
+
+    /**
+     * Create the cascade triggers between the temporary copies of the given
+     * tables, which carry the given prefix. Cascades into a table without a
+     * copy are left out.
+     */
+    static void createTempCascadeTriggers(SQLiteDatabase db, String prefix, Set<String> tables) {
+        for (Cascade cascade : CASCADES) {
+            if (tables.contains(cascade.parent) && tables.contains(cascade.child)) {
+                db.execSQL(createCascadeTrigger(prefix, cascade));
+            }
+        }
+    }
+
+    private static String createCascadeTrigger(String prefix, Cascade cascade) {
+        final String parent = prefix + cascade.parent;
+        final String child = prefix + cascade.child;
+        return "CREATE " + (prefix.length() > 0 ? "TEMP " : "") + "TRIGGER " + parent + "_cascade_"
+                + child + " AFTER DELETE ON " + parent + " BEGIN DELETE FROM " + child + " WHERE "
+                + cascade.childKey + "=old." + cascade.parentKey + "; END;";
+    }
+
     private static void createIndices(SQLiteDatabase db) {
 		db.execSQL("CREATE INDEX " 
 				+ Tables.SESSIONS + "_" + Sessions.SESSION_ID + "_IDX ON "
@@ -446,6 +1044,7 @@ public class ScheduleDatabase extends SQLiteOpenHelper {
 	@Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         Log.d(TAG, "onUpgrade() from " + oldVersion + " to " + newVersion);
+        sFts4SearchTables = null;
         
         // NOTE: This switch statement is designed to handle cascading database
         // updates, starting at the current version and falling through to all
@@ -782,6 +1381,107 @@ public class ScheduleDatabase extends SQLiteOpenHelper {
         	    		+ Tables.SESSIONS + "(" + Sessions.TYPE_ID + ")");
 
         		version = VER_ADD_SESSION_TYPES;
+            case VER_ADD_SESSION_TYPES:
+            	Log.d(TAG, "performing upgrade coming from VER_ADD_SESSION_TYPES");
+
+            	db.execSQL("ALTER TABLE " + Tables.SYNC + " ADD COLUMN "
+                        + SyncColumns.ETAG + " TEXT");
+            	db.execSQL("ALTER TABLE " + Tables.SYNC + " ADD COLUMN "
+                        + SyncColumns.LAST_MODIFIED + " TEXT");
+
+        		version = VER_ADD_SYNC_VALIDATORS;
+            case VER_ADD_SYNC_VALIDATORS:
+            	Log.d(TAG, "performing upgrade coming from VER_ADD_SYNC_VALIDATORS");
+
+            	db.execSQL("ALTER TABLE " + Tables.BLOCKS + " ADD COLUMN "
+                        + Sessions.STARRED_IN_BLOCK_COUNT + " INTEGER NOT NULL DEFAULT 0");
+            	db.execSQL("UPDATE " + Tables.BLOCKS + " SET " + Sessions.STARRED_IN_BLOCK_COUNT
+            			+ "=" + Subquery.BLOCK_STARRED_SESSIONS_COUNT);
+            	createStarredInBlockTriggers(db);
+
+        		version = VER_STORE_STARRED_IN_BLOCK_COUNT;
+            case VER_STORE_STARRED_IN_BLOCK_COUNT:
+            	Log.d(TAG, "performing upgrade coming from VER_STORE_STARRED_IN_BLOCK_COUNT");
+
+            	db.execSQL("ALTER TABLE " + Tables.TRACKS + " ADD COLUMN "
+                        + Tracks.SESSIONS_COUNT + " INTEGER NOT NULL DEFAULT 0");
+            	db.execSQL("ALTER TABLE " + Tables.TAGS + " ADD COLUMN "
+                        + Tags.SESSIONS_COUNT + " INTEGER NOT NULL DEFAULT 0");
+            	db.execSQL("ALTER TABLE " + Tables.TYPES + " ADD COLUMN "
+                        + Types.SESSIONS_COUNT + " INTEGER NOT NULL DEFAULT 0");
+            	db.execSQL("ALTER TABLE " + Tables.ROOMS + " ADD COLUMN "
+                        + Rooms.SESSIONS_COUNT + " INTEGER NOT NULL DEFAULT 0");
+            	db.execSQL("ALTER TABLE " + Tables.BLOCKS + " ADD COLUMN "
+                        + Blocks.SESSIONS_COUNT + " INTEGER NOT NULL DEFAULT 0");
+            	db.execSQL("ALTER TABLE " + Tables.BLOCKS + " ADD COLUMN "
+                        + Blocks.CONTAINS_STARRED + " INTEGER NOT NULL DEFAULT 0");
+            	db.execSQL("UPDATE " + Tables.TRACKS + " SET "
+            			+ getSessionsCountValues(Tables.TRACKS, Tracks.TRACK_ID, Tables.SESSIONS));
+            	db.execSQL("UPDATE " + Tables.TAGS + " SET "
+            			+ getSessionsCountValues(Tables.TAGS, Tags.TAG_ID, Tables.SESSIONS_TAGS));
+            	db.execSQL("UPDATE " + Tables.TYPES + " SET "
+            			+ getSessionsCountValues(Tables.TYPES, Types.TYPE_ID, Tables.SESSIONS));
+            	db.execSQL("UPDATE " + Tables.ROOMS + " SET "
+            			+ getSessionsCountValues(Tables.ROOMS, Rooms.ROOM_ID, Tables.SESSIONS));
+            	db.execSQL("UPDATE " + Tables.BLOCKS + " SET "
+            			+ getSessionsCountValues(Tables.BLOCKS, Blocks.BLOCK_ID, Tables.SESSIONS));
+            	createSessionsCountTriggers(db);
+
+        		version = VER_STORE_SESSIONS_COUNTS;
+            case VER_STORE_SESSIONS_COUNTS:
+            	Log.d(TAG, "performing upgrade coming from VER_STORE_SESSIONS_COUNTS");
+
+            	db.execSQL("ALTER TABLE " + Tables.SPEAKERS + " ADD COLUMN "
+                        + Speakers.CONTAINS_STARRED + " INTEGER NOT NULL DEFAULT 0");
+            	db.execSQL("UPDATE " + Tables.SPEAKERS + " SET " + Speakers.CONTAINS_STARRED
+            			+ "=" + Subquery.SPEAKER_CONTAINS_STARRED);
+            	createSpeakerStarredTriggers(db);
+
+        		version = VER_STORE_SPEAKER_CONTAINS_STARRED;
+            case VER_STORE_SPEAKER_CONTAINS_STARRED:
+            	Log.d(TAG, "performing upgrade coming from VER_STORE_SPEAKER_CONTAINS_STARRED");
+
+            	createSessionsParallel(db);
+
+        		version = VER_ADD_SESSIONS_PARALLEL;
+
+            case VER_ADD_SESSIONS_PARALLEL:
+            	Log.d(TAG, "performing upgrade coming from VER_ADD_SESSIONS_PARALLEL");
+
+            	// Left empty, the next sync fills them in without flagging updates
+            	db.execSQL("ALTER TABLE " + Tables.SESSIONS + " ADD COLUMN "
+                        + Sessions.SESSION_FINGERPRINT + " INTEGER");
+            	db.execSQL("ALTER TABLE " + Tables.SPEAKERS + " ADD COLUMN "
+                        + Speakers.SPEAKER_FINGERPRINT + " INTEGER");
+            	db.execSQL("ALTER TABLE " + Tables.ROOMS + " ADD COLUMN "
+                        + Rooms.ROOM_FINGERPRINT + " INTEGER");
+            	db.execSQL("ALTER TABLE " + Tables.BLOCKS + " ADD COLUMN "
+                        + Blocks.BLOCK_FINGERPRINT + " INTEGER");
+            	db.execSQL("ALTER TABLE " + Tables.TRACKS + " ADD COLUMN "
+                        + Tracks.TRACK_FINGERPRINT + " INTEGER");
+
+        		version = VER_ADD_FINGERPRINTS;
+            case VER_ADD_FINGERPRINTS:
+            	Log.d(TAG, "performing upgrade coming from VER_ADD_FINGERPRINTS");
+
+            	// Drop the rows that were left behind by earlier deletes
+            	for (Cascade cascade : CASCADES) {
+            		db.execSQL("DELETE FROM " + cascade.child + " WHERE " + cascade.childKey
+            				+ " NOT IN (SELECT " + cascade.parentKey + " FROM " + cascade.parent + ")");
+            	}
+            	createCascadeTriggers(db);
+
+        		version = VER_ADD_CASCADE_DELETES;
+            case VER_ADD_CASCADE_DELETES:
+            	Log.d(TAG, "performing upgrade coming from VER_ADD_CASCADE_DELETES");
+
+            	// Older SQLite versions keep the fts3 tables until onOpen finds
+            	// that the platform supports fts4
+            	if (isFts4Supported(db)) {
+            		upgradeSearchTables(db);
+            	}
+
+        		version = VER_UPGRADE_FULLTEXT_TABLES;
         }
 
         Log.d(TAG, "after upgrade logic, at version " + version);
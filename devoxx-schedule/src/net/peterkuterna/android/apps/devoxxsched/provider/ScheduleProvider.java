@@ -19,9 +19,19 @@ package net.peterkuterna.android.apps.devoxxsched.provider;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleContract.Blocks;
 import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleContract.Notes;
@@ -34,19 +44,24 @@ import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleContract.Sync;
 import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleContract.Tags;
 import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleContract.Tracks;
 import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleContract.Types;
+import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleDatabase.SessionsParallel;
 import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleDatabase.SessionsSearchColumns;
 import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleDatabase.SessionsSpeakers;
 import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleDatabase.SessionsTags;
 import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleDatabase.SpeakersSearchColumns;
 import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleDatabase.Tables;
 import net.peterkuterna.android.apps.devoxxsched.service.SyncService;
+import net.peterkuterna.android.apps.devoxxsched.util.Lists;
+import net.peterkuterna.android.apps.devoxxsched.util.Maps;
 import net.peterkuterna.android.apps.devoxxsched.util.NotesExporter;
 import net.peterkuterna.android.apps.devoxxsched.util.SelectionBuilder;
+import net.peterkuterna.android.apps.devoxxsched.util.Sets;
 import android.app.Activity;
 import android.app.SearchManager;
 import android.content.ContentProvider;
 import android.content.ContentProviderOperation;
 import android.content.ContentProviderResult;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
@@ -54,8 +69,10 @@ import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.CursorWrapper;
+import android.database.DatabaseUtils;
 import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
@@ -64,6 +81,7 @@ import android.provider.OpenableColumns;
 import android.text.TextUtils;
 import android.text.format.DateUtils;
 import android.util.Log;
+import android.util.SparseArray;
 
 
 /**
@@ -79,6 +97,7 @@ public class ScheduleProvider extends ContentProvider {
     private static final int DAY_FLAGS = DateUtils.FORMAT_SHOW_WEEKDAY;
 
     private ScheduleDatabase mOpenHelper;
+    private final QueryCache mQueryCache = QueryCache.getInstance();
 
     private static final UriMatcher sUriMatcher = buildUriMatcher();
 
@@ -97,6 +116,8 @@ public class ScheduleProvider extends ContentProvider {
     private static final int SESSIONS_ID_NOTES = 112;
     private static final int SESSIONS_ID_TAGS = 113;
     private static final int SESSIONS_ID_TAGS_ID = 114;
+    private static final int SESSIONS_SPEAKERS = 115;
+    private static final int SESSIONS_TAGS = 116;
 
     private static final int SPEAKERS = 200;
     private static final int SPEAKERS_STARRED = 201;
@@ -154,6 +175,8 @@ public class ScheduleProvider extends ContentProvider {
         matcher.addURI(authority, "sessions/at/*", SESSIONS_AT);
         matcher.addURI(authority, "sessions/parallel/*", SESSIONS_PARALLEL);
         matcher.addURI(authority, "sessions/next/*", SESSIONS_NEXT);
+        matcher.addURI(authority, "sessions/speakers", SESSIONS_SPEAKERS);
+        matcher.addURI(authority, "sessions/tags", SESSIONS_TAGS);
         matcher.addURI(authority, "sessions/*", SESSIONS_ID);
         matcher.addURI(authority, "sessions/*/speakers", SESSIONS_ID_SPEAKERS);
         matcher.addURI(authority, "sessions/*/speakers/*", SESSIONS_ID_SPEAKERS_ID);
@@ -204,7 +227,7 @@ public class ScheduleProvider extends ContentProvider {
     @Override
     public boolean onCreate() {
         final Context context = getContext();
-        mOpenHelper = new ScheduleDatabase(context);
+        mOpenHelper = ScheduleDatabase.getInstance(context);
         return true;
     }
 
@@ -231,6 +254,10 @@ public class ScheduleProvider extends ContentProvider {
                 return Sessions.CONTENT_TYPE;
             case SESSIONS_NEXT:
                 return Sessions.CONTENT_TYPE;
+            case SESSIONS_SPEAKERS:
+                return Speakers.CONTENT_TYPE;
+            case SESSIONS_TAGS:
+                return Tags.CONTENT_TYPE;
             case SESSIONS_ID:
                 return Sessions.CONTENT_ITEM_TYPE;
             case SESSIONS_ID_SPEAKERS:
@@ -298,6 +325,109 @@ public class ScheduleProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Content {@link Uri}s whose cursors read from a changed table. Notifying
+     * a top level {@link Uri} also reaches every cursor registered on one of
+     * its descendants.
+     */
+    private static final HashMap<String, Uri[]> sNotifyUris = Maps.newHashMap();
+
+    static {
+        // Sessions are listed below almost every other content uri
+        final Uri[] sessionLists = new Uri[] { Sessions.CONTENT_URI, Blocks.CONTENT_URI,
+                Rooms.CONTENT_URI, Tracks.CONTENT_URI, Tags.CONTENT_URI, Types.CONTENT_URI,
+                Speakers.CONTENT_URI, Notes.CONTENT_URI };
+        sNotifyUris.put(Tables.SESSIONS, sessionLists);
+        sNotifyUris.put(Tables.BLOCKS, sessionLists);
+        sNotifyUris.put(Tables.ROOMS, sessionLists);
+        sNotifyUris.put(Tables.TRACKS, sessionLists);
+        sNotifyUris.put(Tables.SPEAKERS, new Uri[] { Speakers.CONTENT_URI, Sessions.CONTENT_URI });
+        sNotifyUris.put(Tables.TAGS, new Uri[] { Tags.CONTENT_URI, Sessions.CONTENT_URI });
+        sNotifyUris.put(Tables.TYPES, new Uri[] { Types.CONTENT_URI });
+        sNotifyUris.put(Tables.SESSIONS_SPEAKERS, new Uri[] { Sessions.CONTENT_URI, Speakers.CONTENT_URI });
+        sNotifyUris.put(Tables.SESSIONS_TAGS, new Uri[] { Sessions.CONTENT_URI, Tags.CONTENT_URI });
+        sNotifyUris.put(Tables.NOTES, new Uri[] { Notes.CONTENT_URI, Sessions.CONTENT_URI });
+        sNotifyUris.put(Tables.SYNC, new Uri[] { Sync.CONTENT_URI });
+        sNotifyUris.put(Tables.SEARCH_SUGGEST, new Uri[] { SearchSuggest.CONTENT_URI });
+    }
+
+    /**
+     * Notifications collected while a batch is being applied on the current
+     * thread, null when no batch is in progress.
+     */
+    private final ThreadLocal<HashSet<Uri>> mBatchNotifyUris = new ThreadLocal<HashSet<Uri>>();
+
+    /**
+     * Return the content {@link Uri}s to notify when the given table changed.
+     */
+    static Uri[] getNotifyUris(String table) {
+        final Uri[] uris = sNotifyUris.get(table);
+        return uris != null ? uris : new Uri[0];
+    }
+
+    /**
+     * Drop the in memory state that was derived from the given table.
+     */
+    static void invalidateCaches(String table) {
+        if (Tables.BLOCKS.equals(table)) {
+            TimelineIndex.invalidate();
+        }
+        QueryCache.getInstance().invalidate(table);
+    }
+
+    /**
+     * Queries relative to the current time are not worth caching, their
+     * {@link Uri} changes with every call.
+     */
+    private static boolean isCacheable(int match) {
+        return match != SESSIONS_AT && match != SESSIONS_NEXT;
+    }
+
+    private static String buildCacheKey(Uri uri, String[] projection, SelectionBuilder builder,
+            String sortOrder) {
+        return uri + "|" + Arrays.toString(projection) + "|" + builder.getSelection() + "|"
+                + Arrays.toString(builder.getSelectionArgs()) + "|" + sortOrder;
+    }
+
+    /**
+     * Notify the readers of a changed table, or remember the notification
+     * until the batch in progress is committed.
+     */
+    private void onTableChanged(String table) {
+        invalidateCaches(table);
+        final Uri[] uris = getNotifyUris(table);
+        final HashSet<Uri> batchNotifyUris = mBatchNotifyUris.get();
+        if (batchNotifyUris != null) {
+            Collections.addAll(batchNotifyUris, uris);
+        } else {
+            notifyChange(uris);
+        }
+    }
+
+    private void notifyChange(Collection<Uri> uris) {
+        notifyChange(uris.toArray(new Uri[uris.size()]));
+    }
+
+    private void notifyChange(Uri... uris) {
+        final ContentResolver resolver = getContext().getContentResolver();
+        for (Uri uri : uris) {
+            resolver.notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * Create the {@link CachedCursor.Loader} that runs the given query again
+     * when a cached result is requeried.
+     */
+    private CachedCursor.Loader newLoader(final Uri uri, final String[] projection,
+            final String selection, final String[] selectionArgs, final String sortOrder) {
+        return new CachedCursor.Loader() {
+            public Cursor load() {
+                return query(uri, projection, selection, selectionArgs, sortOrder);
+            }
+        };
+    }
+
     /** {@inheritDoc} */
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
@@ -308,9 +438,35 @@ public class ScheduleProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             default: {
+                // The builder maps the projection in place
+                final String[] requestedProjection = projection != null ? projection.clone() : null;
+                final String requestedSortOrder = sortOrder;
                 // Most cases are handled with simple SelectionBuilder
-                final SelectionBuilder builder = buildExpandedSelection(uri, match);
-                Cursor cursor = builder.where(selection, selectionArgs).query(db, projection, sortOrder);
+                final QueryPlan plan = getQueryPlan(db, match);
+                final SelectionBuilder builder = buildExpandedSelection(uri, match, plan);
+                builder.where(selection, selectionArgs);
+                // Leave out the joins this query does not reference
+                builder.table(plan.getTable(db, projection, builder.getSelection(), sortOrder));
+                // Without a sort order, searches come in order of relevance
+                final boolean ranked = plan.isRanked() && sortOrder == null;
+                final String cacheKey = isCacheable(match)
+                        ? buildCacheKey(uri, projection, builder, sortOrder) : null;
+                Cursor cursor = cacheKey != null ? mQueryCache.get(cacheKey) : null;
+                if (cursor == null) {
+                    final int generation = mQueryCache.getGeneration();
+                    cursor = ranked ? queryRanked(db, uri, plan, builder, projection)
+                            : builder.query(db, projection, sortOrder);
+                    if (cacheKey != null) {
+                        cursor = mQueryCache.put(cacheKey, generation,
+                                builder.getTable() + " " + builder.getSelection(), cursor);
+                    }
+                }
+                if (LOGV) Log.v(TAG, mQueryCache.toString());
+                if (cursor instanceof CachedCursor) {
+                    ((CachedCursor) cursor).setLoader(newLoader(uri, requestedProjection, selection,
+                            selectionArgs, requestedSortOrder));
+                }
+                cursor.setNotificationUri(getContext().getContentResolver(), uri);
                 // TODO: change the SessionsAdapter to use getExtras on the Cursor to get the weekdays
 //                if (UriUtils.readBooleanQueryParameter(uri, SessionCounts.SESSION_INDEX_EXTRAS, false)) {
 //                	cursor = bundleSessionCountExtras(cursor, db, builder, selection, selectionArgs, sortOrder);
@@ -327,8 +483,11 @@ public class ScheduleProvider extends ContentProvider {
             case SEARCH_SUGGEST: {
                 final SelectionBuilder builder = new SelectionBuilder();
 
-                // Adjust incoming query to become SQL text match
-                selectionArgs[0] = selectionArgs[0] + "%";
+                // Adjust incoming query to become SQL text match, without a
+                // selection every suggestion is listed
+                if (selection != null) {
+                    selectionArgs[0] = selectionArgs[0] + "%";
+                }
                 builder.table(Tables.SEARCH_SUGGEST);
                 builder.where(selection, selectionArgs);
                 builder.map(SearchManager.SUGGEST_COLUMN_QUERY,
@@ -350,71 +509,62 @@ public class ScheduleProvider extends ContentProvider {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         switch (match) {
-            case SESSIONS: {
-                db.insertOrThrow(Tables.SESSIONS, null, values);
-                return Sessions.buildSessionUri(values.getAsString(Sessions.SESSION_ID));
-            }
-            case SESSIONS_ID_SPEAKERS: {
-                db.insertOrThrow(Tables.SESSIONS_SPEAKERS, null, values);
-                return Speakers.buildSpeakerUri(values.getAsString(SessionsSpeakers.SPEAKER_ID));
-            }
-            case SESSIONS_ID_NOTES: {
-                final String sessionId = Sessions.getSessionId(uri);
-                values.put(Notes.SESSION_ID, sessionId);
+            case SESSIONS_ID_NOTES:
+                values.put(Notes.SESSION_ID, Sessions.getSessionId(uri));
+                // fall through
+            case NOTES: {
                 final long noteId = db.insertOrThrow(Tables.NOTES, null, values);
+                onTableChanged(Tables.NOTES);
                 return ContentUris.withAppendedId(Notes.CONTENT_URI, noteId);
             }
-            case SESSIONS_ID_TAGS: {
-                db.insertOrThrow(Tables.SESSIONS_TAGS, null, values);
-                return Tags.buildTagUri(values.getAsString(SessionsTags.TAG_ID));
+            default: {
+                final String table = getInsertTable(uri);
+                if (table == null) {
+                    throw new UnsupportedOperationException("Unknown uri: " + uri);
+                }
+                // Re-inserting an unchanged row leaves caches and observers alone
+                if (insertRow(db, table, values)) {
+                    onTableChanged(table);
+                }
+                return getInsertedUri(uri, match, values);
             }
-            case SPEAKERS: {
-                db.insertOrThrow(Tables.SPEAKERS, null, values);
+        }
+    }
+
+    /**
+     * Return the {@link Uri} of the row an insert on the requested
+     * {@link Uri} wrote.
+     */
+    private static Uri getInsertedUri(Uri uri, int match, ContentValues values) {
+        switch (match) {
+            case SESSIONS:
+                return Sessions.buildSessionUri(values.getAsString(Sessions.SESSION_ID));
+            case SESSIONS_ID_SPEAKERS:
+                return Speakers.buildSpeakerUri(values.getAsString(SessionsSpeakers.SPEAKER_ID));
+            case SESSIONS_ID_TAGS:
+                return Tags.buildTagUri(values.getAsString(SessionsTags.TAG_ID));
+            case SPEAKERS:
                 return Speakers.buildSpeakerUri(values.getAsString(Speakers.SPEAKER_ID));
-            }
-            case SPEAKERS_ID_SESSIONS: {
-                db.insertOrThrow(Tables.SESSIONS_SPEAKERS, null, values);
+            case SPEAKERS_ID_SESSIONS:
                 return Sessions.buildSessionUri(values.getAsString(SessionsSpeakers.SESSION_ID));
-            }
-            case ROOMS: {
-                db.insertOrThrow(Tables.ROOMS, null, values);
+            case ROOMS:
                 return Rooms.buildRoomUri(values.getAsString(Rooms.ROOM_ID));
-            }
-            case BLOCKS: {
-                db.insertOrThrow(Tables.BLOCKS, null, values);
+            case BLOCKS:
                 return Blocks.buildBlockUri(values.getAsString(Blocks.BLOCK_ID));
-            }
-            case NOTES: {
-                final long noteId = db.insertOrThrow(Tables.NOTES, null, values);
-                return ContentUris.withAppendedId(Notes.CONTENT_URI, noteId);
-            }
-            case TRACKS: {
-                db.insertOrThrow(Tables.TRACKS, null, values);
+            case TRACKS:
                 return Tracks.buildTrackUri(values.getAsString(Tracks.TRACK_ID));
-            }
-            case SYNC: {
-                db.insertOrThrow(Tables.SYNC, null, values);
+            case SYNC:
                 return Sync.buildSyncUri(values.getAsString(Sync.URI_ID));
-            }
-            case SEARCH_SUGGEST: {
-                db.insertOrThrow(Tables.SEARCH_SUGGEST, null, values);
+            case SEARCH_SUGGEST:
                 return SearchSuggest.CONTENT_URI;
-            }
-            case TAGS: {
-                db.insertOrThrow(Tables.TAGS, null, values);
+            case TAGS:
                 return Tags.buildTagUri(values.getAsString(Tags.TAG_ID));
-            }
-            case TAGS_ID_SESSIONS: {
-                db.insertOrThrow(Tables.SESSIONS_TAGS, null, values);
+            case TAGS_ID_SESSIONS:
                 return Sessions.buildSessionUri(values.getAsString(SessionsTags.SESSION_ID));
-            }
-            case TYPES: {
-                db.insertOrThrow(Tables.TYPES, null, values);
+            case TYPES:
                 return Types.buildTypeUri(values.getAsString(Types.TYPE_ID));
-            }
-            default: {
+            default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
-            }
         }
     }
 
@@ -424,7 +574,9 @@ public class ScheduleProvider extends ContentProvider {
         if (LOGV) Log.v(TAG, "update(uri=" + uri + ", values=" + values.toString() + ")");
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final SelectionBuilder builder = buildSimpleSelection(uri);
-        return builder.where(selection, selectionArgs).update(db, values);
+        final int count = builder.where(selection, selectionArgs).update(db, values);
+        if (count > 0) onTableChanged(builder.getTable());
+        return count;
     }
 
     /** {@inheritDoc} */
@@ -433,29 +585,98 @@ public class ScheduleProvider extends ContentProvider {
         if (LOGV) Log.v(TAG, "delete(uri=" + uri + ")");
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final SelectionBuilder builder = buildSimpleSelection(uri);
-        return builder.where(selection, selectionArgs).delete(db);
+        final int count = builder.where(selection, selectionArgs).delete(db);
+        if (count > 0) onTableChanged(builder.getTable());
+        return count;
     }
 
     /**
      * Apply the given set of {@link ContentProviderOperation}, executing inside
-     * a {@link SQLiteDatabase} transaction. All changes will be rolled back if
-     * any single one fails.
+     * a {@link SQLiteDatabase} transaction. All changes since the last yield
+     * point will be rolled back if any single one fails; the transaction is
+     * only yielded before operations marked with
+     * {@link ContentProviderOperation#isYieldAllowed()}. Change notifications
+     * are sent once for every affected {@link Uri} after the batch finished.
      */
     @Override
     public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
             throws OperationApplicationException {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final HashSet<Uri> notifyUris = Sets.newHashSet();
+        mBatchNotifyUris.set(notifyUris);
         db.beginTransaction();
         try {
             final int numOperations = operations.size();
             final ContentProviderResult[] results = new ContentProviderResult[numOperations];
             for (int i = 0; i < numOperations; i++) {
-                results[i] = operations.get(i).apply(this, results, i);
+                final ContentProviderOperation operation = operations.get(i);
+                if (i > 0 && operation.isYieldAllowed()) {
+                    // Let waiting readers in between chunks, earlier
+                    // results stay available for back references
+                    db.yieldIfContendedSafely();
+                }
+                results[i] = operation.apply(this, results, i);
             }
             db.setTransactionSuccessful();
             return results;
         } finally {
             db.endTransaction();
+            mBatchNotifyUris.set(null);
+            notifyChange(notifyUris);
+        }
+    }
+
+    /**
+     * Return the table a {@link #insert} on the requested {@link Uri} writes
+     * to, or null when the insert needs more than the given values.
+     */
+    static String getInsertTable(Uri uri) {
+        final int match = sUriMatcher.match(uri);
+        switch (match) {
+            case SESSIONS:
+                return Tables.SESSIONS;
+            case SESSIONS_ID_SPEAKERS:
+            case SPEAKERS_ID_SESSIONS:
+                return Tables.SESSIONS_SPEAKERS;
+            case SESSIONS_ID_TAGS:
+            case TAGS_ID_SESSIONS:
+                return Tables.SESSIONS_TAGS;
+            case SPEAKERS:
+                return Tables.SPEAKERS;
+            case ROOMS:
+                return Tables.ROOMS;
+            case BLOCKS:
+                return Tables.BLOCKS;
+            case NOTES:
+                return Tables.NOTES;
+            case TRACKS:
+                return Tables.TRACKS;
+            case SYNC:
+                return Tables.SYNC;
+            case SEARCH_SUGGEST:
+                return Tables.SEARCH_SUGGEST;
+            case TAGS:
+                return Tables.TAGS;
+            case TYPES:
+                return Tables.TYPES;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Insert the given values or update the existing row with the same key,
+     * see {@link ScheduleBatchWriter#upsert}. Returns whether a row was
+     * written.
+     */
+    private static boolean insertRow(SQLiteDatabase db, String table, ContentValues values) {
+        final HashMap<String, SQLiteStatement> statements = Maps.newHashMap();
+        try {
+            return ScheduleBatchWriter.upsert(db, statements, table, table, values);
+        } finally {
+            for (SQLiteStatement statement : statements.values()) {
+                statement.close();
+            }
         }
     }
 
@@ -464,7 +685,7 @@ public class ScheduleProvider extends ContentProvider {
      * {@link Uri}. This is usually enough to support {@link #insert},
      * {@link #update}, and {@link #delete} operations.
      */
-    private SelectionBuilder buildSimpleSelection(Uri uri) {
+    static SelectionBuilder buildSimpleSelection(Uri uri) {
         final SelectionBuilder builder = new SelectionBuilder();
         final int match = sUriMatcher.match(uri);
         switch (match) {
@@ -489,6 +710,12 @@ public class ScheduleProvider extends ContentProvider {
                 return builder.table(Tables.SESSIONS)
                         .where(Sessions.SESSION_ID + "=?", sessionId);
             }
+            case SESSIONS_SPEAKERS: {
+                return builder.table(Tables.SESSIONS_SPEAKERS);
+            }
+            case SESSIONS_TAGS: {
+                return builder.table(Tables.SESSIONS_TAGS);
+            }
             case SESSIONS_ID_SPEAKERS: {
                 final String sessionId = Sessions.getSessionId(uri);
                 return builder.table(Tables.SESSIONS_SPEAKERS)
@@ -611,324 +838,467 @@ public class ScheduleProvider extends ContentProvider {
         }
     }
 
+    private TimelineIndex getTimelineIndex() {
+        return TimelineIndex.get(mOpenHelper.getReadableDatabase());
+    }
+
+    /**
+     * Build a selection that matches the given column against a set of
+     * values. The values are inlined, since they come from the
+     * {@link TimelineIndex} and not from the caller.
+     */
+    private static String buildInSelection(String column, List<String> values) {
+        if (values.isEmpty()) {
+            return "0";
+        }
+        final StringBuilder selection = new StringBuilder(column).append(" IN (");
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) selection.append(',');
+            DatabaseUtils.appendEscapedSQLString(selection, values.get(i));
+        }
+        return selection.append(')').toString();
+    }
+
+    /**
+     * Prebuilt {@link QueryPlan} for every {@link Uri} match that
+     * {@link #buildExpandedSelection(Uri, int, QueryPlan)} supports.
+     */
+    private static final SparseArray<QueryPlan> sQueryPlans = buildQueryPlans();
+
+    /**
+     * Plans for the search matches on {@code fts4} tables, replacing the
+     * ones in {@link #sQueryPlans} when {@link ScheduleDatabase#hasFts4SearchTables}.
+     */
+    private static final SparseArray<QueryPlan> sFts4QueryPlans = buildFts4QueryPlans();
+
+    /** Number of rows a ranked search returns when the uri has no limit. */
+    private static final int DEFAULT_SEARCH_LIMIT = 100;
+
+    private static final Pattern LAST_WORD_PATTERN = Pattern.compile("(?:^|[\\s(])([\\p{L}\\p{N}]+)$");
+    private static final HashSet<String> SEARCH_OPERATORS = Sets.newHashSet("AND", "OR", "NOT", "NEAR");
+
+    /**
+     * Start a plan on a table expression that includes
+     * {@link Tables#SESSIONS_JOIN_BLOCKS_ROOMS_TRACKS}, with the columns
+     * that are ambiguous in that join mapped.
+     */
+    private static QueryPlan.Builder newSessionsPlan(String table) {
+        return QueryPlan.newPlan(table)
+                .mapToTable(Sessions._ID, Tables.SESSIONS)
+                .mapToTable(Sessions.BLOCK_ID, Tables.SESSIONS)
+                .mapToTable(Sessions.ROOM_ID, Tables.SESSIONS)
+                .mapToTable(Sessions.TRACK_ID, Tables.SESSIONS)
+                .mapToTable(Sessions.STARRED_IN_BLOCK_COUNT, Tables.BLOCKS)
+                .mapToTable(Tracks.TRACK_COLOR, Tables.TRACKS);
+    }
+
+    private static SparseArray<QueryPlan> buildQueryPlans() {
+        final SparseArray<QueryPlan> plans = new SparseArray<QueryPlan>();
+
+        plans.put(SESSIONS, newSessionsPlan(Tables.SESSIONS_JOIN_BLOCKS_ROOMS_TRACKS)
+                .build());
+        plans.put(SESSIONS_STARRED, newSessionsPlan(Tables.SESSIONS_JOIN_BLOCKS_ROOMS_TRACKS)
+                .where(Sessions.STARRED + "=1")
+                .build());
+        plans.put(SESSIONS_NEW, newSessionsPlan(Tables.SESSIONS_JOIN_BLOCKS_ROOMS_TRACKS)
+                .where(Sessions.NEW + "=1")
+                .build());
+        plans.put(SESSIONS_UPDATED, newSessionsPlan(Tables.SESSIONS_JOIN_BLOCKS_ROOMS_TRACKS)
+                .where(Sessions.UPDATED + "=1")
+                .build());
+        plans.put(SESSIONS_UPDATED_STARRED, newSessionsPlan(Tables.SESSIONS_JOIN_BLOCKS_ROOMS_TRACKS)
+                .where(Sessions.UPDATED + "=1")
+                .where(Sessions.STARRED + "=1")
+                .build());
+        plans.put(SESSIONS_SEARCH, newSessionsPlan(Tables.SESSIONS_SEARCH_JOIN_SESSIONS_BLOCKS_ROOMS_TRACKS)
+                .map(Sessions.SEARCH_SNIPPET, Subquery.SESSIONS_SNIPPET)
+                .mapToTable(Sessions.SESSION_ID, Tables.SESSIONS)
+                .where(SessionsSearchColumns.BODY + " MATCH ?")
+                .build());
+        // The blocks of the at and next queries come from the timeline index
+        plans.put(SESSIONS_AT, newSessionsPlan(Tables.SESSIONS_JOIN_BLOCKS_ROOMS_TRACKS)
+                .build());
+        plans.put(SESSIONS_PARALLEL, newSessionsPlan(Tables.SESSIONS_JOIN_BLOCKS_ROOMS_TRACKS)
+                .where(WhereClause.SESSIONS_PARALLEL)
+                .build());
+        plans.put(SESSIONS_NEXT, newSessionsPlan(Tables.SESSIONS_JOIN_BLOCKS_ROOMS_TRACKS)
+                .build());
+        plans.put(SESSIONS_SPEAKERS, QueryPlan.newPlan(Tables.SESSIONS_SPEAKERS)
+                .build());
+        plans.put(SESSIONS_TAGS, QueryPlan.newPlan(Tables.SESSIONS_TAGS)
+                .build());
+        plans.put(SESSIONS_ID, newSessionsPlan(Tables.SESSIONS_JOIN_BLOCKS_ROOMS_TRACKS)
+                .where(Qualified.SESSIONS_SESSION_ID + "=?")
+                .build());
+        plans.put(SESSIONS_ID_SPEAKERS, QueryPlan.newPlan(Tables.SESSIONS_SPEAKERS_JOIN_SPEAKERS)
+                .mapToTable(Speakers._ID, Tables.SPEAKERS)
+                .mapToTable(Speakers.SPEAKER_ID, Tables.SPEAKERS)
+                .where(Qualified.SESSIONS_SPEAKERS_SESSION_ID + "=?")
+                .build());
+        plans.put(SESSIONS_ID_NOTES, QueryPlan.newPlan(Tables.NOTES_JOIN_SESSIONS_TRACKS)
+                .mapToTable(Notes._ID, Tables.NOTES)
+                .mapToTable(Notes.SESSION_ID, Tables.NOTES)
+                .mapToTable(Tracks.TRACK_COLOR, Tables.TRACKS)
+                .where(Qualified.NOTES_SESSION_ID + "=?")
+                .build());
+        plans.put(SESSIONS_ID_TAGS, QueryPlan.newPlan(Tables.SESSIONS_TAGS_JOIN_TAGS)
+                .mapToTable(Tags._ID, Tables.TAGS)
+                .mapToTable(Tags.TAG_ID, Tables.TAGS)
+                .where(Qualified.SESSIONS_TAGS_SESSION_ID + "=?")
+                .build());
+        plans.put(SPEAKERS, QueryPlan.newPlan(Tables.SPEAKERS)
+                .build());
+        plans.put(SPEAKERS_STARRED, QueryPlan.newPlan(Tables.SPEAKERS)
+                .where(Speakers.CONTAINS_STARRED + "=1")
+                .build());
+        plans.put(SPEAKERS_SEARCH, QueryPlan.newPlan(Tables.SPEAKERS_SEARCH_JOIN_SPEAKERS)
+                .map(Speakers.SEARCH_SNIPPET, Subquery.SPEAKERS_SNIPPET)
+                .mapToTable(Speakers.CONTAINS_STARRED, Tables.SPEAKERS)
+                .mapToTable(Speakers._ID, Tables.SPEAKERS)
+                .mapToTable(Speakers.SPEAKER_ID, Tables.SPEAKERS)
+                .where(SpeakersSearchColumns.BODY + " MATCH ?")
+                .build());
+        plans.put(SPEAKERS_ID, QueryPlan.newPlan(Tables.SPEAKERS)
+                .where(Speakers.SPEAKER_ID + "=?")
+                .build());
+        plans.put(SPEAKERS_ID_SESSIONS, newSessionsPlan(Tables.SESSIONS_SPEAKERS_JOIN_SESSIONS_BLOCKS_ROOMS_TRACKS)
+                .mapToTable(Sessions.SESSION_ID, Tables.SESSIONS)
+                .where(Qualified.SESSIONS_SPEAKERS_SPEAKER_ID + "=?")
+                .build());
+        plans.put(ROOMS, QueryPlan.newPlan(Tables.ROOMS)
+                .build());
+        plans.put(ROOMS_ID, QueryPlan.newPlan(Tables.ROOMS)
+                .where(Rooms.ROOM_ID + "=?")
+                .build());
+        plans.put(ROOMS_WITH_NAME, QueryPlan.newPlan(Tables.ROOMS)
+                .where(Rooms.NAME + "=?")
+                .build());
+        plans.put(ROOMS_ID_SESSIONS, newSessionsPlan(Tables.SESSIONS_JOIN_BLOCKS_ROOMS_TRACKS)
+                .where(Qualified.SESSIONS_ROOM_ID + "=?")
+                .build());
+        plans.put(BLOCKS, QueryPlan.newPlan(Tables.BLOCKS)
+                .build());
+        plans.put(BLOCKS_BETWEEN, QueryPlan.newPlan(Tables.BLOCKS)
+                .mapToTable(Blocks.SESSIONS_COUNT, Tables.BLOCKS)
+                .mapToTable(Blocks.CONTAINS_STARRED, Tables.BLOCKS)
+                .build());
+        plans.put(BLOCKS_ID, QueryPlan.newPlan(Tables.BLOCKS)
+                .mapToTable(Blocks.SESSIONS_COUNT, Tables.BLOCKS)
+                .mapToTable(Blocks.CONTAINS_STARRED, Tables.BLOCKS)
+                .where(Blocks.BLOCK_ID + "=?")
+                .build());
+        plans.put(BLOCKS_ID_SESSIONS, newSessionsPlan(Tables.SESSIONS_JOIN_BLOCKS_ROOMS_TRACKS)
+                .mapToTable(Blocks.SESSIONS_COUNT, Tables.BLOCKS)
+                .mapToTable(Blocks.CONTAINS_STARRED, Tables.BLOCKS)
+                .mapToTable(Sessions.SESSION_ID, Tables.SESSIONS)
+                .where(Qualified.SESSIONS_BLOCK_ID + "=?")
+                .build());
+        plans.put(NOTES, QueryPlan.newPlan(Tables.NOTES_JOIN_SESSIONS_TRACKS)
+                .mapToTable(Notes._ID, Tables.NOTES)
+                .mapToTable(Notes.SESSION_ID, Tables.NOTES)
+                .mapToTable(Tracks.TRACK_COLOR, Tables.TRACKS)
+                .build());
+        plans.put(NOTES_ID, QueryPlan.newPlan(Tables.NOTES)
+                .where(Notes._ID + "=?")
+                .build());
+        plans.put(TRACKS, QueryPlan.newPlan(Tables.TRACKS)
+                .build());
+        plans.put(TRACKS_ID, QueryPlan.newPlan(Tables.TRACKS)
+                .where(Tracks.TRACK_ID + "=?")
+                .build());
+        plans.put(TRACKS_ID_SESSIONS, newSessionsPlan(Tables.SESSIONS_JOIN_BLOCKS_ROOMS_TRACKS)
+                .mapToTable(Sessions.SESSION_ID, Tables.SESSIONS)
+                .where(Qualified.SESSIONS_TRACK_ID + "=?")
+                .build());
+        plans.put(SYNC, QueryPlan.newPlan(Tables.SYNC)
+                .build());
+        plans.put(SYNC_ID, QueryPlan.newPlan(Tables.SYNC)
+                .where(Sync.URI_ID + "=?")
+                .build());
+        plans.put(TAGS, QueryPlan.newPlan(Tables.TAGS)
+                .build());
+        plans.put(TAGS_ID, QueryPlan.newPlan(Tables.TAGS)
+                .where(Tags.TAG_ID + "=?")
+                .build());
+        plans.put(TAGS_ID_SESSIONS, newSessionsPlan(Tables.SESSIONS_TAGS_JOIN_SESSIONS_BLOCKS_ROOMS_TRACKS)
+                .mapToTable(Sessions.SESSION_ID, Tables.SESSIONS)
+                .where(Qualified.SESSIONS_TAGS_TAG_ID + "=?")
+                .build());
+        plans.put(TYPES, QueryPlan.newPlan(Tables.TYPES)
+                .build());
+        plans.put(TYPES_ID_SESSIONS, newSessionsPlan(Tables.SESSIONS_JOIN_BLOCKS_ROOMS_TRACKS)
+                .mapToTable(Blocks.SESSIONS_COUNT, Tables.BLOCKS)
+                .mapToTable(Blocks.CONTAINS_STARRED, Tables.BLOCKS)
+                .mapToTable(Sessions.SESSION_ID, Tables.SESSIONS)
+                .where(Qualified.SESSIONS_TYPE_ID + "=?")
+                .build());
+
+        return plans;
+    }
+
+    /**
+     * The {@code fts4} tables index the columns of their content table under
+     * the same names, so those are mapped to the content table.
+     */
+    private static SparseArray<QueryPlan> buildFts4QueryPlans() {
+        final SparseArray<QueryPlan> plans = new SparseArray<QueryPlan>();
+
+        plans.put(SESSIONS_SEARCH, newSessionsPlan(Tables.SESSIONS_FTS4_SEARCH_JOIN_SESSIONS_BLOCKS_ROOMS_TRACKS)
+                .map(Sessions.SEARCH_SNIPPET, Subquery.SESSIONS_SNIPPET)
+                .mapToTable(Sessions.SESSION_ID, Tables.SESSIONS)
+                .mapToTable(Sessions.TITLE, Tables.SESSIONS)
+                .mapToTable(Sessions.SUMMARY, Tables.SESSIONS)
+                .mapToTable(Sessions.EXPERIENCE, Tables.SESSIONS)
+                .mapToTable(Sessions.NOTE, Tables.SESSIONS)
+                .where(Tables.SESSIONS_SEARCH + " MATCH ?")
+                .rankBy(Tables.SESSIONS_SEARCH, SearchWeights.SESSIONS)
+                .build());
+        plans.put(SPEAKERS_SEARCH, QueryPlan.newPlan(Tables.SPEAKERS_FTS4_SEARCH_JOIN_SPEAKERS)
+                .map(Speakers.SEARCH_SNIPPET, Subquery.SPEAKERS_SNIPPET)
+                .mapToTable(Speakers.CONTAINS_STARRED, Tables.SPEAKERS)
+                .mapToTable(Speakers._ID, Tables.SPEAKERS)
+                .mapToTable(Speakers.SPEAKER_ID, Tables.SPEAKERS)
+                .mapToTable(Speakers.FIRST_NAME, Tables.SPEAKERS)
+                .mapToTable(Speakers.LAST_NAME, Tables.SPEAKERS)
+                .mapToTable(Speakers.COMPANY, Tables.SPEAKERS)
+                .mapToTable(Speakers.BIO, Tables.SPEAKERS)
+                .where(Tables.SPEAKERS_SEARCH + " MATCH ?")
+                .rankBy(Tables.SPEAKERS_SEARCH, SearchWeights.SPEAKERS)
+                .build());
+
+        return plans;
+    }
+
+    /**
+     * Return the full-text query of a search {@link Uri}, with its last word
+     * matched as a prefix. Operators, phrases and words shorter than
+     * {@link ScheduleDatabase#MIN_SEARCH_PREFIX} are left as they are.
+     */
+    static String getSearchMatch(Uri uri) {
+        final String query = Sessions.getSearchQuery(uri).trim();
+        final Matcher matcher = LAST_WORD_PATTERN.matcher(query);
+        if (!matcher.find() || matcher.group(1).length() < ScheduleDatabase.MIN_SEARCH_PREFIX
+                || SEARCH_OPERATORS.contains(matcher.group(1))) {
+            return query;
+        }
+        int quotes = 0;
+        for (int i = 0; i < query.length(); i++) {
+            if (query.charAt(i) == '"') quotes++;
+        }
+        return (quotes % 2 == 0) ? query + "*" : query;
+    }
+
+    /**
+     * Return the {@link QueryPlan} for the given match on this database.
+     */
+    private static QueryPlan getQueryPlan(SQLiteDatabase db, int match) {
+        final QueryPlan plan = sFts4QueryPlans.get(match);
+        if (plan != null && ScheduleDatabase.hasFts4SearchTables(db)) {
+            return plan;
+        }
+        return sQueryPlans.get(match);
+    }
+
+    /**
+     * Run the query of a ranked plan and return its best rows in order of
+     * relevance, at most the {@link SearchManager#SUGGEST_PARAMETER_LIMIT} of
+     * the {@link Uri} or {@link #DEFAULT_SEARCH_LIMIT}. The matches are scored
+     * on their {@code docid} and {@code matchinfo()} alone, with the hits of
+     * every column weighted since the platform offers no way to register a
+     * ranking function in sql. Only the best rows are then read in full.
+     */
+    private static Cursor queryRanked(SQLiteDatabase db, Uri uri, QueryPlan plan,
+            SelectionBuilder builder, String[] projection) {
+        final String docId = plan.getRankTable() + ".docid";
+        final ArrayList<RankedRow> ranks = Lists.newArrayList();
+        Cursor cursor = builder.query(db,
+                new String[] { docId, "matchinfo(" + plan.getRankTable() + ")" }, null);
+        try {
+            while (cursor.moveToNext()) {
+                ranks.add(new RankedRow(cursor.getLong(0),
+                        getSearchScore(cursor.getBlob(1), plan.getRankWeights())));
+            }
+        } finally {
+            cursor.close();
+        }
+        Collections.sort(ranks, RankedRow.BEST_FIRST);
+
+        int limit = DEFAULT_SEARCH_LIMIT;
+        final String limitParameter = uri.getQueryParameter(SearchManager.SUGGEST_PARAMETER_LIMIT);
+        if (limitParameter != null) {
+            try {
+                limit = Math.max(0, Integer.parseInt(limitParameter));
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Invalid search limit: " + limitParameter);
+            }
+        }
+        final int count = Math.min(limit, ranks.size());
+        final HashMap<Long, Integer> positions = Maps.newHashMap();
+        final StringBuilder selection = new StringBuilder(docId).append(" IN (");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) selection.append(',');
+            selection.append(ranks.get(i).docId);
+            positions.put(ranks.get(i).docId, i);
+        }
+        builder.where(selection.append(')').toString());
+
+        final String[] columns;
+        if (projection != null) {
+            columns = new String[projection.length + 1];
+            System.arraycopy(projection, 0, columns, 0, projection.length);
+        } else {
+            columns = new String[] { "*", null };
+        }
+        columns[columns.length - 1] = docId;
+
+        final String[] columnNames;
+        final Object[][] rows = new Object[count][];
+        cursor = builder.query(db, columns, null);
+        try {
+            final int docIdColumn = cursor.getColumnCount() - 1;
+            columnNames = new String[docIdColumn];
+            System.arraycopy(cursor.getColumnNames(), 0, columnNames, 0, docIdColumn);
+            while (cursor.moveToNext()) {
+                final Integer position = positions.get(cursor.getLong(docIdColumn));
+                if (position == null) continue;
+                final Object[] row = new Object[docIdColumn];
+                for (int i = 0; i < docIdColumn; i++) {
+                    row[i] = cursor.isNull(i) ? null : cursor.getString(i);
+                }
+                rows[position] = row;
+            }
+        } finally {
+            cursor.close();
+        }
+
+        // Leave out rows that went away in between
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            if (rows[i] != null) rows[size++] = rows[i];
+        }
+        final Object[][] result = new Object[size][];
+        System.arraycopy(rows, 0, result, 0, size);
+        return new CachedCursor(columnNames, result);
+    }
+
+    private static class RankedRow {
+        /** Best score first, matches with the same score keep their order. */
+        static final Comparator<RankedRow> BEST_FIRST = new Comparator<RankedRow>() {
+            public int compare(RankedRow a, RankedRow b) {
+                return Float.compare(b.score, a.score);
+            }
+        };
+
+        final long docId;
+        final float score;
+
+        RankedRow(long docId, float score) {
+            this.docId = docId;
+            this.score = score;
+        }
+    }
+
+    /**
+     * Score a row from its default {@code matchinfo()}: the number of
+     * phrases and columns followed, for every phrase and column, by the hits
+     * in this row, the hits in all rows and the rows with hits.
+     */
+    private static float getSearchScore(byte [] matchInfo, float [] weights) {
+        final IntBuffer info = ByteBuffer.wrap(matchInfo)
+                .order(ByteOrder.nativeOrder()).asIntBuffer();
+        final int phrases = info.get(0);
+        final int columns = info.get(1);
+        float score = 0;
+        for (int i = 0; i < phrases; i++) {
+            for (int j = 0; j < columns; j++) {
+                final int offset = 2 + 3 * (i * columns + j);
+                final int hits = info.get(offset);
+                final int allHits = info.get(offset + 1);
+                if (hits > 0 && j < weights.length) {
+                    score += weights[j] * hits / allHits;
+                }
+            }
+        }
+        return score;
+    }
+
     /**
      * Build an advanced {@link SelectionBuilder} to match the requested
      * {@link Uri}. This is usually only used by {@link #query}, since it
      * performs table joins useful for {@link Cursor} data.
      */
-    private SelectionBuilder buildExpandedSelection(Uri uri, int match) {
-        final SelectionBuilder builder = new SelectionBuilder();
+    private SelectionBuilder buildExpandedSelection(Uri uri, int match, QueryPlan plan) {
+        if (plan == null) {
+            throw new UnsupportedOperationException("Unknown uri: " + uri);
+        }
         switch (match) {
-            case SESSIONS: {
-                return builder.table(Tables.SESSIONS_JOIN_BLOCKS_ROOMS_TRACKS)
-                		.mapToTable(Sessions._ID, Tables.SESSIONS)
-                		.mapToTable(Sessions.BLOCK_ID, Tables.SESSIONS)
-                		.mapToTable(Sessions.ROOM_ID, Tables.SESSIONS)
-                		.mapToTable(Sessions.TRACK_ID, Tables.SESSIONS)
-                        .map(Sessions.STARRED_IN_BLOCK_COUNT, Subquery.BLOCK_STARRED_SESSIONS_COUNT)
-                		.mapToTable(Tracks.TRACK_COLOR, Tables.TRACKS);
-            }
-            case SESSIONS_STARRED: {
-                return builder.table(Tables.SESSIONS_JOIN_BLOCKS_ROOMS_TRACKS)
-                        .mapToTable(Sessions._ID, Tables.SESSIONS)
-                        .mapToTable(Sessions.BLOCK_ID, Tables.SESSIONS)
-                        .mapToTable(Sessions.ROOM_ID, Tables.SESSIONS)
-                		.mapToTable(Sessions.TRACK_ID, Tables.SESSIONS)
-                        .map(Sessions.STARRED_IN_BLOCK_COUNT, Subquery.BLOCK_STARRED_SESSIONS_COUNT)
-                		.mapToTable(Tracks.TRACK_COLOR, Tables.TRACKS)
-                        .where(Sessions.STARRED + "=1");
-            }
-            case SESSIONS_NEW: {
-                return builder.table(Tables.SESSIONS_JOIN_BLOCKS_ROOMS_TRACKS)
-                        .mapToTable(Sessions._ID, Tables.SESSIONS)
-                        .mapToTable(Sessions.BLOCK_ID, Tables.SESSIONS)
-                        .mapToTable(Sessions.ROOM_ID, Tables.SESSIONS)
-                		.mapToTable(Sessions.TRACK_ID, Tables.SESSIONS)
-                        .map(Sessions.STARRED_IN_BLOCK_COUNT, Subquery.BLOCK_STARRED_SESSIONS_COUNT)
-                		.mapToTable(Tracks.TRACK_COLOR, Tables.TRACKS)
-                        .where(Sessions.NEW + "=1");
-            }
-            case SESSIONS_UPDATED: {
-                return builder.table(Tables.SESSIONS_JOIN_BLOCKS_ROOMS_TRACKS)
-                        .mapToTable(Sessions._ID, Tables.SESSIONS)
-                        .mapToTable(Sessions.BLOCK_ID, Tables.SESSIONS)
-                        .mapToTable(Sessions.ROOM_ID, Tables.SESSIONS)
-                		.mapToTable(Sessions.TRACK_ID, Tables.SESSIONS)
-                        .map(Sessions.STARRED_IN_BLOCK_COUNT, Subquery.BLOCK_STARRED_SESSIONS_COUNT)
-                		.mapToTable(Tracks.TRACK_COLOR, Tables.TRACKS)
-                        .where(Sessions.UPDATED + "=1");
-            }
-            case SESSIONS_UPDATED_STARRED: {
-                return builder.table(Tables.SESSIONS_JOIN_BLOCKS_ROOMS_TRACKS)
-                        .mapToTable(Sessions._ID, Tables.SESSIONS)
-                        .mapToTable(Sessions.BLOCK_ID, Tables.SESSIONS)
-                        .mapToTable(Sessions.ROOM_ID, Tables.SESSIONS)
-                		.mapToTable(Sessions.TRACK_ID, Tables.SESSIONS)
-                        .map(Sessions.STARRED_IN_BLOCK_COUNT, Subquery.BLOCK_STARRED_SESSIONS_COUNT)
-                		.mapToTable(Tracks.TRACK_COLOR, Tables.TRACKS)
-                        .where(Sessions.UPDATED + "=1")
-                        .where(Sessions.STARRED + "=1");
-            }
-            case SESSIONS_SEARCH: {
-                final String query = Sessions.getSearchQuery(uri);
-                return builder.table(Tables.SESSIONS_SEARCH_JOIN_SESSIONS_BLOCKS_ROOMS_TRACKS)
-                        .map(Sessions.SEARCH_SNIPPET, Subquery.SESSIONS_SNIPPET)
-                        .mapToTable(Sessions._ID, Tables.SESSIONS)
-                        .mapToTable(Sessions.SESSION_ID, Tables.SESSIONS)
-                        .mapToTable(Sessions.BLOCK_ID, Tables.SESSIONS)
-                        .mapToTable(Sessions.ROOM_ID, Tables.SESSIONS)
-                		.mapToTable(Sessions.TRACK_ID, Tables.SESSIONS)
-                        .map(Sessions.STARRED_IN_BLOCK_COUNT, Subquery.BLOCK_STARRED_SESSIONS_COUNT)
-                		.mapToTable(Tracks.TRACK_COLOR, Tables.TRACKS)
-                        .where(SessionsSearchColumns.BODY + " MATCH ?", query);
+            case SESSIONS_SEARCH:
+            case SPEAKERS_SEARCH: {
+                return plan.newSelection(getSearchMatch(uri));
             }
             case SESSIONS_AT: {
-                final List<String> segments = uri.getPathSegments();
-                final String time = segments.get(2);
-                return builder.table(Tables.SESSIONS_JOIN_BLOCKS_ROOMS_TRACKS)
-                        .mapToTable(Sessions._ID, Tables.SESSIONS)
-                        .mapToTable(Sessions.BLOCK_ID, Tables.SESSIONS)
-                        .mapToTable(Sessions.ROOM_ID, Tables.SESSIONS)
-                		.mapToTable(Sessions.TRACK_ID, Tables.SESSIONS)
-                        .map(Sessions.STARRED_IN_BLOCK_COUNT, Subquery.BLOCK_STARRED_SESSIONS_COUNT)
-                		.mapToTable(Tracks.TRACK_COLOR, Tables.TRACKS)
-                        .where(Sessions.BLOCK_START + "<=?", time)
-                        .where(Sessions.BLOCK_END + ">=?", time);
+                final String time = uri.getPathSegments().get(2);
+                return plan.newSelection()
+                        .where(buildInSelection(Qualified.SESSIONS_BLOCK_ID, getTimelineIndex()
+                                .getBlocksAt(Long.parseLong(time))));
             }
             case SESSIONS_PARALLEL: {
-                final List<String> segments = uri.getPathSegments();
-                final String sessionId = segments.get(2);
-                return builder.table(Tables.SESSIONS_JOIN_BLOCKS_ROOMS_TRACKS)
-                        .mapToTable(Sessions._ID, Tables.SESSIONS)
-                        .mapToTable(Sessions.BLOCK_ID, Tables.SESSIONS)
-                        .mapToTable(Sessions.ROOM_ID, Tables.SESSIONS)
-                		.mapToTable(Sessions.TRACK_ID, Tables.SESSIONS)
-                        .map(Sessions.STARRED_IN_BLOCK_COUNT, Subquery.BLOCK_STARRED_SESSIONS_COUNT)
-                		.mapToTable(Tracks.TRACK_COLOR, Tables.TRACKS)
-                        .where(WhereClause.SESSIONS_PARALLEL, sessionId, sessionId)
-                        .where(Sessions.SESSION_ID + "<>?", sessionId);
+                return plan.newSelection(uri.getPathSegments().get(2));
             }
             case SESSIONS_NEXT: {
-                final List<String> segments = uri.getPathSegments();
-                final String time = segments.get(2);
-                return builder.table(Tables.SESSIONS_JOIN_BLOCKS_ROOMS_TRACKS)
-                        .mapToTable(Sessions._ID, Tables.SESSIONS)
-                        .mapToTable(Sessions.BLOCK_ID, Tables.SESSIONS)
-                        .mapToTable(Sessions.ROOM_ID, Tables.SESSIONS)
-                		.mapToTable(Sessions.TRACK_ID, Tables.SESSIONS)
-                        .map(Sessions.STARRED_IN_BLOCK_COUNT, Subquery.BLOCK_STARRED_SESSIONS_COUNT)
-                		.mapToTable(Tracks.TRACK_COLOR, Tables.TRACKS)
-                        .where(WhereClause.SESSIONS_NEXT, time);
-            }
-            case SESSIONS_ID: {
-                final String sessionId = Sessions.getSessionId(uri);
-                return builder.table(Tables.SESSIONS_JOIN_BLOCKS_ROOMS_TRACKS)
-                        .mapToTable(Sessions._ID, Tables.SESSIONS)
-                        .mapToTable(Sessions.BLOCK_ID, Tables.SESSIONS)
-                        .mapToTable(Sessions.ROOM_ID, Tables.SESSIONS)
-                		.mapToTable(Sessions.TRACK_ID, Tables.SESSIONS)
-                        .map(Sessions.STARRED_IN_BLOCK_COUNT, Subquery.BLOCK_STARRED_SESSIONS_COUNT)
-                		.mapToTable(Tracks.TRACK_COLOR, Tables.TRACKS)
-                        .where(Qualified.SESSIONS_SESSION_ID + "=?", sessionId);
-            }
-            case SESSIONS_ID_SPEAKERS: {
-                final String sessionId = Sessions.getSessionId(uri);
-                return builder.table(Tables.SESSIONS_SPEAKERS_JOIN_SPEAKERS)
-                        .mapToTable(Speakers._ID, Tables.SPEAKERS)
-                        .mapToTable(Speakers.SPEAKER_ID, Tables.SPEAKERS)
-                        .where(Qualified.SESSIONS_SPEAKERS_SESSION_ID + "=?", sessionId);
-            }
-            case SESSIONS_ID_NOTES: {
-                final String sessionId = Sessions.getSessionId(uri);
-                return builder.table(Tables.NOTES_JOIN_SESSIONS_TRACKS)
-		        		.mapToTable(Notes._ID, Tables.NOTES)
-		        		.mapToTable(Notes.SESSION_ID, Tables.NOTES)
-                		.mapToTable(Tracks.TRACK_COLOR, Tables.TRACKS)
-                        .where(Qualified.NOTES_SESSION_ID + "=?", sessionId);
+                final String time = uri.getPathSegments().get(2);
+                return plan.newSelection()
+                        .where(buildInSelection(Qualified.SESSIONS_BLOCK_ID, getTimelineIndex()
+                                .getNextBlocks(Long.parseLong(time))));
             }
+            case SESSIONS_ID:
+            case SESSIONS_ID_SPEAKERS:
+            case SESSIONS_ID_NOTES:
             case SESSIONS_ID_TAGS: {
-                final String sessionId = Sessions.getSessionId(uri);
-                return builder.table(Tables.SESSIONS_TAGS_JOIN_TAGS)
-                        .mapToTable(Tags._ID, Tables.TAGS)
-                        .mapToTable(Tags.TAG_ID, Tables.TAGS)
-                        .where(Qualified.SESSIONS_TAGS_SESSION_ID + "=?", sessionId);
-            }
-            case SPEAKERS: {
-                return builder.table(Tables.SPEAKERS)
-                   		.map(Speakers.CONTAINS_STARRED, Subquery.SPEAKER_CONTAINS_STARRED);
-            }
-            case SPEAKERS_STARRED: {
-                return builder.table(Tables.SPEAKERS)
-                   		.map(Speakers.CONTAINS_STARRED, Subquery.SPEAKER_CONTAINS_STARRED)
-                        .where(Speakers.CONTAINS_STARRED + "=1");
-            }
-            case SPEAKERS_SEARCH: {
-                final String query = Sessions.getSearchQuery(uri);
-                return builder.table(Tables.SPEAKERS_SEARCH_JOIN_SPEAKERS)
-                        .map(Speakers.SEARCH_SNIPPET, Subquery.SPEAKERS_SNIPPET)
-                   		.map(Speakers.CONTAINS_STARRED, Subquery.SPEAKER_CONTAINS_STARRED)
-                        .mapToTable(Speakers._ID, Tables.SPEAKERS)
-                        .mapToTable(Speakers.SPEAKER_ID, Tables.SPEAKERS)
-                        .where(SpeakersSearchColumns.BODY + " MATCH ?", query);
-            }
-            case SPEAKERS_ID: {
-                final String speakerId = Speakers.getSpeakerId(uri);
-                return builder.table(Tables.SPEAKERS)
-                        .where(Speakers.SPEAKER_ID + "=?", speakerId);
+                return plan.newSelection(Sessions.getSessionId(uri));
             }
+            case SPEAKERS_ID:
             case SPEAKERS_ID_SESSIONS: {
-                final String speakerId = Speakers.getSpeakerId(uri);
-                return builder.table(Tables.SESSIONS_SPEAKERS_JOIN_SESSIONS_BLOCKS_ROOMS_TRACKS)
-                        .mapToTable(Sessions._ID, Tables.SESSIONS)
-                        .mapToTable(Sessions.SESSION_ID, Tables.SESSIONS)
-                        .mapToTable(Sessions.BLOCK_ID, Tables.SESSIONS)
-                        .mapToTable(Sessions.ROOM_ID, Tables.SESSIONS)
-                        .mapToTable(Sessions.TRACK_ID, Tables.SESSIONS)
-                        .map(Sessions.STARRED_IN_BLOCK_COUNT, Subquery.BLOCK_STARRED_SESSIONS_COUNT)
-                        .mapToTable(Tracks.TRACK_COLOR, Tables.TRACKS)
-                        .where(Qualified.SESSIONS_SPEAKERS_SPEAKER_ID + "=?", speakerId);
-            }
-            case ROOMS: {
-                return builder.table(Tables.ROOMS)
-                	.map(Rooms.SESSIONS_COUNT, Subquery.ROOM_SESSIONS_COUNT);
-            }
-            case ROOMS_ID: {
-                final String roomId = Rooms.getRoomId(uri);
-                return builder.table(Tables.ROOMS)
-                        .where(Rooms.ROOM_ID + "=?", roomId);
-            }
-            case ROOMS_WITH_NAME: {
-                final String roomName = Rooms.getRoomName(uri);
-                return builder.table(Tables.ROOMS)
-                        .where(Rooms.NAME + "=?", roomName);
+                return plan.newSelection(Speakers.getSpeakerId(uri));
             }
+            case ROOMS_ID:
             case ROOMS_ID_SESSIONS: {
-                final String roomId = Rooms.getRoomId(uri);
-                return builder.table(Tables.SESSIONS_JOIN_BLOCKS_ROOMS_TRACKS)
-                        .mapToTable(Sessions._ID, Tables.SESSIONS)
-                        .mapToTable(Sessions.BLOCK_ID, Tables.SESSIONS)
-                        .mapToTable(Sessions.ROOM_ID, Tables.SESSIONS)
-                		.mapToTable(Sessions.TRACK_ID, Tables.SESSIONS)
-                        .map(Sessions.STARRED_IN_BLOCK_COUNT, Subquery.BLOCK_STARRED_SESSIONS_COUNT)
-                		.mapToTable(Tracks.TRACK_COLOR, Tables.TRACKS)
-                        .where(Qualified.SESSIONS_ROOM_ID + "=?", roomId);
+                return plan.newSelection(Rooms.getRoomId(uri));
             }
-            case BLOCKS: {
-                return builder.table(Tables.BLOCKS);
+            case ROOMS_WITH_NAME: {
+                return plan.newSelection(Rooms.getRoomName(uri));
             }
             case BLOCKS_BETWEEN: {
                 final List<String> segments = uri.getPathSegments();
                 final String startTime = segments.get(2);
                 final String endTime = segments.get(3);
-                builder.table(Tables.BLOCKS)
-                        .map(Blocks.SESSIONS_COUNT, Subquery.BLOCK_SESSIONS_COUNT)
-                        .map(Blocks.CONTAINS_STARRED, Subquery.BLOCK_CONTAINS_STARRED)
-                        .where(Blocks.BLOCK_START + ">=?", startTime)
-                        .where(Blocks.BLOCK_START + "<=?", endTime);
-                return builder;
-            }
-            case BLOCKS_ID: {
-                final String blockId = Blocks.getBlockId(uri);
-                return builder.table(Tables.BLOCKS)
-                        .map(Blocks.SESSIONS_COUNT, Subquery.BLOCK_SESSIONS_COUNT)
-                        .map(Blocks.CONTAINS_STARRED, Subquery.BLOCK_CONTAINS_STARRED)
-                        .where(Blocks.BLOCK_ID + "=?", blockId);
+                return plan.newSelection()
+                        .where(buildInSelection(Blocks.BLOCK_ID, getTimelineIndex()
+                                .getBlocksBetween(Long.parseLong(startTime), Long.parseLong(endTime))));
             }
+            case BLOCKS_ID:
             case BLOCKS_ID_SESSIONS: {
-                final String blockId = Blocks.getBlockId(uri);
-                return builder.table(Tables.SESSIONS_JOIN_BLOCKS_ROOMS_TRACKS)
-                        .map(Blocks.SESSIONS_COUNT, Subquery.BLOCK_SESSIONS_COUNT)
-                        .map(Blocks.CONTAINS_STARRED, Subquery.BLOCK_CONTAINS_STARRED)
-                        .mapToTable(Sessions._ID, Tables.SESSIONS)
-                        .mapToTable(Sessions.SESSION_ID, Tables.SESSIONS)
-                        .mapToTable(Sessions.BLOCK_ID, Tables.SESSIONS)
-                        .mapToTable(Sessions.ROOM_ID, Tables.SESSIONS)
-                		.mapToTable(Sessions.TRACK_ID, Tables.SESSIONS)
-                        .map(Sessions.STARRED_IN_BLOCK_COUNT, Subquery.BLOCK_STARRED_SESSIONS_COUNT)
-                		.mapToTable(Tracks.TRACK_COLOR, Tables.TRACKS)
-                        .where(Qualified.SESSIONS_BLOCK_ID + "=?", blockId);
-            }
-            case NOTES: {
-                return builder.table(Tables.NOTES_JOIN_SESSIONS_TRACKS)
-                		.mapToTable(Notes._ID, Tables.NOTES)
-                		.mapToTable(Notes.SESSION_ID, Tables.NOTES)
-                		.mapToTable(Tracks.TRACK_COLOR, Tables.TRACKS);
+                return plan.newSelection(Blocks.getBlockId(uri));
             }
             case NOTES_ID: {
-                final long noteId = Notes.getNoteId(uri);
-                return builder.table(Tables.NOTES)
-                        .where(Notes._ID + "=?", Long.toString(noteId));
-            }
-            case TRACKS: {
-                return builder.table(Tables.TRACKS)
-                        .map(Tracks.SESSIONS_COUNT, Subquery.TRACK_SESSIONS_COUNT);
-            }
-            case TRACKS_ID: {
-                final String trackId = Tracks.getTrackId(uri);
-                return builder.table(Tables.TRACKS)
-                        .where(Tracks.TRACK_ID + "=?", trackId);
-            }
-            case SYNC: {
-                return builder.table(Tables.SYNC);
-            }
-            case SYNC_ID: {
-                final String syncId = Sync.getSyncId(uri);
-                return builder.table(Tables.SYNC)
-                        .where(Sync.URI_ID + "=?", syncId);
+                return plan.newSelection(Long.toString(Notes.getNoteId(uri)));
             }
+            case TRACKS_ID:
             case TRACKS_ID_SESSIONS: {
-                final String trackId = Tracks.getTrackId(uri);
-                return builder.table(Tables.SESSIONS_JOIN_BLOCKS_ROOMS_TRACKS)
-                        .mapToTable(Sessions._ID, Tables.SESSIONS)
-                        .mapToTable(Sessions.SESSION_ID, Tables.SESSIONS)
-                        .mapToTable(Sessions.BLOCK_ID, Tables.SESSIONS)
-                        .mapToTable(Sessions.ROOM_ID, Tables.SESSIONS)
-                		.mapToTable(Sessions.TRACK_ID, Tables.SESSIONS)
-                        .map(Sessions.STARRED_IN_BLOCK_COUNT, Subquery.BLOCK_STARRED_SESSIONS_COUNT)
-                		.mapToTable(Tracks.TRACK_COLOR, Tables.TRACKS)
-                        .where(Qualified.SESSIONS_TRACK_ID + "=?", trackId);
+                return plan.newSelection(Tracks.getTrackId(uri));
             }
-            case TAGS: {
-                return builder.table(Tables.TAGS)
-                		.map(Tags.SESSIONS_COUNT, Subquery.TAG_SESSIONS_COUNT);
-            }
-            case TAGS_ID: {
-                final String tagId = Tags.getTagId(uri);
-                return builder.table(Tables.TAGS)
-                        .where(Tags.TAG_ID + "=?", tagId);
+            case SYNC_ID: {
+                return plan.newSelection(Sync.getSyncId(uri));
             }
+            case TAGS_ID:
             case TAGS_ID_SESSIONS: {
-                final String tagId = Tags.getTagId(uri);
-                return builder.table(Tables.SESSIONS_TAGS_JOIN_SESSIONS_BLOCKS_ROOMS_TRACKS)
-                        .mapToTable(Sessions._ID, Tables.SESSIONS)
-                        .mapToTable(Sessions.SESSION_ID, Tables.SESSIONS)
-                        .mapToTable(Sessions.BLOCK_ID, Tables.SESSIONS)
-                        .mapToTable(Sessions.ROOM_ID, Tables.SESSIONS)
-                        .mapToTable(Sessions.TRACK_ID, Tables.SESSIONS)
-                        .map(Sessions.STARRED_IN_BLOCK_COUNT, Subquery.BLOCK_STARRED_SESSIONS_COUNT)
-                        .mapToTable(Tracks.TRACK_COLOR, Tables.TRACKS)
-                        .where(Qualified.SESSIONS_TAGS_TAG_ID + "=?", tagId);
-            }
-            case TYPES: {
-                return builder.table(Tables.TYPES)
-                		.map(Types.SESSIONS_COUNT, Subquery.TYPE_SESSIONS_COUNT);
+                return plan.newSelection(Tags.getTagId(uri));
             }
             case TYPES_ID_SESSIONS: {
-                final String typeId = Types.getTypeId(uri);
-                return builder.table(Tables.SESSIONS_JOIN_BLOCKS_ROOMS_TRACKS)
-                        .map(Blocks.SESSIONS_COUNT, Subquery.BLOCK_SESSIONS_COUNT)
-                        .map(Blocks.CONTAINS_STARRED, Subquery.BLOCK_CONTAINS_STARRED)
-                        .mapToTable(Sessions._ID, Tables.SESSIONS)
-                        .mapToTable(Sessions.SESSION_ID, Tables.SESSIONS)
-                        .mapToTable(Sessions.BLOCK_ID, Tables.SESSIONS)
-                        .mapToTable(Sessions.ROOM_ID, Tables.SESSIONS)
-                		.mapToTable(Sessions.TRACK_ID, Tables.SESSIONS)
-                        .map(Sessions.STARRED_IN_BLOCK_COUNT, Subquery.BLOCK_STARRED_SESSIONS_COUNT)
-                		.mapToTable(Tracks.TRACK_COLOR, Tables.TRACKS)
-                        .where(Qualified.SESSIONS_TYPE_ID + "=?", typeId);
+                return plan.newSelection(Types.getTypeId(uri));
             }
             default: {
-                throw new UnsupportedOperationException("Unknown uri: " + uri);
+                return plan.newSelection();
             }
         }
     }
@@ -1027,68 +1397,25 @@ public class ScheduleProvider extends ContentProvider {
     }
 
     private interface Subquery {
-        String BLOCK_SESSIONS_COUNT = "(SELECT COUNT(" + Qualified.SESSIONS_SESSION_ID + ") FROM "
-                + Tables.SESSIONS + " WHERE " + Qualified.SESSIONS_BLOCK_ID + "="
-                + Qualified.BLOCKS_BLOCK_ID + ")";
-
-        String BLOCK_STARRED_SESSIONS_COUNT = "(SELECT COUNT(" + Qualified.S_SESSION_ID + ") FROM "
-        	+ Tables.SESSIONS + " AS S LEFT OUTER JOIN " + Tables.BLOCKS + " AS B ON " 
-        	+ Qualified.S_BLOCK_ID + "=" + Qualified.B_BLOCK_ID + " WHERE " 
-        	+ Qualified.S_STARRED + "=1 AND " + "((" + Qualified.BLOCKS_BLOCK_START + ">=" 
-        	+ Qualified.B_BLOCK_START + " AND " + Qualified.BLOCKS_BLOCK_END + "<=" 
-        	+ Qualified.B_BLOCK_END + ") OR (" + Qualified.BLOCKS_BLOCK_END + ">" 
-        	+ Qualified.B_BLOCK_START + " AND " + Qualified.BLOCKS_BLOCK_END + "<=" 
-        	+ Qualified.B_BLOCK_END + ") OR (" + Qualified.BLOCKS_BLOCK_START + "<" 
-        	+ Qualified.B_BLOCK_END + " AND " + Qualified.BLOCKS_BLOCK_START + ">="
-        	+ Qualified.B_BLOCK_START + ")))";
-
-        String BLOCK_CONTAINS_STARRED = "(SELECT MAX(" + Qualified.SESSIONS_STARRED + ") FROM "
-                + Tables.SESSIONS + " WHERE " + Qualified.SESSIONS_BLOCK_ID + "="
-                + Qualified.BLOCKS_BLOCK_ID + ")";
-
-        String SPEAKER_CONTAINS_STARRED = "(SELECT MAX(" + Qualified.SESSIONS_STARRED + ") FROM "
-        		+ Tables.SESSIONS + " LEFT OUTER JOIN " + Tables.SESSIONS_SPEAKERS + " ON "
-        		+ Qualified.SESSIONS_SESSION_ID + "=" + Qualified.SESSIONS_SPEAKERS_SESSION_ID 
-        		+ " WHERE " + Qualified.SESSIONS_SPEAKERS_SPEAKER_ID + "="
-        		+ Qualified.SPEAKERS_SPEAKER_ID + ")";
-
-        String TRACK_SESSIONS_COUNT = "(SELECT COUNT(" + Qualified.SESSIONS_TRACK_ID
-                + ") FROM " + Tables.SESSIONS + " WHERE "
-                + Qualified.SESSIONS_TRACK_ID + "=" + Qualified.TRACKS_TRACK_ID + ")";
-        
-        String TAG_SESSIONS_COUNT = "(SELECT COUNT(" + Qualified.SESSIONS_TAGS_TAG_ID
-        + ") FROM " + Tables.SESSIONS_TAGS + " WHERE "
-        + Qualified.SESSIONS_TAGS_TAG_ID + "=" + Qualified.TAGS_TAG_ID + ")";
-
-        String TYPE_SESSIONS_COUNT = "(SELECT COUNT(" + Qualified.SESSIONS_SESSION_ID
-        + ") FROM " + Tables.SESSIONS + " WHERE "
-        + Qualified.SESSIONS_TYPE_ID + "=" + Qualified.TYPES_TYPE_ID + ")";
-
-        String ROOM_SESSIONS_COUNT = "(SELECT COUNT(" + Qualified.SESSIONS_SESSION_ID
-        + ") FROM " + Tables.SESSIONS + " WHERE "
-        + Qualified.SESSIONS_ROOM_ID + "=" + Qualified.ROOMS_ROOM_ID + ")";
-
         String SESSIONS_SNIPPET = "snippet(" + Tables.SESSIONS_SEARCH + ",'{','}','\u2026')";
         String SPEAKERS_SNIPPET = "snippet(" + Tables.SPEAKERS_SEARCH + ",'{','}','\u2026')";
     }
     
     private interface WhereClause {
-    	String SESSIONS_PARALLEL = "(" + Sessions.BLOCK_START + " >= (SELECT "
-    			+ Blocks.BLOCK_START + " FROM " + Tables.BLOCKS + " LEFT OUTER JOIN " 
-    			+ Tables.SESSIONS + " ON " + Tables.BLOCKS + "." + Blocks.BLOCK_ID
-    			+ "=" + Tables.SESSIONS + "." + Sessions.BLOCK_ID + " WHERE "
-    			+ Tables.SESSIONS + "." + Sessions.SESSION_ID + " = ?) AND "
-    			+ Sessions.BLOCK_END + " <= (SELECT " + Blocks.BLOCK_END + " FROM " 
-    			+ Tables.BLOCKS + " LEFT OUTER JOIN " + Tables.SESSIONS + " ON " 
-    			+ Tables.BLOCKS + "." + Blocks.BLOCK_ID + "=" 
-    			+ Tables.SESSIONS + "." + Sessions.BLOCK_ID + " WHERE "
-    			+ Tables.SESSIONS + "." + Sessions.SESSION_ID + " = ?))";
-
-    	String SESSIONS_NEXT = "(" + Sessions.BLOCK_START + " IN (SELECT "
-    			+ Blocks.BLOCK_START + " FROM " + Tables.BLOCKS + " WHERE "
-    			+ Tables.BLOCKS + "." + Blocks.BLOCK_START 
-    			+ " >= ? ORDER BY " + Tables.BLOCKS + "." + Blocks.BLOCK_START
-    			+ " LIMIT 1))";
+    	String SESSIONS_PARALLEL = Qualified.SESSIONS_SESSION_ID + " IN (SELECT "
+    			+ SessionsParallel.PARALLEL_SESSION_ID + " FROM " + Tables.SESSIONS_PARALLEL
+    			+ " WHERE " + SessionsParallel.SESSION_ID + "=?)";
+    }
+
+    /**
+     * Weights of the indexed columns when ranking {@code fts4} search
+     * results, in the order the search tables declare them.
+     */
+    private interface SearchWeights {
+        /** title, summary, experience, note */
+        float [] SESSIONS = { 2.0f, 1.0f, 1.0f, 1.0f };
+        /** first_name, last_name, company, bio */
+        float [] SPEAKERS = { 2.0f, 2.0f, 1.0f, 0.5f };
     }
 
     /**
@@ -1127,17 +1454,8 @@ public class ScheduleProvider extends ContentProvider {
         String ROOMS_ROOM_ID = Tables.ROOMS + "." + Rooms.ROOM_ID;
 
         String BLOCKS_BLOCK_ID = Tables.BLOCKS + "." + Blocks.BLOCK_ID;
-        String BLOCKS_BLOCK_START = Tables.BLOCKS + "." + Blocks.BLOCK_START;
-        String BLOCKS_BLOCK_END = Tables.BLOCKS + "." + Blocks.BLOCK_END;
 
         String NOTES_SESSION_ID = Tables.NOTES + "." + Notes.SESSION_ID;
-
-        String S_SESSION_ID = "S." + Sessions.SESSION_ID;
-        String S_BLOCK_ID = "S." + Sessions.BLOCK_ID;
-        String S_STARRED = "S." + Sessions.STARRED;
-        String B_BLOCK_ID = "B." + Blocks.BLOCK_ID;
-        String B_BLOCK_START = "B." + Blocks.BLOCK_START;
-        String B_BLOCK_END = "B." + Blocks.BLOCK_END;
     }
     
     interface SessionsIndexQuery {
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2010 Peter Kuterna
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.peterkuterna.android.apps.devoxxsched.provider;
+
+import java.util.ArrayList;
+
+import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleContract.Blocks;
+import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleDatabase.Tables;
+import net.peterkuterna.android.apps.devoxxsched.util.Lists;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+
+/**
+ * In memory index of the {@link Blocks} time intervals, sorted on start
+ * time. Sessions inherit the interval of their block, so the now, next and
+ * window lookups resolve to a set of block ids with a binary search instead
+ * of a query.
+ * <p>
+ * The index is immutable and shared by the whole process. Writers call
+ * {@link #invalidate()} when the blocks change and the next lookup rebuilds
+ * it from the database.
+ */
+class TimelineIndex {
+
+	private static final String TAG = "TimelineIndex";
+
+	private static volatile TimelineIndex sIndex;
+	private static int sGeneration;
+
+	private final String [] mBlockIds;
+	private final long [] mStarts;
+	private final long [] mEnds;
+	/** Largest end time of the blocks up to and including each position. */
+	private final long [] mMaxEnds;
+
+	private TimelineIndex(String [] blockIds, long [] starts, long [] ends) {
+		mBlockIds = blockIds;
+		mStarts = starts;
+		mEnds = ends;
+		mMaxEnds = new long[ends.length];
+		long maxEnd = Long.MIN_VALUE;
+		for (int i = 0; i < ends.length; i++) {
+			maxEnd = Math.max(maxEnd, ends[i]);
+			mMaxEnds[i] = maxEnd;
+		}
+	}
+
+	/**
+	 * Return the current index, building it from the given database when it
+	 * was invalidated.
+	 */
+	static TimelineIndex get(SQLiteDatabase db) {
+		final TimelineIndex index = sIndex;
+		return index != null ? index : rebuild(db);
+	}
+
+	/**
+	 * Drop the current index, the next {@link #get(SQLiteDatabase)} builds a
+	 * fresh one.
+	 */
+	static synchronized void invalidate() {
+		sGeneration++;
+		sIndex = null;
+	}
+
+	/**
+	 * Build the index from the blocks table and publish it, unless the
+	 * blocks were changed again while building.
+	 */
+	static TimelineIndex rebuild(SQLiteDatabase db) {
+		final int generation;
+		synchronized (TimelineIndex.class) {
+			generation = sGeneration;
+		}
+
+		final long start = System.currentTimeMillis();
+		final Cursor cursor = db.query(Tables.BLOCKS, BlocksQuery.PROJECTION,
+				null, null, null, null, Blocks.BLOCK_START + " ASC");
+		final TimelineIndex index;
+		try {
+			final int count = cursor.getCount();
+			final String [] blockIds = new String[count];
+			final long [] starts = new long[count];
+			final long [] ends = new long[count];
+			int i = 0;
+			while (cursor.moveToNext()) {
+				blockIds[i] = cursor.getString(BlocksQuery.BLOCK_ID);
+				starts[i] = cursor.getLong(BlocksQuery.BLOCK_START);
+				ends[i] = cursor.getLong(BlocksQuery.BLOCK_END);
+				i++;
+			}
+			index = new TimelineIndex(blockIds, starts, ends);
+		} finally {
+			cursor.close();
+		}
+		Log.d(TAG, "indexed " + index.mBlockIds.length + " blocks in "
+				+ (System.currentTimeMillis() - start) + "ms");
+
+		synchronized (TimelineIndex.class) {
+			if (generation == sGeneration) {
+				sIndex = index;
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Ids of the blocks running at the given time, both bounds inclusive.
+	 */
+	ArrayList<String> getBlocksAt(long time) {
+		final ArrayList<String> blockIds = Lists.newArrayList();
+		for (int i = upperBound(time) - 1; i >= 0 && mMaxEnds[i] >= time; i--) {
+			if (mEnds[i] >= time) {
+				blockIds.add(mBlockIds[i]);
+			}
+		}
+		return blockIds;
+	}
+
+	/**
+	 * Ids of the blocks that share the first start time at or after the given
+	 * time.
+	 */
+	ArrayList<String> getNextBlocks(long time) {
+		final int from = lowerBound(time);
+		if (from == mStarts.length) {
+			return Lists.newArrayList();
+		}
+		return getBlocks(from, upperBound(mStarts[from]));
+	}
+
+	/**
+	 * Ids of the blocks starting between the given times, both bounds
+	 * inclusive.
+	 */
+	ArrayList<String> getBlocksBetween(long startTime, long endTime) {
+		return getBlocks(lowerBound(startTime), upperBound(endTime));
+	}
+
+	private ArrayList<String> getBlocks(int from, int to) {
+		final ArrayList<String> blockIds = Lists.newArrayList();
+		for (int i = from; i < to; i++) {
+			blockIds.add(mBlockIds[i]);
+		}
+		return blockIds;
+	}
+
+	/** First position with a start time at or after the given time. */
+	private int lowerBound(long time) {
+		int low = 0;
+		int high = mStarts.length;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (mStarts[mid] < time) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/** First position with a start time after the given time. */
+	private int upperBound(long time) {
+		int low = 0;
+		int high = mStarts.length;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (mStarts[mid] <= time) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	private interface BlocksQuery {
+		String [] PROJECTION = {
+				Blocks.BLOCK_ID,
+				Blocks.BLOCK_START,
+				Blocks.BLOCK_END,
+		};
+
+		int BLOCK_ID = 0;
+		int BLOCK_START = 1;
+		int BLOCK_END = 2;
+	}
+
+}
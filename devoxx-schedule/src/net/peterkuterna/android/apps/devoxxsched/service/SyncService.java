@@ -20,9 +20,12 @@
 package net.peterkuterna.android.apps.devoxxsched.service;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 
 import net.peterkuterna.android.apps.devoxxsched.Constants;
 import net.peterkuterna.android.apps.devoxxsched.R;
+import net.peterkuterna.android.apps.devoxxsched.io.JSONHandler;
 import net.peterkuterna.android.apps.devoxxsched.io.LocalExecutor;
 import net.peterkuterna.android.apps.devoxxsched.io.LocalSearchSuggestHandler;
 import net.peterkuterna.android.apps.devoxxsched.io.RemoteExecutor;
@@ -32,9 +35,13 @@ import net.peterkuterna.android.apps.devoxxsched.io.RemoteSessionTypesHandler;
 import net.peterkuterna.android.apps.devoxxsched.io.RemoteSessionsHandler;
 import net.peterkuterna.android.apps.devoxxsched.io.RemoteSpeakersHandler;
 import net.peterkuterna.android.apps.devoxxsched.model.RequestHash;
+import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleBatchWriter;
 import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleProvider;
 import net.peterkuterna.android.apps.devoxxsched.ui.SettingsActivity;
+import net.peterkuterna.android.apps.devoxxsched.util.Lists;
 import net.peterkuterna.android.apps.devoxxsched.util.NotificationUtils;
+import net.peterkuterna.android.apps.devoxxsched.util.Sets;
+import net.peterkuterna.android.apps.devoxxsched.util.SyncProbe;
 import net.peterkuterna.android.apps.devoxxsched.util.SyncUtils;
 
 import org.apache.http.client.HttpClient;
@@ -71,15 +78,53 @@ public class SyncService extends IntentService {
     public static final int STATUS_ERROR = 0x2;
     public static final int STATUS_FINISHED = 0x3;
 
-    private static final String [] URLS = {
-    	Constants.ROOMS_URL,
-    	Constants.SPEAKERS_URL,
-    	Constants.PRESENTATIONS_URL,
-    	Constants.SCHEDULE_URL,
-    	Constants.LABS_PRESENTATION_TYPES_URL,
-    	Constants.LABS_SPEAKERS_URL,
-    	Constants.LABS_PRESENTATIONS_URL,
-    	Constants.LABS_SCHEDULE_URL,
+    /**
+     * Group of feeds that are parsed by the same {@link JSONHandler} and
+     * therefore synced as a unit.
+     */
+    private static abstract class FeedGroup {
+    	final String [] urls;
+
+    	FeedGroup(String... urls) {
+    		this.urls = urls;
+    	}
+
+    	abstract JSONHandler newHandler();
+    }
+
+    private static final FeedGroup ROOMS = new FeedGroup(Constants.ROOMS_URL) {
+		JSONHandler newHandler() {
+			return new RemoteRoomsHandler();
+		}
+	};
+    private static final FeedGroup TYPES = new FeedGroup(Constants.LABS_PRESENTATION_TYPES_URL) {
+		JSONHandler newHandler() {
+			return new RemoteSessionTypesHandler();
+		}
+	};
+    private static final FeedGroup SPEAKERS = new FeedGroup(Constants.SPEAKERS_URL, Constants.LABS_SPEAKERS_URL) {
+		JSONHandler newHandler() {
+			return new RemoteSpeakersHandler();
+		}
+	};
+    private static final FeedGroup PRESENTATIONS = new FeedGroup(Constants.PRESENTATIONS_URL, Constants.LABS_PRESENTATIONS_URL) {
+		JSONHandler newHandler() {
+			return new RemoteSessionsHandler();
+		}
+	};
+    private static final FeedGroup SCHEDULE = new FeedGroup(Constants.SCHEDULE_URL, Constants.LABS_SCHEDULE_URL) {
+		JSONHandler newHandler() {
+			return new RemoteScheduleHandler();
+		}
+	};
+
+    /** All feed groups, in the order they need to be applied. */
+    private static final FeedGroup [] FEED_GROUPS = {
+    	ROOMS,
+    	TYPES,
+    	SPEAKERS,
+    	PRESENTATIONS,
+    	SCHEDULE,
     };
 
     private static final int VERSION_NONE = 0;
@@ -88,6 +133,7 @@ public class SyncService extends IntentService {
 
     private LocalExecutor mLocalExecutor;
     private RemoteExecutor mRemoteExecutor;
+    private ScheduleBatchWriter mBatchWriter;
     private HttpClient mHttpClient;
     private ContentResolver mResolver;
     
@@ -103,7 +149,13 @@ public class SyncService extends IntentService {
         mResolver = getContentResolver();
 
         mLocalExecutor = new LocalExecutor(getResources(), mResolver);
-        mRemoteExecutor = new RemoteExecutor(mHttpClient, mResolver);
+        mRemoteExecutor = new RemoteExecutor(mHttpClient, mResolver, getCacheDir());
+
+        // Sync runs in the same process as ScheduleProvider, so write
+        // directly to the database
+        mBatchWriter = new ScheduleBatchWriter(this);
+        mLocalExecutor.setBatchWriter(mBatchWriter);
+        mRemoteExecutor.setBatchWriter(mBatchWriter);
     }
 
     @Override
@@ -115,6 +167,8 @@ public class SyncService extends IntentService {
         final SharedPreferences syncServicePrefs = getSharedPreferences(SyncPrefs.DEVOXXSCHED_SYNC, Context.MODE_PRIVATE);
         final int localVersion = syncServicePrefs.getInt(SyncPrefs.LOCAL_VERSION, VERSION_NONE);
         final long lastRemoteSync = syncServicePrefs.getLong(SyncPrefs.LAST_REMOTE_SYNC, 0);
+        final SyncProbe syncProbe = new SyncProbe(mResolver, mHttpClient);
+        mRemoteExecutor.setSyncProbe(syncProbe);
         
         try {
             // Bulk of sync work, performed by executing several fetches from
@@ -126,11 +180,13 @@ public class SyncService extends IntentService {
             if (localParse) {
                 // Parse values from local cache first
                 mLocalExecutor.execute(R.xml.search_suggest, new LocalSearchSuggestHandler());
+                mBatchWriter.beginStaging();
             	mLocalExecutor.execute(context, "cache-rooms.json", new RemoteRoomsHandler());
             	mLocalExecutor.execute(context, "cache-presentationtypes.json", new RemoteSessionTypesHandler());
             	mLocalExecutor.execute(context, "cache-speakers.json", new RemoteSpeakersHandler());
             	mLocalExecutor.execute(context, "cache-presentations.json", new RemoteSessionsHandler());
             	mLocalExecutor.execute(context, "cache-schedule.json", new RemoteScheduleHandler());
+            	mBatchWriter.commitStaging();
 
                 // Save local parsed version
             	syncServicePrefs.edit().putInt(SyncPrefs.LOCAL_VERSION, VERSION_LOCAL).commit();
@@ -138,41 +194,26 @@ public class SyncService extends IntentService {
             Log.d(TAG, "local sync took " + (System.currentTimeMillis() - startLocal) + "ms");
 
             final long startRemote = System.currentTimeMillis();
-            boolean performRemoteSync = performRemoteSync(mResolver, mHttpClient, intent, context);
+            final ArrayList<FeedGroup> feedGroups = getFeedGroupsToSync(syncProbe, intent, context);
+            final boolean performRemoteSync = !feedGroups.isEmpty();
             if (performRemoteSync) {
-            	// Parse values from REST interface
-	            ArrayList<RequestHash> result = mRemoteExecutor.executeGet(new String [] {
-	            			Constants.ROOMS_URL,
-	            		}, new RemoteRoomsHandler());
-	            for (RequestHash requestHash : result) {
-	            	SyncUtils.updateLocalMd5(mResolver, requestHash.getUrl(), requestHash.getMd5());
-	            }
-	            result = mRemoteExecutor.executeGet(new String [] {
-            			Constants.LABS_PRESENTATION_TYPES_URL,
-            		}, new RemoteSessionTypesHandler());
-	            for (RequestHash requestHash : result) {
-	            	SyncUtils.updateLocalMd5(mResolver, requestHash.getUrl(), requestHash.getMd5());
-	            }
-	            result = mRemoteExecutor.executeGet(new String [] {
-	            			Constants.SPEAKERS_URL,
-	            			Constants.LABS_SPEAKERS_URL,
-	            		}, new RemoteSpeakersHandler());
-	            for (RequestHash requestHash : result) {
-	            	SyncUtils.updateLocalMd5(mResolver, requestHash.getUrl(), requestHash.getMd5());
-	            }
-	            result = mRemoteExecutor.executeGet(new String [] {
-	            			Constants.PRESENTATIONS_URL,
-	            			Constants.LABS_PRESENTATIONS_URL,
-	    				}, new RemoteSessionsHandler());
-	            for (RequestHash requestHash : result) {
-	            	SyncUtils.updateLocalMd5(mResolver, requestHash.getUrl(), requestHash.getMd5());
-	            }
-	            result = mRemoteExecutor.executeGet(new String [] {
-	            			Constants.SCHEDULE_URL,
-	            			Constants.LABS_SCHEDULE_URL,
-    					}, new RemoteScheduleHandler());
-	            for (RequestHash requestHash : result) {
-	            	SyncUtils.updateLocalMd5(mResolver, requestHash.getUrl(), requestHash.getMd5());
+            	// Download the feeds concurrently, they are parsed and applied
+            	// in dependency order as soon as each response is available
+            	for (FeedGroup feedGroup : feedGroups) {
+            		mRemoteExecutor.prefetch(feedGroup.urls);
+            	}
+
+            	// Parse values from REST interface into a staged copy of the
+            	// schedule, which is only swapped in when all groups applied
+            	final ArrayList<RequestHash> requestHashes = Lists.newArrayList();
+            	mBatchWriter.beginStaging();
+            	for (FeedGroup feedGroup : feedGroups) {
+            		Log.d(TAG, "syncing " + Arrays.toString(feedGroup.urls));
+		            requestHashes.addAll(mRemoteExecutor.executeGet(feedGroup.urls, feedGroup.newHandler()));
+            	}
+            	mBatchWriter.commitStaging();
+	            for (RequestHash requestHash : requestHashes) {
+	            	SyncUtils.updateLocalSync(mResolver, requestHash);
 	            }
 
 	            // Save last remote sync time
@@ -189,6 +230,7 @@ public class SyncService extends IntentService {
             }
         } catch (Exception e) {
             Log.e(TAG, "Problem while syncing", e);
+            mBatchWriter.abortStaging();
 
             if (receiver != null) {
                 // Pass back error to surface listener
@@ -198,26 +240,57 @@ public class SyncService extends IntentService {
             }
         }
 
+        mRemoteExecutor.shutdown();
+        mRemoteExecutor.setSyncProbe(null);
+        syncProbe.shutdown();
+
         // Announce success to any surface listener
         Log.d(TAG, "sync finished");
         if (receiver != null) receiver.send(STATUS_FINISHED, Bundle.EMPTY);
     }
 
     /**
-     * Should we perform a remote sync?
+     * Which feed groups should be fetched and applied during a remote sync?
+     * Returns an empty list when no remote sync should be performed.
      */
-    private static boolean performRemoteSync(ContentResolver resolver, HttpClient httpClient, Intent intent, Context context) {
+    private static ArrayList<FeedGroup> getFeedGroupsToSync(SyncProbe syncProbe, Intent intent, Context context) {
         final SharedPreferences settingsPrefs = context.getSharedPreferences(SettingsActivity.SETTINGS_NAME, MODE_PRIVATE);
         final SharedPreferences syncServicePrefs = context.getSharedPreferences(SyncPrefs.DEVOXXSCHED_SYNC, Context.MODE_PRIVATE);
         final boolean onlySyncWifi = settingsPrefs.getBoolean(context.getString(R.string.sync_only_wifi_key), false);
         final int localVersion = syncServicePrefs.getInt(SyncPrefs.LOCAL_VERSION, VERSION_NONE);
+        final ArrayList<FeedGroup> feedGroups = Lists.newArrayList();
         if (!onlySyncWifi || isWifiConnected(context)) {
+        	// Probe all feeds at once, the recorded hashes are reused by the
+        	// downloads and the sync table updates
+        	for (FeedGroup feedGroup : FEED_GROUPS) {
+        		syncProbe.start(feedGroup.urls);
+        	}
+
             final boolean remoteParse = localVersion < VERSION_REMOTE;
 	        final boolean forceRemoteRefresh = intent.getBooleanExtra(EXTRA_FORCE_REFRESH, false);
-	        final boolean hasContentChanged = hasContentChanged(resolver, httpClient);
-	        return remoteParse || forceRemoteRefresh || hasContentChanged;
+	        if (remoteParse || forceRemoteRefresh) {
+	        	feedGroups.addAll(Arrays.asList(FEED_GROUPS));
+	        	return feedGroups;
+	        }
+
+	        final HashSet<FeedGroup> changed = Sets.newHashSet();
+	        for (FeedGroup feedGroup : FEED_GROUPS) {
+	        	if (syncProbe.isAnyChanged(feedGroup.urls)) {
+	        		changed.add(feedGroup);
+	        	}
+	        }
+	        // Sessions link to rooms by name and new sessions only get their
+	        // block through the schedule, so the schedule is reapplied too.
+	        if (changed.contains(ROOMS) || changed.contains(PRESENTATIONS)) {
+	        	changed.add(SCHEDULE);
+	        }
+	        for (FeedGroup feedGroup : FEED_GROUPS) {
+	        	if (changed.contains(feedGroup)) {
+	        		feedGroups.add(feedGroup);
+	        	}
+	        }
         }
-        return false;
+        return feedGroups;
     }
     
     /**
@@ -234,28 +307,6 @@ public class SyncService extends IntentService {
     	return false;
     }
     
-    /**
-     * Checks for changes to the responses of the Devoxx REST API.
-     */
-    private static boolean hasContentChanged(ContentResolver resolver, HttpClient httpClient) {
-    	for (String url : URLS) {
-    		if (isContentChanged(resolver, httpClient, url)) {
-    			return true;
-    		}
-    	}
-    	
-    	return false;
-    }
-
-    /**
-     * Checks if the content of a given url has changed.
-     */
-    private static boolean isContentChanged(ContentResolver resolver, HttpClient httpClient, String url) {
-    	final String localMd5 = SyncUtils.getLocalMd5(resolver, url);
-    	final String remoteMd5 = SyncUtils.getRemoteMd5(httpClient, url);
-    	return (remoteMd5 != null && !remoteMd5.equals(localMd5));
-    }
-    
     private interface SyncPrefs {
         String DEVOXXSCHED_SYNC = "devoxxsched_sync";
         String LOCAL_VERSION = "local_version";
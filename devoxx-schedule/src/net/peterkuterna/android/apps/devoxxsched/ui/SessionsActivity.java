@@ -127,7 +127,8 @@ public class SessionsActivity extends ListActivity implements AsyncQueryListener
         } else {
            	mAdapter = new SearchAdapter(this);
             projection = SearchQuery.PROJECTION;
-            sort = Sessions.DEFAULT_SORT;
+            // Search results come in order of relevance
+            sort = null;
         }
 
         setListAdapter(mAdapter);
@@ -73,13 +73,17 @@ public class SpeakersActivity extends ListActivity implements AsyncQueryListener
         final Uri speakersUri = getIntent().getData();
 
         String[] projection;
+        String sort;
         if (!Speakers.isSearchUri(speakersUri)) {
             mAdapter = new SpeakersAdapter(this);
             projection = SpeakersQuery.PROJECTION;
+            sort = Speakers.DEFAULT_SORT;
             getListView().setFastScrollEnabled(true);
         } else {
             mAdapter = new SearchAdapter(this);
             projection = SearchQuery.PROJECTION;
+            // Search results come in order of relevance
+            sort = null;
             getListView().setFastScrollEnabled(false);
         }
 
@@ -88,7 +92,7 @@ public class SpeakersActivity extends ListActivity implements AsyncQueryListener
         setupListView(getIntent());
 
         mHandler = new NotifyingAsyncQueryHandler(getContentResolver(), this);
-        mHandler.startQuery(speakersUri, projection, Speakers.DEFAULT_SORT);
+        mHandler.startQuery(speakersUri, projection, sort);
 	}
 
 	private void setupListView(Intent intent) {
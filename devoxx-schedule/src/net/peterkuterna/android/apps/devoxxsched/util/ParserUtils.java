@@ -69,6 +69,9 @@ public class ParserUtils {
     private static Time sTime = new Time();
     private static XmlPullParserFactory sFactory;
 
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
     /**
      * Sanitize the given string to be {@link Uri} safe for building
      * {@link ContentProvider} paths.
@@ -117,4 +120,26 @@ public class ParserUtils {
         return sTime.toMillis(false);
     }
 
+    /**
+     * Returns a 64-bit FNV-1a hash over the given values, used to detect
+     * whether the synced fields of an entity changed. A null value hashes
+     * differently from an empty string.
+     */
+    public static long fingerprint(Object... values) {
+        long hash = FNV_OFFSET_BASIS;
+        for (Object value : values) {
+            if (value == null) {
+                hash = (hash ^ 0xffff) * FNV_PRIME;
+            } else {
+                final String string = value.toString();
+                for (int i = 0; i < string.length(); i++) {
+                    hash = (hash ^ string.charAt(i)) * FNV_PRIME;
+                }
+            }
+            // Separate the values, so ("ab", "c") and ("a", "bc") differ
+            hash = (hash ^ 0xfffe) * FNV_PRIME;
+        }
+        return hash;
+    }
+
 }
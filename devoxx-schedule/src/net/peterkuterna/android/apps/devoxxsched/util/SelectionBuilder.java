@@ -18,6 +18,7 @@
  * Modifications:
  * -Imported from AOSP frameworks/base/core/java/com/android/internal/content
  * -Changed package name
+ * -Added projectionMap to share a prebuilt projection map
  */
 
 package net.peterkuterna.android.apps.devoxxsched.util;
@@ -42,7 +43,7 @@ public class SelectionBuilder {
     private static final boolean LOGV = false;
 
     private String mTable = null;
-    private Map<String, String> mProjectionMap = Maps.newHashMap();
+    private Map<String, String> mProjectionMap = null;
     private StringBuilder mSelection = new StringBuilder();
     private ArrayList<String> mSelectionArgs = Lists.newArrayList();
 
@@ -90,6 +91,13 @@ public class SelectionBuilder {
         return this;
     }
 
+    /**
+     * Return the table for current internal state.
+     */
+    public String getTable() {
+        return mTable;
+    }
+
     private void assertTable() {
         if (mTable == null) {
             throw new IllegalStateException("Table not specified");
@@ -97,15 +105,32 @@ public class SelectionBuilder {
     }
 
     public SelectionBuilder mapToTable(String column, String table) {
-        mProjectionMap.put(column, table + "." + column);
+        getProjectionMap().put(column, table + "." + column);
         return this;
     }
 
     public SelectionBuilder map(String fromColumn, String toClause) {
-        mProjectionMap.put(fromColumn, toClause + " AS " + fromColumn);
+        getProjectionMap().put(fromColumn, toClause + " AS " + fromColumn);
+        return this;
+    }
+
+    /**
+     * Use the given projection map as is, instead of building one with
+     * {@link #mapToTable(String, String)} and {@link #map(String, String)}.
+     * The map is only read from, so it can be shared between builders.
+     */
+    public SelectionBuilder projectionMap(Map<String, String> projectionMap) {
+        mProjectionMap = projectionMap;
         return this;
     }
 
+    private Map<String, String> getProjectionMap() {
+        if (mProjectionMap == null) {
+            mProjectionMap = Maps.newHashMap();
+        }
+        return mProjectionMap;
+    }
+
     /**
      * Return selection string for current internal state.
      *
@@ -125,6 +150,7 @@ public class SelectionBuilder {
     }
 
     private void mapColumns(String[] columns) {
+        if (mProjectionMap == null) return;
         for (int i = 0; i < columns.length; i++) {
             final String target = mProjectionMap.get(columns[i]);
             if (target != null) {
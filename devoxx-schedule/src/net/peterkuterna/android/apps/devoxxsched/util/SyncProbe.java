@@ -0,0 +1,154 @@
+/*
+ * Copyright 2010 Peter Kuterna
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.peterkuterna.android.apps.devoxxsched.util;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import net.peterkuterna.android.apps.devoxxsched.model.RequestHash;
+
+import org.apache.http.client.HttpClient;
+
+import android.content.ContentResolver;
+
+
+/**
+ * Change probe for the feeds of one sync run. The remote md5 hash of every
+ * url is fetched only once, concurrently, and recorded so that the change
+ * detection, the downloads and the sync table updates all use the same
+ * value.
+ */
+public class SyncProbe {
+
+	private static final int MAX_CONCURRENT_PROBES = 4;
+
+	private final ContentResolver mResolver;
+	private final HttpClient mHttpClient;
+	private final HashSet<String> mStarted = Sets.newHashSet();
+	private final HashMap<String, String> mRemoteMd5s = Maps.newHashMap();
+	private final HashMap<String, RequestHash> mLocal = Maps.newHashMap();
+	private ExecutorService mExecutor;
+
+	public SyncProbe(ContentResolver resolver, HttpClient httpClient) {
+		mResolver = resolver;
+		mHttpClient = httpClient;
+	}
+
+	/**
+	 * Start probing the remote md5 hash of the given urls in the background.
+	 */
+	public synchronized void start(String... urls) {
+		if (mExecutor == null) {
+			mExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_PROBES);
+		}
+		for (final String url : urls) {
+			if (!mStarted.add(url)) continue;
+			mExecutor.execute(new Runnable() {
+				public void run() {
+					String md5 = null;
+					try {
+						md5 = SyncUtils.getRemoteMd5(mHttpClient, url);
+					} finally {
+						record(url, md5);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Returns the recorded remote md5 hash of a url, waiting for its probe
+	 * to finish. Urls that were not started are probed on the calling thread.
+	 */
+	public String getRemoteMd5(String url) {
+		synchronized (this) {
+			if (mStarted.contains(url)) {
+				while (!mRemoteMd5s.containsKey(url)) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return null;
+					}
+				}
+				return mRemoteMd5s.get(url);
+			}
+			mStarted.add(url);
+		}
+		final String md5 = SyncUtils.getRemoteMd5(mHttpClient, url);
+		record(url, md5);
+		return md5;
+	}
+
+	/**
+	 * Returns true as soon as one of the given urls is known to have changed
+	 * content, without waiting for the probes of the other urls. Returns
+	 * false once all of them are known to be unchanged.
+	 */
+	public synchronized boolean isAnyChanged(String... urls) {
+		start(urls);
+		while (true) {
+			boolean pending = false;
+			for (String url : urls) {
+				if (!mRemoteMd5s.containsKey(url)) {
+					pending = true;
+				} else if (isChanged(url, mRemoteMd5s.get(url))) {
+					return true;
+				}
+			}
+			if (!pending) return false;
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Stop any outstanding probe.
+	 */
+	public synchronized void shutdown() {
+		if (mExecutor != null) {
+			mExecutor.shutdownNow();
+			mExecutor = null;
+		}
+		notifyAll();
+	}
+
+	private synchronized void record(String url, String remoteMd5) {
+		mRemoteMd5s.put(url, remoteMd5);
+		notifyAll();
+	}
+
+	private boolean isChanged(String url, String remoteMd5) {
+		RequestHash local = mLocal.get(url);
+		if (local == null) {
+			local = SyncUtils.getLocalSync(mResolver, url);
+			if (local == null) local = new RequestHash(url, "");
+			mLocal.put(url, local);
+		}
+		if (remoteMd5 == null) {
+			// Without a remote hash, let a conditional request decide when
+			// the url has validators stored.
+			return local.getEtag() != null || local.getLastModified() != null;
+		}
+		return !remoteMd5.equals(local.getMd5());
+	}
+
+}
@@ -24,6 +24,8 @@ import java.util.zip.GZIPInputStream;
 
 import javax.net.ssl.HostnameVerifier;
 
+import net.peterkuterna.android.apps.devoxxsched.io.RemoteExecutor;
+import net.peterkuterna.android.apps.devoxxsched.model.RequestHash;
 import net.peterkuterna.android.apps.devoxxsched.provider.ScheduleContract.Sync;
 
 import org.apache.http.Header;
@@ -39,6 +41,8 @@ import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
@@ -86,6 +90,9 @@ public class SyncUtils {
         HttpConnectionParams.setSoTimeout(params, 200 * SECOND_IN_MILLIS);
 
         HttpConnectionParams.setSocketBufferSize(params, 8192);
+
+        // Allow the feeds of a sync to be downloaded concurrently
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(RemoteExecutor.MAX_CONCURRENT_REQUESTS));
         HttpProtocolParams.setUserAgent(params, buildUserAgent(context));
         
         final HostnameVerifier hostnameVerifier = org.apache.http.conn.ssl.SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER;
@@ -126,12 +133,22 @@ public class SyncUtils {
     }
 
     public static String getLocalMd5(ContentResolver resolver, String url) {
+    	final RequestHash local = getLocalSync(resolver, url);
+    	return (local != null) ? local.getMd5() : "";
+    }
+
+    /**
+     * Returns the md5 hash and HTTP validators stored for a given url, or
+     * null when the url was never synced.
+     */
+    public static RequestHash getLocalSync(ContentResolver resolver, String url) {
     	final String syncId = Sync.generateSyncId(url);
     	final Uri uri = Sync.buildSyncUri(syncId);
     	Cursor cursor = resolver.query(uri, SyncQuery.PROJECTION, null, null, null);
     	try {
-    		if (!cursor.moveToFirst()) return "";
-    		return cursor.getString(SyncQuery.MD5);
+    		if (!cursor.moveToFirst()) return null;
+    		return new RequestHash(url, cursor.getString(SyncQuery.MD5),
+    				cursor.getString(SyncQuery.ETAG), cursor.getString(SyncQuery.LAST_MODIFIED));
     	} finally {
     		cursor.close();
     	}
@@ -173,14 +190,25 @@ public class SyncUtils {
     }
     
     public static void updateLocalMd5(ContentResolver resolver, String url, String md5) {
+    	updateLocalSync(resolver, new RequestHash(url, md5));
+    }
+
+    /**
+     * Stores the md5 hash and HTTP validators of a synced url.
+     */
+    public static void updateLocalSync(ContentResolver resolver, RequestHash requestHash) {
+        final String url = requestHash.getUrl();
         final String syncId = Sync.generateSyncId(url);
+        final String md5 = requestHash.getMd5();
         final ContentValues contentValues = new ContentValues();
         Log.d("SyncUtils", "syncId = " + syncId);
         Log.d("SyncUtils", "url = " + url);
         Log.d("SyncUtils", "md5 = " + md5);
         contentValues.put(Sync.URI_ID, syncId);
         contentValues.put(Sync.URI, url);
-        contentValues.put(Sync.MD5, md5);
+        contentValues.put(Sync.MD5, (md5 != null) ? md5 : "");
+        contentValues.put(Sync.ETAG, requestHash.getEtag());
+        contentValues.put(Sync.LAST_MODIFIED, requestHash.getLastModified());
         resolver.insert(Sync.CONTENT_URI, contentValues);
     }
 
@@ -225,9 +253,13 @@ public class SyncUtils {
     private interface SyncQuery {
     	String [] PROJECTION = {
     			Sync.MD5,
+    			Sync.ETAG,
+    			Sync.LAST_MODIFIED,
     	};
     	
     	int MD5 = 0;
+    	int ETAG = 1;
+    	int LAST_MODIFIED = 2;
     }
     
 }